@@ -5,10 +5,43 @@
 package com.scylladb.driver.tools.agent;
 
 import java.lang.instrument.Instrumentation;
+import java.util.logging.Logger;
 
+/**
+ * Applies the paging optimization to an unmodified application.
+ *
+ * The agent takes the mode as its argument, optionally followed by
+ * {@code ,shard-aware}:
+ * <ul>
+ * <li>{@code wrap}, the default, builds every cluster with
+ * {@link com.scylladb.driver.tools.ClusterOptimizer}, so all options and metrics
+ * are available,</li>
+ * <li>{@code weave} weaves page stickiness into the driver itself, so no wrapper
+ * cluster, session or statement objects are created, but options and metrics
+ * are not available,</li>
+ * <li>{@code shard-aware} additionally weaves {@link ShardAwareness} into
+ * the driver, so requests to Scylla nodes are sent on a connection to the
+ * shard owning their routing key. Pools need at least as many connections
+ * per host as nodes have shards.</li>
+ * </ul>
+ */
 public class Agent {
+
+	private static final Logger logger = Logger.getLogger(Agent.class.getName());
+
 	public static void premain(String args, Instrumentation instrumentation) {
-		System.out.println("Running with cluster optimizing agent...");
-		instrumentation.addTransformer(new OptimizingTransformer());
+		String mode = args != null ? args : "";
+		if (mode.endsWith(",shard-aware")) {
+			mode = mode.substring(0, mode.length() - ",shard-aware".length());
+			instrumentation.addTransformer(new ShardAwarenessTransformer());
+		}
+		if ("weave".equals(mode)) {
+			instrumentation.addTransformer(new PagingAffinityTransformer());
+		} else {
+			if (!mode.isEmpty() && !"wrap".equals(mode)) {
+				logger.warning("Unknown agent mode " + mode + ", using wrap");
+			}
+			instrumentation.addTransformer(new OptimizingTransformer());
+		}
 	}
 }
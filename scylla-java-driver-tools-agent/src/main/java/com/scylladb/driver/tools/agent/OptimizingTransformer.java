@@ -4,38 +4,52 @@
 
 package com.scylladb.driver.tools.agent;
 
+import java.io.ByteArrayInputStream;
 import java.lang.instrument.ClassFileTransformer;
-import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
+import javassist.LoaderClassPath;
 
+/**
+ * Replaces {@code Cluster$Builder#build} so that it builds the cluster with
+ * {@link com.scylladb.driver.tools.ClusterOptimizer}. If the driver doesn't have
+ * the expected method, the class is left unchanged and the reason is logged
+ * at {@code FINE} level.
+ */
 class OptimizingTransformer implements ClassFileTransformer {
 
+	private static final Logger logger = Logger.getLogger(OptimizingTransformer.class.getName());
+
 	@Override
 	public byte[] transform(ClassLoader loader, String className, Class<?> redefiningClass, ProtectionDomain domain,
-			byte[] classByteCode) throws IllegalClassFormatException {
+			byte[] classByteCode) {
 		if (!"com/datastax/driver/core/Cluster$Builder".equals(className)) {
 			return null;
 		}
-		ClassPool pool = ClassPool.getDefault();
+		final ClassPool pool = new ClassPool(true);
+		if (loader != null) {
+			pool.appendClassPath(new LoaderClassPath(loader));
+		}
 		CtClass cl = null;
 		try {
-			cl = pool.makeClass(new java.io.ByteArrayInputStream(classByteCode));
+			cl = pool.makeClass(new ByteArrayInputStream(classByteCode));
 
 			CtMethod method = cl.getMethod("build", "()Lcom/datastax/driver/core/Cluster;");
-			method.setBody("{ System.out.println(\"Creating optimized cluster...\"); return com.scylladb.driver.tools.ClusterOptimizer.buildWithPagingOptimized(this); }");
-			classByteCode = cl.toBytecode();
-		} catch (Exception e) {
-			e.printStackTrace();
+			method.setBody("{ return com.scylladb.driver.tools.ClusterOptimizer.buildWithPagingOptimized(this); }");
+			return cl.toBytecode();
+		} catch (Exception | LinkageError e) {
+			logger.log(Level.FINE, "Unsupported driver version, " + className + " left unchanged", e);
+			return null;
 		} finally {
 			if (cl != null) {
 				cl.detach();
 			}
 		}
-		return classByteCode;
 	}
 
 }
@@ -0,0 +1,108 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+/**
+ * Page stickiness woven into the driver by {@link PagingAffinityTransformer}.
+ *
+ * Before the driver requests the next page of a result set, the host that served
+ * the previous page is stored in a thread local. The driver creates the request's
+ * query plan on the same thread, and the plan then returns that host first.
+ * The thread local is cleared as soon as it is read and after the request is sent,
+ * so it never leaks to unrelated requests.
+ *
+ * Called only from woven driver code, so it has to be public.
+ */
+public final class PagingAffinity {
+
+	private static final ThreadLocal<Host> PINNED = new ThreadLocal<>();
+
+	private PagingAffinity() {
+	}
+
+	public static void pin(Host host) {
+		PINNED.set(host);
+	}
+
+	public static void unpin() {
+		PINNED.set(null);
+	}
+
+	/**
+	 * Replaces the call to {@link LoadBalancingPolicy#newQueryPlan} in the driver's request handler.
+	 */
+	public static Iterator<Host> newQueryPlan(LoadBalancingPolicy policy, String loggedKeyspace, Statement statement) {
+		final Host pinned = PINNED.get();
+		if (pinned == null) {
+			return policy.newQueryPlan(loggedKeyspace, statement);
+		}
+		PINNED.set(null);
+		return new PinnedPlan(pinned, policy, loggedKeyspace, statement);
+	}
+
+	/**
+	 * Returns the pinned host, if it is up, and then the hosts of the policy's plan,
+	 * which is created only if the pinned host can't serve the page.
+	 * The driver synchronizes access to query plans.
+	 */
+	private static class PinnedPlan implements Iterator<Host> {
+
+		private final Host pinned;
+		private final LoadBalancingPolicy policy;
+		private final String loggedKeyspace;
+		private final Statement statement;
+		private boolean pinnedReturned;
+		private Iterator<Host> wrapped;
+		private Host next;
+
+		PinnedPlan(Host pinned, LoadBalancingPolicy policy, String loggedKeyspace, Statement statement) {
+			this.pinned = pinned;
+			this.policy = policy;
+			this.loggedKeyspace = loggedKeyspace;
+			this.statement = statement;
+			pinnedReturned = !pinned.isUp();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !pinnedReturned || computeNext();
+		}
+
+		@Override
+		public Host next() {
+			if (!pinnedReturned) {
+				pinnedReturned = true;
+				return pinned;
+			}
+			if (!computeNext()) {
+				throw new NoSuchElementException();
+			}
+			final Host result = next;
+			next = null;
+			return result;
+		}
+
+		private boolean computeNext() {
+			if (wrapped == null) {
+				wrapped = policy.newQueryPlan(loggedKeyspace, statement);
+			}
+			while (next == null && wrapped.hasNext()) {
+				final Host candidate = wrapped.next();
+				if (!candidate.equals(pinned)) {
+					next = candidate;
+				}
+			}
+			return next != null;
+		}
+	}
+
+}
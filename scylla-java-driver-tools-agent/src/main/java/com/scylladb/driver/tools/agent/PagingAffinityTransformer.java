@@ -0,0 +1,101 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.io.ByteArrayInputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+
+/**
+ * Weaves {@link PagingAffinity} into the driver instead of wrapping
+ * the cluster, its sessions and statements.
+ *
+ * Two places are woven:
+ * <ul>
+ * <li>{@code ArrayBackedResultSet$MultiPage.queryNextPage}, which requests
+ * the next page, pins the host that served the last page,</li>
+ * <li>the {@code RequestHandler} constructor creates its query plan through
+ * {@link PagingAffinity#newQueryPlan}.</li>
+ * </ul>
+ *
+ * If a driver doesn't have the expected members, the class is left unchanged
+ * and the reason is logged at {@code FINE} level, so the application keeps
+ * working without the optimization. Weaving only one of the classes is harmless.
+ */
+class PagingAffinityTransformer implements ClassFileTransformer {
+
+	private static final Logger logger = Logger.getLogger(PagingAffinityTransformer.class.getName());
+
+	private static final String MULTI_PAGE = "com/datastax/driver/core/ArrayBackedResultSet$MultiPage";
+	private static final String REQUEST_HANDLER = "com/datastax/driver/core/RequestHandler";
+	private static final String PAGING_AFFINITY = PagingAffinity.class.getName();
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> redefiningClass, ProtectionDomain domain,
+			byte[] classByteCode) {
+		if (!MULTI_PAGE.equals(className) && !REQUEST_HANDLER.equals(className)) {
+			return null;
+		}
+		final ClassPool pool = new ClassPool(true);
+		if (loader != null) {
+			pool.appendClassPath(new LoaderClassPath(loader));
+		}
+		CtClass cl = null;
+		try {
+			cl = pool.makeClass(new ByteArrayInputStream(classByteCode));
+			if (MULTI_PAGE.equals(className)) {
+				weaveMultiPage(cl);
+			} else {
+				weaveRequestHandler(cl);
+			}
+			return cl.toBytecode();
+		} catch (Exception | LinkageError e) {
+			logger.log(Level.FINE, "Unsupported driver version, " + className + " left unchanged", e);
+			return null;
+		} finally {
+			if (cl != null) {
+				cl.detach();
+			}
+		}
+	}
+
+	private static void weaveMultiPage(CtClass cl) throws NotFoundException, CannotCompileException {
+		final CtMethod method = cl.getDeclaredMethod("queryNextPage");
+		method.insertBefore("{ " + PAGING_AFFINITY + ".pin(((com.datastax.driver.core.ExecutionInfo) this.infos.getLast()).getQueriedHost()); }");
+		method.insertAfter("{ " + PAGING_AFFINITY + ".unpin(); }", true);
+	}
+
+	private static void weaveRequestHandler(CtClass cl) throws CannotCompileException {
+		final int[] replaced = { 0 };
+		for (CtConstructor constructor : cl.getDeclaredConstructors()) {
+			constructor.instrument(new ExprEditor() {
+				@Override
+				public void edit(MethodCall call) throws CannotCompileException {
+					if ("newQueryPlan".equals(call.getMethodName())
+							&& "com.datastax.driver.core.policies.LoadBalancingPolicy".equals(call.getClassName())) {
+						call.replace("{ $_ = " + PAGING_AFFINITY + ".newQueryPlan($0, $1, $2); }");
+						++replaced[0];
+					}
+				}
+			});
+		}
+		if (replaced[0] != 1) {
+			throw new CannotCompileException("Expected one query plan in RequestHandler, found " + replaced[0]);
+		}
+	}
+
+}
@@ -0,0 +1,20 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+/**
+ * Implemented by the driver's {@code RequestHandler} once {@link ShardAwarenessTransformer}
+ * weaves it, so that the connections it borrows can be routed to a shard.
+ *
+ * Called only from woven driver code, so it has to be public.
+ */
+public interface RoutedRequest {
+
+	/**
+	 * Returns the Murmur3 token of the request's routing key or null if it isn't known.
+	 */
+	Long getScyllaToken();
+
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.Token;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Shard awareness woven into the driver by {@link ShardAwarenessTransformer}.
+ *
+ * Once a connection is initialized, it sends an OPTIONS request and learns from
+ * the response which shard of the node it is bound to. The request handler computes
+ * the token of its statement's routing key when it is created. Before it borrows
+ * a connection from the pool of a host, the token is stored in a thread local,
+ * the pool borrows on the same thread only among the connections of the shard that
+ * owns the token, if it has any, and the thread local is cleared after the pool
+ * returns. This covers the first page and every following one, since each page
+ * has its own request handler.
+ *
+ * Called only from woven driver code, so it has to be public.
+ */
+public final class ShardAwareness {
+
+	private static final Logger logger = Logger.getLogger(ShardAwareness.class.getName());
+
+	private static final ThreadLocal<Long> ROUTED = new ThreadLocal<>();
+	private static volatile boolean sharded;
+
+	private ShardAwareness() {
+	}
+
+	/**
+	 * Learn the shard of a connection once its initialization succeeds.
+	 */
+	public static void onInit(Object connection, ListenableFuture<?> initialization) {
+		final ShardedConnection sharded = (ShardedConnection) connection;
+		Futures.addCallback(initialization, new FutureCallback<Object>() {
+			@Override
+			public void onSuccess(Object result) {
+				requestSharding(sharded);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				// The driver handles the failure of the connection.
+			}
+		});
+	}
+
+	private static void requestSharding(ShardedConnection connection) {
+		final ListenableFuture<?> response;
+		try {
+			response = connection.requestOptions();
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Can't request the sharding of " + connection, e);
+			return;
+		}
+		Futures.addCallback(response, new FutureCallback<Object>() {
+			@Override
+			public void onSuccess(Object result) {
+				final Map<String, List<String>> options = connection.supportedOptions(result);
+				final Sharding sharding = options != null ? Sharding.parse(options) : null;
+				if (sharding != null) {
+					connection.setSharding(sharding);
+					sharded = true;
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				logger.log(Level.FINE, "Can't request the sharding of " + connection, t);
+			}
+		});
+	}
+
+	/**
+	 * Returns the Murmur3 token of a statement's routing key, or null if it has none,
+	 * the cluster uses another partitioner or no connection is known to be sharded.
+	 */
+	public static Long token(Cluster cluster, Statement statement) {
+		if (!sharded) {
+			return null;
+		}
+		try {
+			final Configuration configuration = cluster.getConfiguration();
+			final ByteBuffer routingKey = statement.getRoutingKey(
+					configuration.getProtocolOptions().getProtocolVersion(), configuration.getCodecRegistry());
+			if (routingKey == null) {
+				return null;
+			}
+			final Token token = cluster.getMetadata().newToken(routingKey);
+			return token.getType().equals(DataType.bigint()) ? (Long) token.getValue() : null;
+		} catch (RuntimeException e) {
+			logger.log(Level.FINE, "Can't compute the token of " + statement, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Route the connections borrowed next on this thread to the shard owning the token
+	 * of a request handler, if it's woven. Null stops routing them.
+	 */
+	public static void route(Object requestHandler) {
+		ROUTED.set(requestHandler instanceof RoutedRequest ? ((RoutedRequest) requestHandler).getScyllaToken() : null);
+	}
+
+	/**
+	 * Returns the connections of a pool bound to the shard owning the routed token,
+	 * or all of them if there is no routed token or none of them is bound to the shard.
+	 * All connections of a pool are to the same node, so they share its sharding.
+	 */
+	public static List<?> connections(List<?> connections) {
+		final Long token = ROUTED.get();
+		if (token == null) {
+			return connections;
+		}
+		int shard = -1;
+		List<Object> result = null;
+		for (Object connection : connections) {
+			final Sharding sharding = ((ShardedConnection) connection).getSharding();
+			if (sharding == null) {
+				continue;
+			}
+			if (shard < 0) {
+				shard = sharding.shardOf(token);
+			}
+			if (sharding.getShard() == shard) {
+				if (result == null) {
+					result = new ArrayList<>(1);
+				}
+				result.add(connection);
+			}
+		}
+		return result != null ? result : connections;
+	}
+
+}
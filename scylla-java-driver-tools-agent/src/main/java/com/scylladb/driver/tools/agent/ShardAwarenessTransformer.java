@@ -0,0 +1,159 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.io.ByteArrayInputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+import javassist.expr.ExprEditor;
+import javassist.expr.FieldAccess;
+import javassist.expr.MethodCall;
+
+/**
+ * Weaves {@link ShardAwareness} into the driver, so that requests are sent on
+ * a connection to the shard owning their routing key.
+ *
+ * Four places are woven:
+ * <ul>
+ * <li>{@code Connection} implements {@link ShardedConnection} and learns its shard
+ * once {@code initAsync} succeeds,</li>
+ * <li>{@code RequestHandler} implements {@link RoutedRequest} and its constructor
+ * computes the token of its statement,</li>
+ * <li>{@code RequestHandler$SpeculativeExecution.query} routes the connection it
+ * borrows to the shard owning the token of its handler,</li>
+ * <li>{@code HostConnectionPool.borrowConnection} borrows among the connections
+ * of the routed shard.</li>
+ * </ul>
+ *
+ * If a driver doesn't have the expected members, the class is left unchanged
+ * and the reason is logged at {@code FINE} level, so the application keeps
+ * working without the optimization. Weaving only some of the classes is harmless:
+ * requests are then borrowed among all connections of a pool, as without the agent.
+ */
+class ShardAwarenessTransformer implements ClassFileTransformer {
+
+	private static final Logger logger = Logger.getLogger(ShardAwarenessTransformer.class.getName());
+
+	private static final String CONNECTION = "com/datastax/driver/core/Connection";
+	private static final String REQUEST_HANDLER = "com/datastax/driver/core/RequestHandler";
+	private static final String SPECULATIVE_EXECUTION = "com/datastax/driver/core/RequestHandler$SpeculativeExecution";
+	private static final String POOL = "com/datastax/driver/core/HostConnectionPool";
+	private static final String SHARD_AWARENESS = ShardAwareness.class.getName();
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> redefiningClass, ProtectionDomain domain,
+			byte[] classByteCode) {
+		if (!CONNECTION.equals(className) && !REQUEST_HANDLER.equals(className)
+				&& !SPECULATIVE_EXECUTION.equals(className) && !POOL.equals(className)) {
+			return null;
+		}
+		final ClassPool pool = new ClassPool(true);
+		if (loader != null) {
+			pool.appendClassPath(new LoaderClassPath(loader));
+		}
+		CtClass cl = null;
+		try {
+			cl = pool.makeClass(new ByteArrayInputStream(classByteCode));
+			if (CONNECTION.equals(className)) {
+				weaveConnection(pool, cl);
+			} else if (REQUEST_HANDLER.equals(className)) {
+				weaveRequestHandler(pool, cl);
+			} else if (SPECULATIVE_EXECUTION.equals(className)) {
+				weaveSpeculativeExecution(cl);
+			} else {
+				weavePool(cl);
+			}
+			return cl.toBytecode();
+		} catch (Exception | LinkageError e) {
+			logger.log(Level.FINE, "Unsupported driver version, " + className + " left unchanged", e);
+			return null;
+		} finally {
+			if (cl != null) {
+				cl.detach();
+			}
+		}
+	}
+
+	private static void weaveConnection(ClassPool pool, CtClass cl) throws NotFoundException, CannotCompileException {
+		cl.addInterface(pool.get(ShardedConnection.class.getName()));
+		cl.addField(CtField.make("private volatile " + Sharding.class.getName() + " scyllaSharding;", cl));
+		cl.addMethod(CtNewMethod.make("public com.google.common.util.concurrent.ListenableFuture requestOptions() {"
+				+ " return write(new com.datastax.driver.core.Requests$Options()); }", cl));
+		cl.addMethod(CtNewMethod.make("public java.util.Map supportedOptions(Object response) {"
+				+ " return response instanceof com.datastax.driver.core.Responses$Supported"
+				+ " ? ((com.datastax.driver.core.Responses$Supported) response).supported : null; }", cl));
+		cl.addMethod(CtNewMethod.make("public " + Sharding.class.getName() + " getSharding() {"
+				+ " return scyllaSharding; }", cl));
+		cl.addMethod(CtNewMethod.make("public void setSharding(" + Sharding.class.getName() + " sharding) {"
+				+ " scyllaSharding = sharding; }", cl));
+		final CtMethod init = cl.getDeclaredMethod("initAsync");
+		init.insertAfter("{ " + SHARD_AWARENESS + ".onInit(this, $_); }");
+	}
+
+	private static void weaveRequestHandler(ClassPool pool, CtClass cl)
+			throws NotFoundException, CannotCompileException {
+		cl.addInterface(pool.get(RoutedRequest.class.getName()));
+		cl.addField(CtField.make("private Long scyllaToken;", cl));
+		cl.addMethod(CtNewMethod.make("public Long getScyllaToken() { return scyllaToken; }", cl));
+		final CtConstructor[] constructors = cl.getDeclaredConstructors();
+		if (constructors.length != 1) {
+			throw new CannotCompileException("Expected one RequestHandler constructor, found " + constructors.length);
+		}
+		constructors[0].insertAfter("{ scyllaToken = " + SHARD_AWARENESS + ".token(manager.cluster, statement); }");
+	}
+
+	private static void weaveSpeculativeExecution(CtClass cl) throws NotFoundException, CannotCompileException {
+		final int[] replaced = { 0 };
+		cl.getDeclaredMethod("query").instrument(new ExprEditor() {
+			@Override
+			public void edit(MethodCall call) throws CannotCompileException {
+				if ("borrowConnection".equals(call.getMethodName())
+						&& "com.datastax.driver.core.HostConnectionPool".equals(call.getClassName())) {
+					call.replace("{ " + SHARD_AWARENESS + ".route(this$0);"
+							+ " try { $_ = $proceed($$); } finally { " + SHARD_AWARENESS + ".route(null); } }");
+					++replaced[0];
+				}
+			}
+		});
+		if (replaced[0] != 1) {
+			throw new CannotCompileException("Expected one borrowed connection in SpeculativeExecution, found "
+					+ replaced[0]);
+		}
+	}
+
+	private static void weavePool(CtClass cl) throws NotFoundException, CannotCompileException {
+		final int[] replaced = { 0 };
+		for (CtMethod method : cl.getDeclaredMethods()) {
+			if (!"borrowConnection".equals(method.getName())) {
+				continue;
+			}
+			method.instrument(new ExprEditor() {
+				@Override
+				public void edit(FieldAccess access) throws CannotCompileException {
+					if (access.isReader() && "connections".equals(access.getFieldName())) {
+						access.replace("{ $_ = ($r) " + SHARD_AWARENESS + ".connections($proceed()); }");
+						++replaced[0];
+					}
+				}
+			});
+		}
+		if (replaced[0] == 0) {
+			throw new CannotCompileException("Expected connections borrowed in HostConnectionPool, found none");
+		}
+	}
+
+}
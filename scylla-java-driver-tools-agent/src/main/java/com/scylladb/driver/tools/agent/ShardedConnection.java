@@ -0,0 +1,37 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Implemented by the driver's {@code Connection} once {@link ShardAwarenessTransformer}
+ * weaves it, so that {@link ShardAwareness} can reach the connection's internals.
+ *
+ * Called only from woven driver code, so it has to be public.
+ */
+public interface ShardedConnection {
+
+	/**
+	 * Send an OPTIONS request. Returns the future of the response.
+	 */
+	ListenableFuture<?> requestOptions();
+
+	/**
+	 * Returns the options of a SUPPORTED response or null if the response is of another type.
+	 */
+	Map<String, List<String>> supportedOptions(Object response);
+
+	/**
+	 * Returns the sharding of the connection or null if it isn't known.
+	 */
+	Sharding getSharding();
+
+	void setSharding(Sharding sharding);
+
+}
@@ -0,0 +1,74 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shard a connection to a Scylla node is bound to, and how the node assigns
+ * tokens to its shards, as advertised in the node's SUPPORTED response.
+ *
+ * Called only from woven driver code, so it has to be public.
+ */
+public final class Sharding {
+
+	private static final String SHARD = "SCYLLA_SHARD";
+	private static final String SHARDS = "SCYLLA_NR_SHARDS";
+	private static final String ALGORITHM = "SCYLLA_SHARDING_ALGORITHM";
+	private static final String IGNORE_MSB = "SCYLLA_SHARDING_IGNORE_MSB";
+	private static final String BIASED_TOKEN_ROUND_ROBIN = "biased-token-round-robin";
+
+	private final int shard;
+	private final int shards;
+	private final int ignoreMsb;
+
+	Sharding(int shard, int shards, int ignoreMsb) {
+		this.shard = shard;
+		this.shards = shards;
+		this.ignoreMsb = ignoreMsb;
+	}
+
+	/**
+	 * Returns the sharding described by the options of a SUPPORTED response, or null
+	 * if the node isn't a Scylla node or it shards tokens with an unknown algorithm.
+	 */
+	static Sharding parse(Map<String, List<String>> options) {
+		final String shard = option(options, SHARD);
+		final String shards = option(options, SHARDS);
+		final String ignoreMsb = option(options, IGNORE_MSB);
+		if (shard == null || shards == null || ignoreMsb == null
+				|| !BIASED_TOKEN_ROUND_ROBIN.equals(option(options, ALGORITHM))) {
+			return null;
+		}
+		try {
+			return new Sharding(Integer.parseInt(shard), Integer.parseInt(shards), Integer.parseInt(ignoreMsb));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String option(Map<String, List<String>> options, String name) {
+		final List<String> values = options.get(name);
+		return values != null && values.size() == 1 ? values.get(0) : null;
+	}
+
+	int getShard() {
+		return shard;
+	}
+
+	/**
+	 * Returns the shard owning a Murmur3 token. The token is biased to be unsigned,
+	 * its most significant bits are dropped, and the result is scaled to the number
+	 * of shards, i.e. multiplied by it, keeping the upper 64 bits of the product.
+	 */
+	int shardOf(long token) {
+		final long biased = (token - Long.MIN_VALUE) << ignoreMsb;
+		final long low = (biased & 0xffffffffL) * shards;
+		final long high = (biased >>> 32) * shards;
+		return (int) ((high + (low >>> 32)) >>> 32);
+	}
+
+}
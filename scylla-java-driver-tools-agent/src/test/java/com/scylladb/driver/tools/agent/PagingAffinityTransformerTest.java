@@ -0,0 +1,79 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+public class PagingAffinityTransformerTest {
+
+	private static final int ROWS = 50;
+	private static final int FETCH_SIZE = 5;
+
+	/**
+	 * Reads a partition page by page and returns the host that served each page.
+	 * Runs in a {@link TransformingClassLoader}, so it uses the driver loaded there.
+	 */
+	public static class PagedRead implements Callable<List<InetAddress>> {
+
+		@Override
+		public List<InetAddress> call() {
+			try (final FakeCluster fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3)
+					.withPartitions(1).withRowsPerPartition(ROWS).start();
+					final Cluster cluster = fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy())
+							.withoutJMXReporting().build()) {
+				final ResultSet resultSet = cluster.connect()
+						.execute(new SimpleStatement("SELECT * FROM ks.t WHERE pk = 0").setFetchSize(FETCH_SIZE));
+				int rows = 0;
+				while (resultSet.one() != null) {
+					++rows;
+				}
+				assertEquals(ROWS, rows);
+				final List<InetAddress> hosts = new ArrayList<>();
+				for (ExecutionInfo page : resultSet.getAllExecutionInfo()) {
+					hosts.add(page.getQueriedHost().getAddress());
+				}
+				return hosts;
+			}
+		}
+	}
+
+	@Test
+	public void laterPagesStayOnHostOfFirstPage() throws Exception {
+		final TransformingClassLoader loader = new TransformingClassLoader(new PagingAffinityTransformer());
+		final List<InetAddress> hosts = loader.call(PagedRead.class);
+		assertTrue(loader.isTransformed("com/datastax/driver/core/ArrayBackedResultSet$MultiPage"));
+		assertTrue(loader.isTransformed("com/datastax/driver/core/RequestHandler"));
+		assertEquals(ROWS / FETCH_SIZE, hosts.size());
+		assertNotNull(hosts.get(0));
+		for (InetAddress host : hosts) {
+			assertEquals(hosts.get(0), host);
+		}
+	}
+
+	@Test
+	public void pagesFollowLoadBalancingPolicyWithoutWeaving() throws Exception {
+		final List<InetAddress> hosts = new TransformingClassLoader().call(PagedRead.class);
+		assertEquals(ROWS / FETCH_SIZE, hosts.size());
+		assertTrue(new HashSet<>(hosts).size() > 1);
+	}
+
+}
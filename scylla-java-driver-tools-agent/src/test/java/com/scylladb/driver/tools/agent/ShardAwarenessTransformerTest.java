@@ -0,0 +1,87 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+public class ShardAwarenessTransformerTest {
+
+	private static final int SHARDS = 4;
+	private static final int PARTITIONS = 20;
+	private static final int ROWS = 50;
+	private static final int FETCH_SIZE = 10;
+
+	/**
+	 * Reads every partition page by page, once to let the connections learn their
+	 * shards and once more counting the requests. Returns the requests and the ones
+	 * served by a connection bound to another shard than the one owning the page.
+	 * Runs in a {@link TransformingClassLoader}, so it uses the driver loaded there.
+	 */
+	public static class ShardedRead implements Callable<long[]> {
+
+		@Override
+		public long[] call() {
+			try (final FakeCluster fakeCluster = FakeCluster.builder().withShards(SHARDS).withPartitions(PARTITIONS)
+					.withRowsPerPartition(ROWS).start();
+					final Cluster cluster = fakeCluster.clusterBuilder().withoutJMXReporting().build()) {
+				final Session session = cluster.connect();
+				final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+				readAll(session, select);
+				fakeCluster.resetCounters();
+				readAll(session, select);
+				return new long[] { fakeCluster.getRequests(), fakeCluster.getWrongShardRequests() };
+			}
+		}
+
+		private static void readAll(Session session, PreparedStatement select) {
+			for (int partition = 0; partition < PARTITIONS; ++partition) {
+				int rows = 0;
+				for (@SuppressWarnings("unused") Row row : session.execute(select.bind(partition).setFetchSize(FETCH_SIZE))) {
+					++rows;
+				}
+				assertEquals(ROWS, rows);
+			}
+		}
+	}
+
+	@Test
+	public void everyPageIsSentToOwningShard() throws Exception {
+		final TransformingClassLoader loader = new TransformingClassLoader(new ShardAwarenessTransformer());
+		final long[] requests = loader.call(ShardedRead.class);
+		assertTrue(loader.isTransformed("com/datastax/driver/core/Connection"));
+		assertTrue(loader.isTransformed("com/datastax/driver/core/RequestHandler"));
+		assertTrue(loader.isTransformed("com/datastax/driver/core/RequestHandler$SpeculativeExecution"));
+		assertTrue(loader.isTransformed("com/datastax/driver/core/HostConnectionPool"));
+		assertEquals(PARTITIONS * ROWS / FETCH_SIZE, requests[0]);
+		assertEquals(0, requests[1]);
+	}
+
+	@Test
+	public void pagesAreSentToAnyShardWithoutWeaving() throws Exception {
+		final long[] requests = new TransformingClassLoader().call(ShardedRead.class);
+		assertEquals(PARTITIONS * ROWS / FETCH_SIZE, requests[0]);
+		assertTrue(requests[1] > 0);
+	}
+
+	@Test
+	public void weavesAlongPagingAffinity() throws Exception {
+		final long[] requests = new TransformingClassLoader(new PagingAffinityTransformer(),
+				new ShardAwarenessTransformer()).call(ShardedRead.class);
+		assertEquals(PARTITIONS * ROWS / FETCH_SIZE, requests[0]);
+		assertEquals(0, requests[1]);
+	}
+
+}
@@ -0,0 +1,92 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Loads the driver and the code using it from the test's class path, passing
+ * every class through transformers like the agent's instrumentation does.
+ */
+class TransformingClassLoader extends ClassLoader {
+
+	private final ClassFileTransformer[] transformers;
+	private final Set<String> transformed = new HashSet<>();
+
+	/**
+	 * @param transformers transformers of loaded classes, in order, or none to load them unchanged.
+	 */
+	TransformingClassLoader(ClassFileTransformer... transformers) {
+		super(TransformingClassLoader.class.getClassLoader());
+		this.transformers = transformers;
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if (!name.startsWith("com.datastax.driver.") && !name.startsWith("com.scylladb.driver.tools.")) {
+			return super.loadClass(name, resolve);
+		}
+		synchronized (getClassLoadingLock(name)) {
+			Class<?> loaded = findLoadedClass(name);
+			if (loaded == null) {
+				loaded = define(name);
+			}
+			if (resolve) {
+				resolveClass(loaded);
+			}
+			return loaded;
+		}
+	}
+
+	private Class<?> define(String name) throws ClassNotFoundException {
+		final String internalName = name.replace('.', '/');
+		byte[] byteCode;
+		try (final InputStream input = getParent().getResourceAsStream(internalName + ".class")) {
+			if (input == null) {
+				throw new ClassNotFoundException(name);
+			}
+			byteCode = ByteStreams.toByteArray(input);
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+		for (ClassFileTransformer transformer : transformers) {
+			final byte[] woven;
+			try {
+				woven = transformer.transform(this, internalName, null, null, byteCode);
+			} catch (IllegalClassFormatException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+			if (woven != null) {
+				transformed.add(internalName);
+				byteCode = woven;
+			}
+		}
+		return defineClass(name, byteCode, 0, byteCode.length);
+	}
+
+	/**
+	 * Returns whether a class, given by its internal name, was changed by a transformer.
+	 */
+	boolean isTransformed(String internalName) {
+		return transformed.contains(internalName);
+	}
+
+	/**
+	 * Runs a task loaded by this class loader, so it uses the classes loaded here.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T call(Class<? extends Callable<T>> task) throws Exception {
+		return ((Callable<T>) loadClass(task.getName()).getDeclaredConstructor().newInstance()).call();
+	}
+
+}
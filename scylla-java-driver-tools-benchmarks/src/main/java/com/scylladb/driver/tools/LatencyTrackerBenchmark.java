@@ -0,0 +1,75 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Statement;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+/**
+ * Measures the cost of recording a page in {@link PagingOptimizingLatencyTracker},
+ * which the driver calls for every request.
+ *
+ * When {@code optimized} is false, the tracker sees a statement that was not
+ * wrapped by the optimizer, which is the cost paid by statements executed
+ * directly on a non-optimized session of the same cluster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LatencyTrackerBenchmark {
+
+	@Param({ "true", "false" })
+	private boolean optimized;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private PagingOptimizingLatencyTracker tracker;
+	private Host host;
+	private Statement statement;
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder());
+		final Statement bound = cluster.connect().prepare("SELECT * FROM ks.t WHERE pk = ?").bind(0);
+		statement = optimized ? new PagingOptimizingStatement(bound) : bound;
+		tracker = new PagingOptimizingLatencyTracker(ClusterOptimizer.getMetrics(cluster),
+				((PagingOptimizingCluster) cluster).getFetchSizeController(),
+				((PagingOptimizingCluster) cluster).getRoutingTracer());
+		host = cluster.getMetadata().getAllHosts().iterator().next();
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	@Benchmark
+	public void successfulPage() {
+		tracker.update(host, statement, null, 1000000L);
+	}
+
+}
@@ -0,0 +1,122 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+/**
+ * Measures how many Paxos round trips concurrent lightweight transactions on a few
+ * hot partitions take, with and without routing them to a single replica.
+ *
+ * The fake cluster charges extra round trips to a transaction that runs while a
+ * different node coordinates another one on the same partition. Results are
+ * reported as secondary "transactions" and "paxosRoundTrips" counters; their
+ * ratio is the number of round trips per transaction, 3 without contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LwtRoutingBenchmark {
+
+	private static final int CONCURRENT_TRANSACTIONS = 32;
+
+	@Param({ "true", "false" })
+	private boolean optimized;
+
+	@Param({ "4" })
+	private int hotPartitions;
+
+	@Param({ "1" })
+	private int latencyMillis;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement insert;
+	private int nextValue;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+
+		public long transactions;
+		public long paxosRoundTrips;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			transactions = 0;
+			paxosRoundTrips = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).start();
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(latencyMillis, TimeUnit.MILLISECONDS);
+		}
+		cluster = optimized
+				? ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+						new PagingOptimizingOptions().setLwtRoutingEnabled(true))
+				: fakeCluster.clusterBuilder().build();
+		session = cluster.connect();
+		insert = session.prepare("INSERT INTO ks.t (pk, ck, v) VALUES (?, ?, ?) IF NOT EXISTS");
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	/**
+	 * Run a batch of concurrent transactions spread over the hot partitions and wait for all of them.
+	 */
+	@Benchmark
+	public int updateHotPartitions(Counters counters) {
+		final long roundTripsBefore = fakeCluster.getPaxosRoundTrips();
+
+		final List<ResultSetFuture> results = new ArrayList<>(CONCURRENT_TRANSACTIONS);
+		for (int i = 0; i < CONCURRENT_TRANSACTIONS; ++i) {
+			results.add(session.executeAsync(insert.bind(i % hotPartitions, nextValue++, i)));
+		}
+		int applied = 0;
+		for (ResultSetFuture result : results) {
+			applied += result.getUninterruptibly().wasApplied() ? 1 : 0;
+		}
+
+		counters.transactions += CONCURRENT_TRANSACTIONS;
+		counters.paxosRoundTrips += fakeCluster.getPaxosRoundTrips() - roundTripsBefore;
+		return applied;
+	}
+
+}
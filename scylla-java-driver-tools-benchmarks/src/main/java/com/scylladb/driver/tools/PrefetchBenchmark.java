@@ -0,0 +1,94 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+/**
+ * Measures rows per second read from a multi-page partition when every
+ * page takes a few milliseconds to arrive and every row takes some time
+ * to process, for different prefetch depths.
+ *
+ * With depth 0 the consumer waits for each page after processing the previous
+ * one; with prefetching the wait overlaps with processing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefetchBenchmark {
+
+	private static final int FETCH_SIZE = 100;
+	private static final int PAGES = 10;
+	private static final int ROWS = FETCH_SIZE * PAGES;
+
+	@Param({ "0", "1", "2" })
+	private int prefetchDepth;
+
+	@Param({ "2" })
+	private int latencyMillis;
+
+	@Param({ "5000" })
+	private long tokensPerRow;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().withRowsPerPartition(ROWS).start();
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(latencyMillis, TimeUnit.MILLISECONDS);
+		}
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setPrefetchDepth(prefetchDepth));
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int readPartition() {
+		int result = 0;
+		for (Row row : session.execute(select.bind(0).setFetchSize(FETCH_SIZE))) {
+			Blackhole.consumeCPU(tokensPerRow);
+			result += row.getInt(2);
+		}
+		return result;
+	}
+
+}
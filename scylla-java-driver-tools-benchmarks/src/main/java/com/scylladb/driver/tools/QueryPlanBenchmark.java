@@ -0,0 +1,93 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+/**
+ * Measures the cost of building a query plan for a page of a paged query.
+ *
+ * Run with {@code -prof gc} to see the allocation rate of each plan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryPlanBenchmark {
+
+	@Param({ "3", "32" })
+	private int nodes;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private LoadBalancingPolicy policy;
+	private LoadBalancingPolicy wrappedPolicy;
+	private PagingOptimizingStatement nextPage;
+	private Statement statement;
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().withNodes(nodes).start();
+		wrappedPolicy = new RoundRobinPolicy();
+		cluster = ClusterOptimizer.buildWithPagingOptimizedWithLoadBalancingPolicyDecorator(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(wrappedPolicy), p -> policy = p);
+		final Session session = cluster.connect();
+		statement = session.prepare("SELECT * FROM ks.t WHERE pk = ?").bind(0);
+		nextPage = new PagingOptimizingStatement(statement);
+		final Host host = cluster.getMetadata().getAllHosts().iterator().next();
+		nextPage.setLastHost(host);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private static Host first(Iterator<Host> plan) {
+		return plan.hasNext() ? plan.next() : null;
+	}
+
+	/**
+	 * Plan of the wrapped policy alone, as a baseline.
+	 */
+	@Benchmark
+	public Host unoptimizedPlan() {
+		return first(wrappedPolicy.newQueryPlan(FakeCluster.KEYSPACE, statement));
+	}
+
+	/**
+	 * Plan of a page that is pinned to the host which served the previous one.
+	 */
+	@Benchmark
+	public Host pinnedPlan() {
+		return first(policy.newQueryPlan(FakeCluster.KEYSPACE, nextPage));
+	}
+
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+/**
+ * Measures queries executed end to end against an in-process fake cluster,
+ * with and without the optimizer.
+ *
+ * {@code execute} and {@code executeAsync} read a single page and show the
+ * overhead of wrapping statements. {@code readAllPages} reads a whole
+ * partition page by page and shows the full paging flow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+
+	private static final int FETCH_SIZE = 10;
+
+	@Param({ "true", "false" })
+	private boolean optimized;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().withRowsPerPartition(5 * FETCH_SIZE).start();
+		cluster = optimized
+				? ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder())
+				: fakeCluster.clusterBuilder().build();
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	@Benchmark
+	public ResultSet execute() {
+		return session.execute(select.bind(0));
+	}
+
+	@Benchmark
+	public ResultSet executeAsync() {
+		return session.executeAsync(select.bind(0)).getUninterruptibly();
+	}
+
+	@Benchmark
+	public int readAllPages() {
+		int result = 0;
+		for (Row row : session.execute(select.bind(0).setFetchSize(FETCH_SIZE))) {
+			result += row.getInt(2);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,108 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+/**
+ * Measures how many paged requests land on a connection bound to a shard
+ * that does not own the data (and have to be forwarded across cores by Scylla).
+ *
+ * Results are reported as secondary "requests" and "wrongShardRequests" counters.
+ * The driver sends requests on any connection of a pool unless the agent makes it
+ * shard aware, so run with {@code -jvmArgsAppend -javaagent:<agent jar>=weave,shard-aware}
+ * to measure that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShardAwarenessBenchmark {
+
+	private static final int FETCH_SIZE = 10;
+
+	@Param({ "true", "false" })
+	private boolean optimized;
+
+	@Param({ "4" })
+	private int shards;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+	private int nextPartition;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+
+		public long requests;
+		public long wrongShardRequests;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			requests = 0;
+			wrongShardRequests = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().withShards(shards).withPartitions(100).withRowsPerPartition(50).start();
+		cluster = optimized
+				? ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder())
+				: fakeCluster.clusterBuilder().build();
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	@Benchmark
+	public int readPartition(Counters counters) {
+		final long requestsBefore = fakeCluster.getRequests();
+		final long wrongShardBefore = fakeCluster.getWrongShardRequests();
+
+		final int partition = nextPartition;
+		nextPartition = (partition + 1) % fakeCluster.getPartitions();
+		int result = 0;
+		for (Row row : session.execute(select.bind(partition).setFetchSize(FETCH_SIZE))) {
+			result += row.getInt(2);
+		}
+
+		counters.requests += fakeCluster.getRequests() - requestsBefore;
+		counters.wrongShardRequests += fakeCluster.getWrongShardRequests() - wrongShardBefore;
+		return result;
+	}
+
+}
@@ -0,0 +1,94 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+/**
+ * Compares reading a whole table with {@link TableScanner} and with a single paged query,
+ * against nodes that answer every page after a fixed delay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TableScanBenchmark {
+
+	private static final int FETCH_SIZE = 100;
+
+	@Param({ "1", "3", "6" })
+	private int nodes;
+
+	@Param({ "1" })
+	private int latencyMillis;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private TableScanner scanner;
+
+	@Setup
+	public void setup() {
+		fakeCluster = FakeCluster.builder().withNodes(nodes).withReplicationFactor(1).withPartitions(200)
+				.withRowsPerPartition(10).start();
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(latencyMillis, TimeUnit.MILLISECONDS);
+		}
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder());
+		session = cluster.connect();
+		scanner = new TableScanner(session, FakeCluster.KEYSPACE, FakeCluster.TABLE).setFetchSize(FETCH_SIZE)
+				.setSplitting(4, 1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private static int sum(Iterator<Row> rows) {
+		int result = 0;
+		while (rows.hasNext()) {
+			result += rows.next().getInt(2);
+		}
+		return result;
+	}
+
+	@Benchmark
+	public int singleQuery() {
+		return sum(session.execute(new SimpleStatement("SELECT * FROM ks.t").setFetchSize(FETCH_SIZE)).iterator());
+	}
+
+	@Benchmark
+	public int tableScanner() {
+		try (final TableScanner.Scan scan = scanner.scan()) {
+			return sum(scan);
+		}
+	}
+
+}
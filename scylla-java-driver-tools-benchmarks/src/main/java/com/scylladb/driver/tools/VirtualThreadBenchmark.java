@@ -0,0 +1,165 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+/**
+ * Runs thousands of concurrent paged queries through the synchronous API,
+ * each on its own platform or virtual thread, and measures how long it takes
+ * for all of them to read their partitions.
+ *
+ * Results are reported as secondary counters: "rows" read, "platformThreads",
+ * the peak number of live platform threads, and "carrierThreads", the number of
+ * threads virtual threads were mounted on. A virtual thread that pinned its carrier
+ * while waiting for a page would show up as a drop of throughput with
+ * as many carriers as CPUs busy.
+ *
+ * Virtual threads are created through reflection, so the benchmark builds
+ * with Java 8; the "virtual" runs need Java 21 or newer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualThreadBenchmark {
+
+	private static final int FETCH_SIZE = 10;
+	private static final int ROWS_PER_PARTITION = 50;
+	private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+	@Param({ "platform", "virtual" })
+	private String threads;
+
+	@Param({ "10000" })
+	private int queries;
+
+	@Param({ "2" })
+	private int latencyMillis;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+	private ExecutorService executor;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Counters {
+
+		public long rows;
+		public long platformThreads;
+		public long carrierThreads;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			rows = 0;
+			platformThreads = 0;
+			carrierThreads = 0;
+			ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		executor = "virtual".equals(threads) ? newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+		fakeCluster = FakeCluster.builder().withPartitions(100).withRowsPerPartition(ROWS_PER_PARTITION).start();
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(latencyMillis, TimeUnit.MILLISECONDS);
+		}
+		// Every query has a page in flight most of the time, so requests must not be rejected by the pool.
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder()
+				.withPoolingOptions(new PoolingOptions()
+						.setConnectionsPerHost(HostDistance.LOCAL, 1, 1)
+						.setMaxRequestsPerConnection(HostDistance.LOCAL, 32768)
+						.setMaxQueueSize(queries)));
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() throws Exception {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	@Benchmark
+	public void readPartitions(Counters counters) throws Exception {
+		final List<Future<Integer>> results = new ArrayList<>(queries);
+		for (int i = 0; i < queries; ++i) {
+			final int pk = i % fakeCluster.getPartitions();
+			results.add(executor.submit(() -> {
+				int rows = 0;
+				for (Row row : session.execute(select.bind(pk).setFetchSize(FETCH_SIZE))) {
+					rows += row.getInt(1) >= 0 ? 1 : 0;
+				}
+				return rows;
+			}));
+		}
+		for (Future<Integer> result : results) {
+			counters.rows += result.get();
+		}
+		final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		counters.platformThreads = threadMXBean.getPeakThreadCount();
+		counters.carrierThreads = countCarrierThreads();
+	}
+
+	/**
+	 * Carriers stay alive for a while after they were last used, so this counts
+	 * the carriers used by the iteration.
+	 */
+	private static long countCarrierThreads() {
+		long carriers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (CARRIER_THREAD_CLASS.equals(thread.getClass().getName())) {
+				++carriers;
+			}
+		}
+		return carriers;
+	}
+
+}
@@ -0,0 +1,167 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+/**
+ * Splits unlogged batches into sub-batches of statements owned by the same replica
+ * and executes them in parallel, each on its replica.
+ *
+ * A statement is owned by the first replica of its routing key that is up and
+ * local according to the load balancing policy. Statements without a routing key,
+ * or whose replicas are all down or remote, form one more sub-batch that is routed
+ * as usual. Conditional batches, which must target a single partition, and logged
+ * and counter batches, whose statements must be applied together, are never split.
+ *
+ * Sub-batches share the batch's default timestamp, or one generated for it by the
+ * cluster's timestamp generator, so that they are applied as of the same time like
+ * the statements of the batch would be.
+ */
+class BatchSplitter {
+
+	private static final Logger logger = Logger.getLogger(BatchSplitter.class.getName());
+	private static final Field BATCH_TYPE = batchTypeField();
+
+	private final PagingOptimizingSession session;
+	private final Cluster cluster;
+	private final PagingOptimizingMetrics metrics;
+	private final ConditionalStatements conditions;
+
+	BatchSplitter(PagingOptimizingSession session, Cluster cluster, PagingOptimizingMetrics metrics,
+			ConditionalStatements conditions) {
+		this.session = session;
+		this.cluster = cluster;
+		this.metrics = metrics;
+		this.conditions = conditions;
+	}
+
+	/**
+	 * The driver doesn't expose the type of a batch, so it is read from the field
+	 * holding it. If that fails, batches are not split.
+	 */
+	private static Field batchTypeField() {
+		try {
+			final Field field = BatchStatement.class.getDeclaredField("batchType");
+			field.setAccessible(true);
+			return field;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.log(Level.FINE, "Unsupported driver version, batches won't be split", e);
+			return null;
+		}
+	}
+
+	private static boolean isUnlogged(BatchStatement batch) {
+		try {
+			return BATCH_TYPE != null && BATCH_TYPE.get(batch) == BatchStatement.Type.UNLOGGED;
+		} catch (IllegalAccessException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Execute a batch split into sub-batches or return null if it can't be split
+	 * or all its statements are owned by the same replica.
+	 */
+	ResultSetFuture executeAsync(BatchStatement batch, String loggedKeyspace) {
+		if (batch.size() < 2 || !isUnlogged(batch)) {
+			return null;
+		}
+		final Map<Host, BatchStatement> subBatches = new LinkedHashMap<>();
+		for (Statement statement : batch.getStatements()) {
+			if (!(statement instanceof BoundStatement || statement instanceof RegularStatement)
+					|| conditions.isConditional(statement)) {
+				return null;
+			}
+			final Host owner = owner(statement, loggedKeyspace);
+			BatchStatement subBatch = subBatches.get(owner);
+			if (subBatch == null) {
+				subBatch = copyOptions(batch, new BatchStatement(BatchStatement.Type.UNLOGGED));
+				subBatches.put(owner, subBatch);
+			}
+			subBatch.add(statement);
+		}
+		if (subBatches.size() < 2) {
+			return null;
+		}
+		final long timestamp = batch.getDefaultTimestamp() != Long.MIN_VALUE ? batch.getDefaultTimestamp()
+				: cluster.getConfiguration().getPolicies().getTimestampGenerator().next();
+		for (BatchStatement subBatch : subBatches.values()) {
+			subBatch.setDefaultTimestamp(timestamp);
+		}
+		metrics.getSplitBatches().inc();
+		metrics.getSubBatches().inc(subBatches.size());
+		final List<ResultSetFuture> results = new ArrayList<>(subBatches.size());
+		for (Map.Entry<Host, BatchStatement> subBatch : subBatches.entrySet()) {
+			results.add(session.executeAsync(subBatch.getValue(), subBatch.getKey()));
+		}
+		return new SplitBatchResultSetFuture(results);
+	}
+
+	/**
+	 * Returns the replica a statement is sent to or null if it has none that is up and local.
+	 */
+	private Host owner(Statement statement, String loggedKeyspace) {
+		final String keyspace = statement.getKeyspace() != null ? statement.getKeyspace() : loggedKeyspace;
+		final ProtocolVersion protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+		final CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+		final ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+		if (keyspace == null || routingKey == null) {
+			return null;
+		}
+		final LoadBalancingPolicy policy = cluster.getConfiguration().getPolicies().getLoadBalancingPolicy();
+		final Set<Host> replicas = cluster.getMetadata().getReplicas(Metadata.quote(keyspace), routingKey);
+		for (Host replica : replicas) {
+			if (replica.isUp() && policy.distance(replica) == HostDistance.LOCAL) {
+				return replica;
+			}
+		}
+		return null;
+	}
+
+	private static BatchStatement copyOptions(BatchStatement from, BatchStatement to) {
+		to.setConsistencyLevel(from.getConsistencyLevel());
+		if (from.getSerialConsistencyLevel() != null) {
+			to.setSerialConsistencyLevel(from.getSerialConsistencyLevel());
+		}
+		if (from.getReadTimeoutMillis() >= 0) {
+			to.setReadTimeoutMillis(from.getReadTimeoutMillis());
+		}
+		to.setRetryPolicy(from.getRetryPolicy());
+		final Boolean idempotent = from.isIdempotent();
+		if (idempotent != null) {
+			to.setIdempotent(idempotent);
+		}
+		if (from.getOutgoingPayload() != null) {
+			to.setOutgoingPayload(from.getOutgoingPayload());
+		}
+		if (from.isTracing()) {
+			to.enableTracing();
+		}
+		return to;
+	}
+
+}
@@ -0,0 +1,163 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.datastax.driver.core.AbstractGettableData;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.utils.Bytes;
+
+/**
+ * Row of a cached page, reading its values from the page's buffer.
+ *
+ * The values of a row are stored one after another, each preceded by its
+ * length, or by -1 for null, so reading a value skips the ones before it.
+ */
+class CachedRow extends AbstractGettableData implements Row {
+
+	private static final Pattern TOKEN_COLUMN_NAME = Pattern.compile("(system\\.)?token(.*)");
+
+	private final ColumnDefinitions columns;
+	private final ByteBuffer data;
+	private final int offset;
+	private final CodecRegistry codecRegistry;
+	private final Metadata metadata;
+
+	CachedRow(ProtocolVersion protocolVersion, CodecRegistry codecRegistry, Metadata metadata,
+			ColumnDefinitions columns, ByteBuffer data, int offset) {
+		super(protocolVersion);
+		this.columns = columns;
+		this.data = data;
+		this.offset = offset;
+		this.codecRegistry = codecRegistry;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * Returns the number of bytes a row takes in a page's buffer.
+	 */
+	static int size(Row row, int columnCount) {
+		int size = 0;
+		for (int i = 0; i < columnCount; ++i) {
+			final ByteBuffer value = row.getBytesUnsafe(i);
+			size += Integer.BYTES + (value != null ? value.remaining() : 0);
+		}
+		return size;
+	}
+
+	/**
+	 * Append the values of a row to a page's buffer.
+	 */
+	static void write(Row row, int columnCount, ByteBuffer data) {
+		for (int i = 0; i < columnCount; ++i) {
+			final ByteBuffer value = row.getBytesUnsafe(i);
+			if (value == null) {
+				data.putInt(-1);
+			} else {
+				data.putInt(value.remaining()).put(value.duplicate());
+			}
+		}
+	}
+
+	@Override
+	public ColumnDefinitions getColumnDefinitions() {
+		return columns;
+	}
+
+	@Override
+	protected DataType getType(int i) {
+		return columns.getType(i);
+	}
+
+	@Override
+	protected String getName(int i) {
+		return columns.getName(i);
+	}
+
+	@Override
+	protected ByteBuffer getValue(int i) {
+		if (i < 0 || i >= columns.size()) {
+			throw new IndexOutOfBoundsException(String.format("Index %d is out of bounds", i));
+		}
+		int position = offset;
+		for (int column = 0; column < i; ++column) {
+			position += Integer.BYTES + Math.max(data.getInt(position), 0);
+		}
+		final int length = data.getInt(position);
+		if (length < 0) {
+			return null;
+		}
+		final ByteBuffer value = data.duplicate();
+		value.position(position + Integer.BYTES).limit(position + Integer.BYTES + length);
+		return value.slice();
+	}
+
+	@Override
+	protected CodecRegistry getCodecRegistry() {
+		return codecRegistry;
+	}
+
+	@Override
+	protected int getIndexOf(String name) {
+		final int i = columns.getIndexOf(name);
+		if (i < 0) {
+			throw new IllegalArgumentException(name + " is not a column defined in this metadata");
+		}
+		return i;
+	}
+
+	/**
+	 * Tokens are rebuilt from their string form, since the driver's token
+	 * factories are not accessible outside of it.
+	 */
+	@Override
+	public Token getToken(int i) {
+		final Object value = getObject(i);
+		if (value == null) {
+			return null;
+		}
+		return metadata.newToken(value instanceof ByteBuffer ? Bytes.toHexString((ByteBuffer) value) : value.toString());
+	}
+
+	@Override
+	public Token getToken(String name) {
+		return getToken(getIndexOf(name));
+	}
+
+	@Override
+	public Token getPartitionKeyToken() {
+		final List<ColumnDefinitions.Definition> definitions = columns.asList();
+		for (int i = 0; i < definitions.size(); ++i) {
+			if (TOKEN_COLUMN_NAME.matcher(definitions.get(i).getName()).matches()) {
+				return getToken(i);
+			}
+		}
+		throw new IllegalStateException(
+				"Found no column named 'token(...)'. If the column is aliased, use getToken(String).");
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("Row[");
+		for (int i = 0; i < columns.size(); ++i) {
+			if (i != 0) {
+				sb.append(", ");
+			}
+			final Object value = getObject(i);
+			sb.append(value != null ? value.toString() : "NULL");
+		}
+		return sb.append(']').toString();
+	}
+
+}
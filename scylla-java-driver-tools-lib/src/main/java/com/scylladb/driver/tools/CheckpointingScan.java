@@ -0,0 +1,50 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import com.datastax.driver.core.ExecutionInfo;
+
+/**
+ * Writes checkpoints of a single query to a {@link PagingCheckpointLog}.
+ * Called only by the thread consuming the query's rows.
+ */
+class CheckpointingScan {
+
+	private final PagingCheckpointLog log;
+	private final String scanId;
+	private final long initialRows;
+	private final int interval;
+	private int checkpointedPages;
+	private boolean finished;
+
+	CheckpointingScan(PagingCheckpointLog log, String scanId, long initialRows, int interval) {
+		this.log = log;
+		this.scanId = scanId;
+		this.initialRows = initialRows;
+		this.interval = interval;
+	}
+
+	/**
+	 * Called when the consumer has read all fetched rows.
+	 *
+	 * @param lastPage execution info of the last fetched page.
+	 * @param pages number of pages fetched so far.
+	 * @param rows number of rows read so far.
+	 */
+	void onFetchedRowsRead(ExecutionInfo lastPage, boolean fullyFetched, int pages, long rows) {
+		if (finished) {
+			return;
+		}
+		if (fullyFetched) {
+			finished = true;
+			log.append(scanId, null, lastPage.getQueriedHost().getHostId(), initialRows + rows);
+		} else if (pages - checkpointedPages >= interval) {
+			checkpointedPages = pages;
+			log.append(scanId, lastPage.getPagingState().toBytes(), lastPage.getQueriedHost().getHostId(),
+					initialRows + rows);
+		}
+	}
+
+}
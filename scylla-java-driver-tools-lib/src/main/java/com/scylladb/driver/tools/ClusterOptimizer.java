@@ -4,6 +4,7 @@
 
 package com.scylladb.driver.tools;
 
+import java.util.List;
 import java.util.function.Function;
 
 import com.datastax.driver.core.Cluster;
@@ -26,7 +27,44 @@ public class ClusterOptimizer {
 	 * This is good for locality and makes cache usage much more efficient.
 	 */
 	public static Cluster buildWithPagingOptimized(final Cluster.Builder builder) {
-		return buildWithPagingOptimizedWithLoadBalancingPolicyDecorator(builder, null);
+		return buildWithPagingOptimized(builder, new PagingOptimizingOptions());
+	}
+	
+	/**
+	 * Same as {@link ClusterOptimizer#buildWithPagingOptimized(Cluster.Builder)} but
+	 * takes {@link PagingOptimizingOptions} that enable additional optimizations.
+	 */
+	public static Cluster buildWithPagingOptimized(final Cluster.Builder builder,
+			final PagingOptimizingOptions options) {
+		return buildWithPagingOptimizedWithLoadBalancingPolicyDecorator(builder, options, null);
+	}
+	
+	/**
+	 * Return metrics of the paging optimization of a {@link Cluster} built
+	 * by one of {@code buildWithPagingOptimized} methods.
+	 * 
+	 * @throws IllegalArgumentException if the cluster was not built by {@link ClusterOptimizer}.
+	 */
+	public static PagingOptimizingMetrics getMetrics(final Cluster cluster) {
+		if (!(cluster instanceof PagingOptimizingCluster)) {
+			throw new IllegalArgumentException("Cluster was not built by " + ClusterOptimizer.class.getName());
+		}
+		return ((PagingOptimizingCluster) cluster).getPagingOptimizingMetrics();
+	}
+	
+	/**
+	 * Return the most recent routing decisions of pages of a {@link Cluster} built
+	 * by one of {@code buildWithPagingOptimized} methods, oldest first.
+	 *
+	 * @throws IllegalArgumentException if the cluster was not built by {@link ClusterOptimizer}.
+	 * @throws IllegalStateException if the cluster was built without
+	 *         a {@link PagingOptimizingOptions#setRoutingTraceBufferSize routing trace buffer}.
+	 */
+	public static List<RoutingTrace> getRoutingTraces(final Cluster cluster) {
+		if (!(cluster instanceof PagingOptimizingCluster)) {
+			throw new IllegalArgumentException("Cluster was not built by " + ClusterOptimizer.class.getName());
+		}
+		return ((PagingOptimizingCluster) cluster).getRoutingTracer().getTraces();
 	}
 	
 	/**
@@ -42,7 +80,15 @@ public class ClusterOptimizer {
 	@VisibleForTesting
 	static Cluster buildWithPagingOptimizedWithLoadBalancingPolicyDecorator(final Cluster.Builder builder,
 			final Function<LoadBalancingPolicy, LoadBalancingPolicy> loadBalancingPolicyDecorator) {
-		return new PagingOptimizingCluster(builder, loadBalancingPolicyDecorator);
+		return buildWithPagingOptimizedWithLoadBalancingPolicyDecorator(builder, new PagingOptimizingOptions(),
+				loadBalancingPolicyDecorator);
+	}
+	
+	@VisibleForTesting
+	static Cluster buildWithPagingOptimizedWithLoadBalancingPolicyDecorator(final Cluster.Builder builder,
+			final PagingOptimizingOptions options,
+			final Function<LoadBalancingPolicy, LoadBalancingPolicy> loadBalancingPolicyDecorator) {
+		return new PagingOptimizingCluster(builder, options, loadBalancingPolicyDecorator);
 	}
 	
 }
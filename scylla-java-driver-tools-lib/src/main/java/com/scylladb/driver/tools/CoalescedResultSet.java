@@ -0,0 +1,248 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Result set of a single reader of pages shared by {@link PageCoalescer}.
+ *
+ * Each reader keeps its own position in the shared pages. Following pages
+ * are requested through the coalescer and pinned to the host that served
+ * the previous page. Like the driver's result sets, it is meant to be
+ * consumed by a single thread. Pages fetched with {@link #fetchMoreResults()}
+ * are queued after the current one, so their rows are available without
+ * fetching once the returned future completes. Paging metrics of the
+ * reader's query are recorded once its last page is done.
+ */
+class CoalescedResultSet implements ResultSet {
+
+	private final PagingOptimizingSession session;
+	private final PageCoalescer coalescer;
+	private final PageCoalescer.StatementKey key;
+	private final PagingOptimizingStatement statement;
+	private final ColumnDefinitions columns;
+	private final List<ExecutionInfo> executionInfos = new ArrayList<>();
+	private PageCoalescer.SharedPage page;
+	private List<Row> rows;
+	private int index;
+	/**
+	 * Pages that are done and not read yet, in order.
+	 */
+	private final Queue<PageCoalescer.SharedPage> fetched = new ArrayDeque<>();
+	/**
+	 * The last page that is done, which determines the next page to request.
+	 */
+	private PageCoalescer.SharedPage last;
+	private final AtomicReference<PageCoalescer.SharedPage> next = new AtomicReference<>();
+	private boolean recorded;
+
+	/**
+	 * @param first retained first page, which has to be done.
+	 */
+	CoalescedResultSet(PagingOptimizingSession session, PageCoalescer coalescer, PageCoalescer.StatementKey key,
+			PagingOptimizingStatement statement, PageCoalescer.SharedPage first) {
+		this.session = session;
+		this.coalescer = coalescer;
+		this.key = key;
+		this.statement = statement;
+		columns = first.getColumns();
+		last = first;
+		executionInfos.add(first.getExecutionInfo());
+		recordIfFullyFetched();
+		setPage(first);
+	}
+
+	private void setPage(PageCoalescer.SharedPage newPage) {
+		page = newPage;
+		rows = newPage.getRows();
+		index = 0;
+		if (rows.isEmpty() && isLastPage()) {
+			newPage.release();
+		} else if (coalescer.isPrefetching() && hasNextPage()) {
+			requestNextPage();
+		}
+	}
+
+	private boolean hasNextPage() {
+		return last.getNextPagingState() != null;
+	}
+
+	/**
+	 * Whether the current page is the last one.
+	 */
+	private boolean isLastPage() {
+		collect();
+		return fetched.isEmpty() && !hasNextPage();
+	}
+
+	/**
+	 * Queue the requested page if it completed successfully.
+	 */
+	private void collect() {
+		final PageCoalescer.SharedPage requested = next.get();
+		if (requested != null && requested.isDone()) {
+			next.set(null);
+			fetched.add(requested);
+			executionInfos.add(requested.getExecutionInfo());
+			last = requested;
+			recordIfFullyFetched();
+		}
+	}
+
+	private void recordIfFullyFetched() {
+		if (!recorded && !hasNextPage()) {
+			recorded = true;
+			PagingOptimizingResultSet.record(coalescer.getMetrics(), executionInfos);
+		}
+	}
+
+	/**
+	 * Request the next page unless it was already requested. No lock is held while
+	 * the request is sent, so a virtual thread sending it never pins its carrier.
+	 */
+	private PageCoalescer.SharedPage requestNextPage() {
+		PageCoalescer.SharedPage requested = next.get();
+		if (requested == null) {
+			requested = coalescer.fetch(session, key, statement, last.getNextPagingState(),
+					last.getExecutionInfo().getQueriedHost());
+			if (!next.compareAndSet(null, requested)) {
+				requested.release();
+				requested = next.get();
+			}
+		}
+		return requested;
+	}
+
+	/**
+	 * Move to the next page if all rows of the current one were read.
+	 * Returns false if there are no more rows.
+	 */
+	private boolean advance() {
+		while (index == rows.size()) {
+			collect();
+			final PageCoalescer.SharedPage nextPage = fetched.poll();
+			if (nextPage == null) {
+				if (!hasNextPage()) {
+					return false;
+				}
+				PageCoalescer.await(requestNextPage().getDone());
+				continue;
+			}
+			page.release();
+			setPage(nextPage);
+		}
+		return true;
+	}
+
+	@Override
+	public Row one() {
+		if (!advance()) {
+			return null;
+		}
+		final Row row = rows.get(index++);
+		if (index == rows.size() && isLastPage()) {
+			page.release();
+		}
+		return row;
+	}
+
+	@Override
+	public List<Row> all() {
+		final List<Row> result = new ArrayList<>(getAvailableWithoutFetching());
+		for (Row row = one(); row != null; row = one()) {
+			result.add(row);
+		}
+		return result;
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+		return new Iterator<Row>() {
+
+			@Override
+			public boolean hasNext() {
+				return advance();
+			}
+
+			@Override
+			public Row next() {
+				final Row row = one();
+				if (row == null) {
+					throw new NoSuchElementException();
+				}
+				return row;
+			}
+		};
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return !advance();
+	}
+
+	@Override
+	public boolean isFullyFetched() {
+		collect();
+		return !hasNextPage();
+	}
+
+	@Override
+	public int getAvailableWithoutFetching() {
+		collect();
+		int available = rows.size() - index;
+		for (PageCoalescer.SharedPage fetchedPage : fetched) {
+			available += fetchedPage.getRows().size();
+		}
+		return available;
+	}
+
+	@Override
+	public ListenableFuture<ResultSet> fetchMoreResults() {
+		if (isFullyFetched()) {
+			return Futures.immediateFuture(this);
+		}
+		return Futures.transform(Futures.nonCancellationPropagating(requestNextPage().getDone()),
+				(PageCoalescer.SharedPage fetched) -> (ResultSet) this);
+	}
+
+	@Override
+	public ExecutionInfo getExecutionInfo() {
+		collect();
+		return executionInfos.get(executionInfos.size() - 1);
+	}
+
+	@Override
+	public List<ExecutionInfo> getAllExecutionInfo() {
+		return new ArrayList<>(executionInfos);
+	}
+
+	@Override
+	public ColumnDefinitions getColumnDefinitions() {
+		return columns;
+	}
+
+	/**
+	 * Only SELECT statements are coalesced.
+	 */
+	@Override
+	public boolean wasApplied() {
+		return true;
+	}
+
+}
@@ -0,0 +1,55 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Future of a {@link CoalescedResultSet}. Cancelling it releases
+ * the reader's reference to the first page without affecting
+ * other readers of that page.
+ */
+class CoalescedResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+	CoalescedResultSetFuture(PagingOptimizingSession session, PageCoalescer coalescer, PageCoalescer.StatementKey key,
+			PagingOptimizingStatement statement, PageCoalescer.SharedPage first) {
+		first.getDone().addListener(() -> {
+			try {
+				Uninterruptibles.getUninterruptibly(first.getDone());
+			} catch (ExecutionException e) {
+				setException(e.getCause());
+				return;
+			}
+			if (isCancelled()) {
+				first.release();
+				return;
+			}
+			set(new CoalescedResultSet(session, coalescer, key, statement, first));
+		}, MoreExecutors.directExecutor());
+	}
+
+	@Override
+	public ResultSet getUninterruptibly() {
+		return PageCoalescer.await(this);
+	}
+
+	@Override
+	public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+		try {
+			return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+		} catch (ExecutionException e) {
+			throw PageCoalescer.propagate(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.Select;
+import com.datastax.driver.core.querybuilder.Truncate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Tells lightweight transactions, i.e. conditional statements and batches
+ * containing one, from other statements.
+ *
+ * A statement is conditional if it is an INSERT, UPDATE or DELETE with an IF
+ * clause. Statements are {@link CqlQuery tokenized}, so that IF in literals,
+ * comments or names doesn't count, and neither does IF [NOT] EXISTS of DDL.
+ * Query strings without the word aren't tokenized, nor are SELECT and TRUNCATE
+ * statements of the query builder built.
+ *
+ * Prepared statements are checked once and the result is kept until the prepared
+ * statement is garbage collected, or more than {@link #MAX_STATEMENTS} are cached.
+ * Other statements are checked every time.
+ */
+class ConditionalStatements {
+
+	private static final int MAX_STATEMENTS = 10000;
+
+	private final Cluster cluster;
+	private final LoadingCache<PreparedStatement, Boolean> prepared = CacheBuilder.newBuilder()
+			.weakKeys()
+			.maximumSize(MAX_STATEMENTS)
+			.build(new CacheLoader<PreparedStatement, Boolean>() {
+				@Override
+				public Boolean load(PreparedStatement statement) {
+					return isConditional(statement.getQueryString());
+				}
+			});
+
+	ConditionalStatements(Cluster cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * Whether a statement is a lightweight transaction. Statements of unknown
+	 * types are not.
+	 */
+	boolean isConditional(Statement statement) {
+		if (statement instanceof BoundStatement) {
+			return prepared.getUnchecked(((BoundStatement) statement).preparedStatement());
+		}
+		if (statement instanceof Select || statement instanceof Select.Where || statement instanceof Truncate) {
+			return false;
+		}
+		if (statement instanceof RegularStatement) {
+			return isConditional(((RegularStatement) statement)
+					.getQueryString(cluster.getConfiguration().getCodecRegistry()));
+		}
+		if (statement instanceof BatchStatement) {
+			for (Statement child : ((BatchStatement) statement).getStatements()) {
+				if (isConditional(child)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isConditional(String query) {
+		return containsIf(query) && CqlQuery.parse(query).isConditional();
+	}
+
+	private static boolean containsIf(String query) {
+		for (int i = 0; i + 1 < query.length(); ++i) {
+			if (query.regionMatches(true, i, "if", 0, 2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
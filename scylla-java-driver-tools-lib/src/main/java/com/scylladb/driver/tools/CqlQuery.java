@@ -0,0 +1,236 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.TableMetadata;
+
+/**
+ * Tokens of a CQL query, enough to tell what kind of statement it is without a
+ * full parser.
+ *
+ * Unquoted identifiers and keywords are lower-cased, quoted identifiers keep
+ * their quotes, string literals are replaced by a single {@code '} token and
+ * comments are dropped, so that words inside literals, comments or quoted names
+ * are never taken for keywords.
+ */
+final class CqlQuery {
+
+	private static final String LITERAL = "'";
+
+	private final List<String> tokens;
+
+	private CqlQuery(List<String> tokens) {
+		this.tokens = tokens;
+	}
+
+	static CqlQuery parse(String query) {
+		final List<String> tokens = new ArrayList<>();
+		final int length = query.length();
+		int i = 0;
+		while (i < length) {
+			final char c = query.charAt(i);
+			final char next = i + 1 < length ? query.charAt(i + 1) : 0;
+			if (Character.isWhitespace(c)) {
+				++i;
+			} else if ((c == '-' && next == '-') || (c == '/' && next == '/')) {
+				final int end = query.indexOf('\n', i);
+				i = end < 0 ? length : end + 1;
+			} else if (c == '/' && next == '*') {
+				final int end = query.indexOf("*/", i + 2);
+				i = end < 0 ? length : end + 2;
+			} else if (c == '$' && next == '$') {
+				final int end = query.indexOf("$$", i + 2);
+				i = end < 0 ? length : end + 2;
+				tokens.add(LITERAL);
+			} else if (c == '\'' || c == '"') {
+				final int end = closingQuote(query, i, c);
+				tokens.add(c == '\'' ? LITERAL : query.substring(i, end));
+				i = end;
+			} else if (Character.isLetterOrDigit(c) || c == '_') {
+				int end = i + 1;
+				while (end < length && (Character.isLetterOrDigit(query.charAt(end)) || query.charAt(end) == '_')) {
+					++end;
+				}
+				tokens.add(query.substring(i, end).toLowerCase());
+				i = end;
+			} else if ((c == '<' || c == '>' || c == '!') && next == '=') {
+				tokens.add(query.substring(i, i + 2));
+				i += 2;
+			} else {
+				tokens.add(String.valueOf(c));
+				++i;
+			}
+		}
+		return new CqlQuery(tokens);
+	}
+
+	/**
+	 * Returns the index following the quote that closes the one at a given index.
+	 * Doubled quotes are escaped ones.
+	 */
+	private static int closingQuote(String query, int start, char quote) {
+		int i = start + 1;
+		while (i < query.length()) {
+			if (query.charAt(i) == quote) {
+				if (i + 1 < query.length() && query.charAt(i + 1) == quote) {
+					i += 2;
+					continue;
+				}
+				return i + 1;
+			}
+			++i;
+		}
+		return query.length();
+	}
+
+	/**
+	 * Returns the name of an identifier token, without quotes.
+	 */
+	private static String name(String token) {
+		if (token.length() >= 2 && token.charAt(0) == '"') {
+			return token.substring(1, token.length() - 1).replace("\"\"", "\"");
+		}
+		return token;
+	}
+
+	private String token(int index) {
+		return index < tokens.size() ? tokens.get(index) : "";
+	}
+
+	/**
+	 * Returns the index of the first occurrence of a keyword outside parentheses,
+	 * starting at a given index, or -1.
+	 */
+	private int indexOf(String keyword, int from) {
+		int depth = 0;
+		for (int i = from; i < tokens.size(); ++i) {
+			final String token = tokens.get(i);
+			if (token.equals("(")) {
+				++depth;
+			} else if (token.equals(")")) {
+				--depth;
+			} else if (depth == 0 && token.equals(keyword)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	boolean isSelect() {
+		return token(0).equals("select");
+	}
+
+	/**
+	 * Whether a query string starts with SELECT, which is cheaper to check than
+	 * {@link #isSelect()} on the hot path, but misses SELECTs preceded by comments.
+	 */
+	static boolean startsWithSelect(String query) {
+		final String trimmed = query.trim();
+		return trimmed.regionMatches(true, 0, "SELECT", 0, "SELECT".length());
+	}
+
+	/**
+	 * Whether a query string may be a SELECT: it starts with SELECT, or it starts
+	 * with a comment and is a SELECT. Only queries starting with a comment are
+	 * parsed, so other statements, e.g. writes, are told apart cheaply.
+	 */
+	static boolean maybeSelect(String query) {
+		if (startsWithSelect(query)) {
+			return true;
+		}
+		final String trimmed = query.trim();
+		return (trimmed.startsWith("--") || trimmed.startsWith("//") || trimmed.startsWith("/*"))
+				&& parse(query).isSelect();
+	}
+
+	/**
+	 * Whether the query is a conditional INSERT, UPDATE or DELETE, i.e. it has an
+	 * IF clause outside parentheses, or a batch containing one.
+	 */
+	boolean isConditional() {
+		final String first = token(0);
+		if (!first.equals("insert") && !first.equals("update") && !first.equals("delete") && !first.equals("begin")) {
+			return false;
+		}
+		return indexOf("if", 1) >= 0;
+	}
+
+	/**
+	 * Returns the keyspace of the table a SELECT reads, or null if it isn't a SELECT
+	 * or its table isn't qualified and there is no default keyspace.
+	 */
+	String getSelectKeyspace(String defaultKeyspace) {
+		final int from = isSelect() ? indexOf("from", 1) : -1;
+		if (from < 0) {
+			return null;
+		}
+		return token(from + 2).equals(".") ? name(token(from + 1)) : defaultKeyspace;
+	}
+
+	/**
+	 * Whether the query is a SELECT that reads a range of partitions rather than
+	 * given partitions, i.e. it doesn't restrict all partition key columns of its table
+	 * with an equality or IN, or it restricts the token of the partition key. Queries
+	 * of tables that aren't in the metadata are not.
+	 */
+	boolean isRangeScan(String defaultKeyspace, Metadata metadata) {
+		final String keyspace = getSelectKeyspace(defaultKeyspace);
+		if (keyspace == null) {
+			return false;
+		}
+		int i = indexOf("from", 1) + 1;
+		if (token(i + 1).equals(".")) {
+			i += 2;
+		}
+		final String table = name(token(i++));
+		final KeyspaceMetadata keyspaceMetadata = metadata.getKeyspace(Metadata.quote(keyspace));
+		final TableMetadata tableMetadata = keyspaceMetadata != null
+				? keyspaceMetadata.getTable(Metadata.quote(table)) : null;
+		if (tableMetadata == null) {
+			return false;
+		}
+		final int where = indexOf("where", i);
+		if (where < 0) {
+			return true;
+		}
+		final Set<String> restricted = new HashSet<>();
+		int depth = 0;
+		for (int j = where + 1; j < tokens.size(); ++j) {
+			final String token = tokens.get(j);
+			if (token.equals("(")) {
+				++depth;
+			} else if (token.equals(")")) {
+				--depth;
+			} else if (depth == 0) {
+				final String next = token(j + 1);
+				if (token.equals("token") && next.equals("(")) {
+					return true;
+				}
+				if (token.equals("group") || token.equals("order") || token.equals("per") || token.equals("limit")
+						|| token.equals("allow")) {
+					break;
+				}
+				if (next.equals("=") || next.equals("in")) {
+					restricted.add(name(token));
+				}
+			}
+		}
+		for (ColumnMetadata column : tableMetadata.getPartitionKey()) {
+			if (!restricted.contains(column.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
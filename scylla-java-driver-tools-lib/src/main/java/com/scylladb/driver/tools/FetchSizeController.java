@@ -0,0 +1,163 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.Objects;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Fetch sizes of statement shapes, adjusted between pages so that pages take
+ * about the {@link PagingOptimizingOptions#setTargetPageLatency target latency}
+ * and hold no more than the {@link PagingOptimizingOptions#setMaxPageBytes target size}.
+ *
+ * A shape is a SELECT query string, i.e. all bound statements of a prepared statement
+ * or all simple statements with the same query. Other statements aren't paged, so
+ * they have no shape. Page latency is assumed to grow
+ * with the number of rows, so after every page the fetch size is scaled by the
+ * ratio of the target latency to the page's latency, at most doubled or halved
+ * at once. Pages that take between half the target and the target leave it
+ * unchanged, and a timeout halves it. The size of rows is estimated by result
+ * sets from the values of the first rows of a query.
+ */
+class FetchSizeController {
+
+	/**
+	 * Statements with values inlined in their queries have a shape per set of
+	 * values, so only that many shapes are tracked, evicting the least recently used.
+	 */
+	private static final int MAX_SHAPES = 1024;
+	private static final double MAX_STEP = 2.0;
+
+	private final Cluster cluster;
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics metrics;
+	private final Cache<ShapeKey, Shape> shapes = CacheBuilder.newBuilder().maximumSize(MAX_SHAPES).build();
+
+	FetchSizeController(Cluster cluster, PagingOptimizingOptions options, PagingOptimizingMetrics metrics) {
+		this.cluster = cluster;
+		this.options = options;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the shape of a statement or null if its fetch size isn't adjusted,
+	 * i.e. it is neither a bound nor a simple statement, or it isn't a SELECT.
+	 */
+	Shape shape(Statement statement) {
+		final String query;
+		if (statement instanceof BoundStatement) {
+			query = ((BoundStatement) statement).preparedStatement().getQueryString();
+		} else if (statement instanceof RegularStatement) {
+			query = ((RegularStatement) statement).getQueryString(cluster.getConfiguration().getCodecRegistry());
+		} else {
+			return null;
+		}
+		if (!CqlQuery.startsWithSelect(query)) {
+			return null;
+		}
+		return shapes.asMap().computeIfAbsent(new ShapeKey(statement.getKeyspace(), query),
+				k -> new Shape(clamp(initialFetchSize(statement))));
+	}
+
+	private int initialFetchSize(Statement statement) {
+		return statement.getFetchSize() > 0 ? statement.getFetchSize()
+				: cluster.getConfiguration().getQueryOptions().getFetchSize();
+	}
+
+	private int clamp(double fetchSize) {
+		return (int) Math.max(options.getMinFetchSize(), Math.min(options.getMaxFetchSize(), fetchSize));
+	}
+
+	/**
+	 * Adjust the fetch size of a shape after one of its pages was received.
+	 *
+	 * @param fetchSize the fetch size the page was requested with.
+	 */
+	void onPage(Shape shape, int fetchSize, long latencyNanos) {
+		metrics.getAdaptiveFetchSizes().update(fetchSize);
+		final long target = options.getTargetPageLatencyNanos();
+		if (latencyNanos > target || 2 * latencyNanos < target) {
+			final double ratio = (double) target / Math.max(1, latencyNanos);
+			shape.resize(fetchSize * Math.max(1 / MAX_STEP, Math.min(MAX_STEP, ratio)));
+		} else {
+			shape.resize(shape.getFetchSize());
+		}
+	}
+
+	/**
+	 * Halve the fetch size of a shape after one of its pages timed out.
+	 */
+	void onTimeout(Shape shape, int fetchSize) {
+		shape.resize(fetchSize / MAX_STEP);
+	}
+
+	/**
+	 * Shape of statements whose fetch size is adjusted together.
+	 */
+	class Shape {
+
+		private volatile int fetchSize;
+		private volatile long bytesPerRow;
+
+		Shape(int fetchSize) {
+			this.fetchSize = fetchSize;
+		}
+
+		int getFetchSize() {
+			return fetchSize;
+		}
+
+		/**
+		 * Record the estimated size of the rows of a query of this shape.
+		 */
+		void setBytesPerRow(long bytes) {
+			bytesPerRow = bytes;
+		}
+
+		/**
+		 * Set the fetch size, capped so that a page fits the target size and kept
+		 * within the bounds of the options, which may have changed since the last page.
+		 */
+		private void resize(double size) {
+			final long rowBytes = bytesPerRow;
+			if (rowBytes > 0) {
+				size = Math.min(size, (double) options.getMaxPageBytes() / rowBytes);
+			}
+			fetchSize = clamp(size);
+		}
+	}
+
+	private static class ShapeKey {
+
+		private final String keyspace;
+		private final String query;
+
+		ShapeKey(String keyspace, String query) {
+			this.keyspace = keyspace;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof ShapeKey)) {
+				return false;
+			}
+			final ShapeKey that = (ShapeKey) other;
+			return Objects.equals(keyspace, that.keyspace) && query.equals(that.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(keyspace, query);
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * {@link Reservoir} backed by HdrHistogram's {@link Recorder}.
+ *
+ * Recording a value is wait-free and doesn't allocate. Values are kept with 3
+ * significant digits of precision for a sliding window of about a minute, made of
+ * {@link #SLICES} slices. Values are moved from the recorder to the current slice
+ * when a snapshot is taken, so they may stay up to one slice longer than the window.
+ */
+class HdrHistogramReservoir implements Reservoir {
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+	private static final int SLICES = 6;
+	private static final long SLICE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+	private final Histogram[] slices = new Histogram[SLICES];
+	private final long[] sliceNumbers = new long[SLICES];
+	private Histogram interval;
+
+	HdrHistogramReservoir() {
+		for (int i = 0; i < SLICES; ++i) {
+			slices[i] = new Histogram(SIGNIFICANT_DIGITS);
+		}
+	}
+
+	@Override
+	public int size() {
+		return getSnapshot().size();
+	}
+
+	@Override
+	public void update(long value) {
+		recorder.recordValue(Math.max(value, 0));
+	}
+
+	@Override
+	public Snapshot getSnapshot() {
+		return getSnapshot(System.nanoTime());
+	}
+
+	/**
+	 * Returns a snapshot of the values recorded in the window ending at a given time.
+	 */
+	synchronized Snapshot getSnapshot(long now) {
+		final long current = Math.floorDiv(now, SLICE_NANOS);
+		interval = recorder.getIntervalHistogram(interval);
+		slice(current).add(interval);
+		final Histogram window = new Histogram(SIGNIFICANT_DIGITS);
+		for (long number = current - SLICES + 1; number <= current; ++number) {
+			window.add(slice(number));
+		}
+		return new HdrSnapshot(window);
+	}
+
+	/**
+	 * Returns the slice of a given number, emptied if it held an older one.
+	 */
+	private Histogram slice(long number) {
+		final int index = (int) Math.floorMod(number, (long) SLICES);
+		if (sliceNumbers[index] != number) {
+			sliceNumbers[index] = number;
+			slices[index].reset();
+		}
+		return slices[index];
+	}
+
+	private static class HdrSnapshot extends Snapshot {
+
+		private final Histogram histogram;
+
+		HdrSnapshot(Histogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public double getValue(double quantile) {
+			return histogram.getValueAtPercentile(quantile * 100);
+		}
+
+		/**
+		 * Returns each distinct recorded value once.
+		 */
+		@Override
+		public long[] getValues() {
+			int count = 0;
+			for (HistogramIterationValue ignored : histogram.recordedValues()) {
+				++count;
+			}
+			final long[] values = new long[count];
+			int i = 0;
+			for (HistogramIterationValue value : histogram.recordedValues()) {
+				values[i++] = histogram.highestEquivalentValue(value.getValueIteratedTo());
+			}
+			return values;
+		}
+
+		@Override
+		public int size() {
+			return (int) Math.min(histogram.getTotalCount(), Integer.MAX_VALUE);
+		}
+
+		@Override
+		public long getMax() {
+			return histogram.getMaxValue();
+		}
+
+		@Override
+		public double getMean() {
+			return histogram.getMean();
+		}
+
+		@Override
+		public long getMin() {
+			return histogram.getMinValue();
+		}
+
+		@Override
+		public double getStdDev() {
+			return histogram.getStdDeviation();
+		}
+
+		@Override
+		public void dump(OutputStream output) {
+			try (final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+				for (long value : getValues()) {
+					out.println(value);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+
+/**
+ * Adaptive limit of concurrent pinned page requests of every host.
+ *
+ * A request is counted against the host its plan starts with from the moment
+ * the plan is created until the driver reports the first attempt of the request
+ * to latency trackers, or the request's future completes. The limit of a host grows by one for roughly every limit
+ * requests that complete in time while the host is at least half busy, and it is
+ * cut by {@link #BACKOFF_RATIO} when a request times out, the host is overloaded
+ * or the latency exceeds {@link #LATENCY_TOLERANCE} times the smallest latency
+ * the host had recently (AIMD with a Vegas-like congestion signal).
+ */
+class HostConcurrencyLimiter implements LatencyTracker {
+
+	private static final int INITIAL_LIMIT = 20;
+	private static final int MIN_LIMIT = 1;
+	private static final double BACKOFF_RATIO = 0.9;
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * How long the smallest latency of a host is kept, so that it follows changes of
+	 * the host's baseline, e.g. after compactions finish.
+	 */
+	private static final long MIN_LATENCY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final PagingOptimizingOptions options;
+	private final ConcurrentMap<Host, HostLimit> limits = new ConcurrentHashMap<>();
+
+	HostConcurrencyLimiter(PagingOptimizingOptions options) {
+		this.options = options;
+	}
+
+	private HostLimit limit(Host host) {
+		final HostLimit limit = limits.get(host);
+		return limit != null ? limit
+				: limits.computeIfAbsent(host, h -> new HostLimit(Math.min(INITIAL_LIMIT, options.getMaxConcurrencyPerHost())));
+	}
+
+	/**
+	 * Whether a given host has as many pinned requests in flight as its limit allows.
+	 */
+	boolean isSaturated(Host host) {
+		final HostLimit limit = limits.get(host);
+		return limit != null && limit.isSaturated();
+	}
+
+	/**
+	 * Returns the fraction of a host's limit used by requests in flight.
+	 */
+	double load(Host host) {
+		final HostLimit limit = limits.get(host);
+		return limit != null ? limit.load() : 0;
+	}
+
+	/**
+	 * Count a request of a statement against a given host. A request of the statement
+	 * that wasn't reported yet stops being counted.
+	 */
+	void acquire(PagingOptimizingStatement statement, Host host) {
+		release(statement);
+		limit(host).acquire();
+		statement.setInFlightHost(host, this);
+	}
+
+	/**
+	 * Stop counting the request of a statement that wasn't reported yet, if any.
+	 */
+	void release(PagingOptimizingStatement statement) {
+		final Host acquired = statement.takeInFlightHost();
+		if (acquired != null) {
+			limit(acquired).release();
+		}
+	}
+
+	@Override
+	public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+		if (!(statement instanceof PagingOptimizingStatement)) {
+			return;
+		}
+		final PagingOptimizingStatement optimizingStatement = (PagingOptimizingStatement) statement;
+		release(optimizingStatement);
+		final Host sampled = optimizingStatement.takeSampledHost();
+		if (sampled == null || !sampled.equals(host)) {
+			return;
+		}
+		final HostLimit limit = limit(sampled);
+		if (exception instanceof OperationTimedOutException || exception instanceof OverloadedException) {
+			limit.backOff();
+		} else if (exception == null) {
+			limit.onSuccess(newLatencyNanos, System.nanoTime(), options.getMaxConcurrencyPerHost());
+		}
+	}
+
+	void remove(Host host) {
+		limits.remove(host);
+	}
+
+	@Override
+	public void onRegister(Cluster cluster) {
+	}
+
+	@Override
+	public void onUnregister(Cluster cluster) {
+	}
+
+	private static class HostLimit {
+
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private volatile double limit;
+		private long minLatency = -1;
+		private long minLatencyTimestamp;
+
+		HostLimit(int limit) {
+			this.limit = limit;
+		}
+
+		boolean isSaturated() {
+			return inFlight.get() >= (int) limit;
+		}
+
+		double load() {
+			return inFlight.get() / limit;
+		}
+
+		void acquire() {
+			inFlight.incrementAndGet();
+		}
+
+		void release() {
+			inFlight.decrementAndGet();
+		}
+
+		synchronized void backOff() {
+			limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+		}
+
+		synchronized void onSuccess(long latency, long now, int maxLimit) {
+			if (minLatency < 0 || latency < minLatency || now - minLatencyTimestamp > MIN_LATENCY_WINDOW_NANOS) {
+				minLatency = latency;
+				minLatencyTimestamp = now;
+			}
+			if (latency > LATENCY_TOLERANCE * minLatency) {
+				limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+			} else if (2 * inFlight.get() >= limit) {
+				limit = Math.min(maxLimit, limit + 1 / limit);
+			} else if (limit > maxLimit) {
+				limit = maxLimit;
+			}
+		}
+	}
+
+}
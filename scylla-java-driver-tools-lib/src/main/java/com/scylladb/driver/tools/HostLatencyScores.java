@@ -0,0 +1,144 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+
+/**
+ * Decaying average latency of every host, used to tell whether a host
+ * is much slower than its peers.
+ *
+ * The weight of the previous average decays exponentially with the time
+ * since it was updated, so a host that becomes slow, e.g. because of a GC
+ * pause, is noticed after a few requests and a host that recovers is
+ * trusted again just as quickly.
+ */
+class HostLatencyScores implements LatencyTracker {
+
+	/**
+	 * Averages not updated for that long are considered stale and ignored.
+	 */
+	private static final long RETRY_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * How long the minimum average of all hosts is reused before it is computed again.
+	 */
+	private static final long MIN_UPDATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final PagingOptimizingOptions options;
+	private final ConcurrentMap<Host, Score> scores = new ConcurrentHashMap<>();
+	private volatile long minAverage = -1;
+	private volatile long minTimestamp;
+
+	HostLatencyScores(PagingOptimizingOptions options) {
+		this.options = options;
+		minTimestamp = System.nanoTime() - MIN_UPDATE_INTERVAL_NANOS;
+	}
+
+	@Override
+	public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+		if (!options.isLatencyAwareStickinessEnabled()) {
+			return;
+		}
+		if (exception == null || exception instanceof OperationTimedOutException) {
+			score(host).add(newLatencyNanos, System.nanoTime(), options.getLatencyScaleNanos());
+		}
+	}
+
+	private Score score(Host host) {
+		final Score score = scores.get(host);
+		return score != null ? score : scores.computeIfAbsent(host, h -> new Score());
+	}
+
+	/**
+	 * Whether the average latency of a given host exceeds the smallest average
+	 * of all hosts by more than the configured exclusion threshold.
+	 * Hosts with too few or stale measurements are never slow.
+	 */
+	boolean isSlow(Host host) {
+		final Score score = scores.get(host);
+		if (score == null) {
+			return false;
+		}
+		final long now = System.nanoTime();
+		final long average = score.getAverage(now, options.getLatencyMinMeasurements());
+		if (average < 0) {
+			return false;
+		}
+		final long min = minAverage(now);
+		return min >= 0 && average > options.getLatencyExclusionThreshold() * min;
+	}
+
+	/**
+	 * Average latency of a given host or -1 if there are too few or stale measurements.
+	 */
+	long getAverage(Host host) {
+		final Score score = scores.get(host);
+		return score != null ? score.getAverage(System.nanoTime(), options.getLatencyMinMeasurements()) : -1;
+	}
+
+	private long minAverage(long now) {
+		if (now - minTimestamp < MIN_UPDATE_INTERVAL_NANOS) {
+			return minAverage;
+		}
+		final int minMeasurements = options.getLatencyMinMeasurements();
+		long min = -1;
+		for (Score score : scores.values()) {
+			final long average = score.getAverage(now, minMeasurements);
+			if (average >= 0 && (min < 0 || average < min)) {
+				min = average;
+			}
+		}
+		minAverage = min;
+		minTimestamp = now;
+		return min;
+	}
+
+	void remove(Host host) {
+		scores.remove(host);
+	}
+
+	@Override
+	public void onRegister(Cluster cluster) {
+	}
+
+	@Override
+	public void onUnregister(Cluster cluster) {
+	}
+
+	private static class Score {
+
+		private long average = -1;
+		private long measurements;
+		private long timestamp;
+
+		synchronized void add(long latency, long now, long scale) {
+			if (average < 0) {
+				average = latency;
+			} else {
+				final double weight = Math.exp(-(double) Math.max(now - timestamp, 0) / scale);
+				average = (long) (weight * average + (1 - weight) * latency);
+			}
+			++measurements;
+			timestamp = now;
+		}
+
+		synchronized long getAverage(long now, int minMeasurements) {
+			if (measurements < minMeasurements || now - timestamp > RETRY_PERIOD_NANOS) {
+				return -1;
+			}
+			return average;
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.Objects;
+
+import com.datastax.driver.core.Host;
+
+/**
+ * How close a host is to another one, from the closest to the farthest.
+ */
+enum Locality {
+
+	SAME_RACK, SAME_DATACENTER, REMOTE;
+
+	/**
+	 * Returns the locality of a host relative to a given one, using the topology
+	 * reported by the cluster's metadata. A host whose datacenter or rack is unknown
+	 * is never considered closer than the hosts whose are known.
+	 */
+	static Locality of(Host host, Host relativeTo) {
+		if (host.getDatacenter() == null || !Objects.equals(host.getDatacenter(), relativeTo.getDatacenter())) {
+			return REMOTE;
+		}
+		if (host.getRack() == null || !Objects.equals(host.getRack(), relativeTo.getRack())) {
+			return SAME_DATACENTER;
+		}
+		return SAME_RACK;
+	}
+
+}
@@ -0,0 +1,285 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+import com.scylladb.driver.tools.PageCoalescer.PageKey;
+import com.scylladb.driver.tools.PageCoalescer.SharedPage;
+
+/**
+ * Cache of pages of SELECT statements, bounded by the size of their values.
+ *
+ * The values of all rows of a page are copied into a single direct buffer,
+ * so cached pages live outside of the Java heap and a page costs the garbage
+ * collector only a few objects. Rows are read straight from that buffer.
+ * A page expires after the {@link PagingOptimizingOptions#setPageCacheTtl TTL}
+ * that was set when it was stored.
+ *
+ * Pages are kept in least recently used order, and a new page is admitted
+ * into a full cache only if it was requested more often than every page it
+ * would evict (TinyLFU). Request frequencies are estimated by a count-min
+ * sketch of 4-bit counters that are halved periodically, so a long scan read
+ * once can't flush the pages that are read over and over.
+ *
+ * The cache is guarded by a {@link ReentrantLock} rather than a monitor,
+ * so virtual threads waiting for it don't pin their carriers.
+ *
+ * The size bound applies to the pages in the cache. A page is copied only
+ * after it was admitted, but buffers of evicted pages, which readers may still
+ * be using, are freed by the garbage collector, so the direct memory in use
+ * can exceed the bound until it runs.
+ */
+class PageCache {
+
+	/**
+	 * Size of a page assumed to size the frequency sketch.
+	 */
+	private static final int ESTIMATED_PAGE_SIZE = 4096;
+
+	/**
+	 * Fewer counters than that make collisions common even in a small cache.
+	 */
+	private static final int MIN_COUNTERS = 1024;
+
+	private final Cluster cluster;
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics metrics;
+	private final long maxBytes;
+	private final Map<PageKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private final ReentrantLock lock = new ReentrantLock();
+	private long size;
+
+	PageCache(Cluster cluster, PagingOptimizingOptions options, PagingOptimizingMetrics metrics) {
+		this.cluster = cluster;
+		this.options = options;
+		this.metrics = metrics;
+		maxBytes = options.getPageCacheMaxBytes();
+		sketch = new FrequencySketch((int) Math.min(Math.max(maxBytes / ESTIMATED_PAGE_SIZE, MIN_COUNTERS), 1 << 24));
+	}
+
+	/**
+	 * Returns a retained copy of a cached page or null if the page isn't cached.
+	 */
+	SharedPage get(PageKey key) {
+		Entry entry;
+		lock.lock();
+		try {
+			sketch.increment(hash(key));
+			entry = entries.get(key);
+			if (entry != null && entry.isExpired(System.nanoTime())) {
+				remove(key);
+				metrics.getPageCacheEvictions().inc();
+				entry = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (entry == null) {
+			metrics.getPageCacheMisses().inc();
+			return null;
+		}
+		metrics.getPageCacheHits().inc();
+		return SharedPage.cached(entry.rows(cluster), entry.columns, entry.executionInfo, entry.nextPagingState);
+	}
+
+	/**
+	 * Store a page that was just fetched if the admission policy lets it in.
+	 */
+	void put(PageKey key, SharedPage page) {
+		final List<Row> rows = page.getRows();
+		final ColumnDefinitions columns = page.getColumns();
+		final int columnCount = columns.size();
+		final int[] offsets = new int[rows.size()];
+		int dataSize = 0;
+		for (int i = 0; i < offsets.length; ++i) {
+			offsets[i] = dataSize;
+			dataSize += CachedRow.size(rows.get(i), columnCount);
+		}
+		final long weight = dataSize + (long) Integer.BYTES * offsets.length;
+		if (weight > maxBytes) {
+			return;
+		}
+		final int hash = hash(key);
+		lock.lock();
+		try {
+			if (victims(key, hash, weight) == null) {
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		final ByteBuffer data = ByteBuffer.allocateDirect(dataSize);
+		for (Row row : rows) {
+			CachedRow.write(row, columnCount, data);
+		}
+		data.clear();
+		final Entry entry = new Entry(data, offsets, weight, columns, page.getExecutionInfo(),
+				page.getNextPagingState(), System.nanoTime() + options.getPageCacheTtlNanos());
+		lock.lock();
+		try {
+			// Other pages may have been stored while this one was copied.
+			final List<PageKey> victims = victims(key, hash, weight);
+			if (victims == null) {
+				return;
+			}
+			remove(key);
+			for (PageKey victim : victims) {
+				remove(victim);
+				metrics.getPageCacheEvictions().inc();
+			}
+			entries.put(key, entry);
+			size += weight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the pages to evict to store a page in place of its current version, if
+	 * any, or null if that would evict a page requested at least as often.
+	 */
+	private List<PageKey> victims(PageKey key, int hash, long weight) {
+		final long now = System.nanoTime();
+		final int frequency = sketch.frequency(hash);
+		final Entry current = entries.get(key);
+		long needed = size - (current != null ? current.weight : 0) + weight - maxBytes;
+		final List<PageKey> victims = new ArrayList<>();
+		final Iterator<Map.Entry<PageKey, Entry>> iterator = entries.entrySet().iterator();
+		while (needed > 0 && iterator.hasNext()) {
+			final Map.Entry<PageKey, Entry> victim = iterator.next();
+			if (victim.getValue() == current) {
+				continue;
+			}
+			if (!victim.getValue().isExpired(now) && sketch.frequency(hash(victim.getKey())) >= frequency) {
+				return null;
+			}
+			victims.add(victim.getKey());
+			needed -= victim.getValue().weight;
+		}
+		return victims;
+	}
+
+	private void remove(PageKey key) {
+		final Entry removed = entries.remove(key);
+		if (removed != null) {
+			size -= removed.weight;
+		}
+	}
+
+	private static int hash(PageKey key) {
+		final int hash = key.hashCode() * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static class Entry {
+
+		private final ByteBuffer data;
+		private final int[] offsets;
+		private final long weight;
+		private final ColumnDefinitions columns;
+		private final ExecutionInfo executionInfo;
+		private final ByteBuffer nextPagingState;
+		private final long expiration;
+
+		Entry(ByteBuffer data, int[] offsets, long weight, ColumnDefinitions columns, ExecutionInfo executionInfo,
+				ByteBuffer nextPagingState, long expiration) {
+			this.data = data;
+			this.offsets = offsets;
+			this.weight = weight;
+			this.columns = columns;
+			this.executionInfo = executionInfo;
+			this.nextPagingState = nextPagingState;
+			this.expiration = expiration;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiration >= 0;
+		}
+
+		List<Row> rows(Cluster cluster) {
+			final ProtocolVersion protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+			final CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+			final Metadata metadata = cluster.getMetadata();
+			final List<Row> rows = new ArrayList<>(offsets.length);
+			for (int offset : offsets) {
+				rows.add(new CachedRow(protocolVersion, codecRegistry, metadata, columns, data, offset));
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * Count-min sketch with four 4-bit counters per key, sixteen counters to a long.
+	 * All counters are halved once the number of increments reaches ten times
+	 * the number of counters, so old requests count less than recent ones.
+	 */
+	private static class FrequencySketch {
+
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+				0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int counters) {
+			table = new long[Integer.highestOneBit(Math.max(counters / 16, 1) * 2 - 1)];
+			sampleSize = 10 * counters;
+		}
+
+		int frequency(int hash) {
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < SEEDS.length; ++i) {
+				frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> shift(hash, i)) & 0xfL));
+			}
+			return frequency;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; ++i) {
+				final int index = index(hash, i);
+				final int shift = shift(hash, i);
+				if (((table[index] >>> shift) & 0xfL) != 0xfL) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				for (int i = 0; i < table.length; ++i) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions /= 2;
+			}
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return (int) h & (table.length - 1);
+		}
+
+		private static int shift(int hash, int i) {
+			return ((hash >>> (i << 3)) & 0xf) << 2;
+		}
+	}
+
+}
@@ -0,0 +1,392 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.DriverInternalError;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Single-flight layer that lets identical paged reads executed at the same time
+ * share server requests.
+ *
+ * Requests for the same page, i.e. the same statement and paging state, that
+ * are issued while a request for it is in flight join that request instead of
+ * sending their own. The rows of a page are kept in a {@link SharedPage} that
+ * every reader retains until it moves to the next page; the rows are dropped
+ * when the last reader releases it. Once a request completes, the page is no
+ * longer shared with new readers.
+ *
+ * When the {@link PageCache page cache} is enabled, pages are looked up in it
+ * before they are requested and stored in it once they arrive. Requests for
+ * the same page are joined only if coalescing is enabled.
+ *
+ * Only SELECT statements, simple or bound, are coalesced or cached. Statements
+ * with tracing, custom payloads or unset values, and batches, are executed
+ * as usual. Pages are requested through the session like other statements, so
+ * they get the same routing, retries and fetch size adaptation. When prefetching
+ * is enabled, readers request the page that follows the one they are reading.
+ */
+class PageCoalescer {
+
+	private final Cluster cluster;
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics metrics;
+	private final PageCache cache;
+	private final ConcurrentMap<PageKey, SharedPage> inFlight = new ConcurrentHashMap<>();
+
+	PageCoalescer(Cluster cluster, PagingOptimizingOptions options, PagingOptimizingMetrics metrics, PageCache cache) {
+		this.cluster = cluster;
+		this.options = options;
+		this.metrics = metrics;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns a key identifying the result of a statement or null if the statement can't be coalesced.
+	 *
+	 * @param loggedKeyspace keyspace of the session executing the statement.
+	 * @param optimizingStatement the statement wrapped, which exposes its paging state and shape.
+	 */
+	StatementKey key(String loggedKeyspace, Statement statement, PagingOptimizingStatement optimizingStatement) {
+		if (statement.isTracing() || statement.getOutgoingPayload() != null) {
+			return null;
+		}
+		final ProtocolVersion protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+		final CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+		final String query;
+		final Object values;
+		if (statement instanceof BoundStatement) {
+			final BoundStatement bound = (BoundStatement) statement;
+			final ByteBuffer[] boundValues = new ByteBuffer[bound.preparedStatement().getVariables().size()];
+			for (int i = 0; i < boundValues.length; ++i) {
+				if (!bound.isSet(i)) {
+					return null;
+				}
+				boundValues[i] = bound.getBytesUnsafe(i);
+			}
+			query = bound.preparedStatement().getQueryString();
+			values = Arrays.asList(boundValues);
+		} else if (statement instanceof RegularStatement) {
+			final RegularStatement regular = (RegularStatement) statement;
+			query = regular.getQueryString(codecRegistry);
+			final Map<String, ByteBuffer> namedValues = regular.getNamedValues(protocolVersion, codecRegistry);
+			final ByteBuffer[] positionalValues = regular.getValues(protocolVersion, codecRegistry);
+			values = namedValues != null ? namedValues
+					: positionalValues != null ? Arrays.asList(positionalValues) : Collections.emptyList();
+		} else {
+			return null;
+		}
+		if (!CqlQuery.startsWithSelect(query)) {
+			return null;
+		}
+		final FetchSizeController.Shape shape = optimizingStatement.getShape();
+		return new StatementKey(loggedKeyspace, statement.getKeyspace(), query, values,
+				statement.getConsistencyLevel(), shape != null ? shape.getFetchSize() : statement.getFetchSize(),
+				optimizingStatement.getPagingState());
+	}
+
+	/**
+	 * Returns a retained page of a statement, taking it from the cache or joining a request
+	 * for it that is in flight if possible.
+	 *
+	 * All pages a reader fetches are requested with the same statement, so that the
+	 * statement counts the reader's pages, including the ones it didn't request itself,
+	 * and keeps its page retries and pinning from one page to the next.
+	 *
+	 * @param session session of the reader, which requests the page if needed.
+	 * @param statement the reader's statement.
+	 * @param pagingState paging state of the page or null for the first page.
+	 * @param host host to pin the request to or null.
+	 */
+	SharedPage fetch(PagingOptimizingSession session, StatementKey key, PagingOptimizingStatement statement,
+			ByteBuffer pagingState, Host host) {
+		final PageKey pageKey = new PageKey(key, pagingState);
+		if (options.isPageCacheEnabled()) {
+			final SharedPage cached = cache.get(pageKey);
+			if (cached != null) {
+				statement.incrementPages();
+				return cached;
+			}
+		}
+		if (!options.isCoalescingEnabled()) {
+			final SharedPage page = new SharedPage();
+			send(session, pageKey, page, statement, pagingState, host);
+			return page;
+		}
+		while (true) {
+			final SharedPage existing = inFlight.get(pageKey);
+			if (existing != null) {
+				if (existing.retain()) {
+					metrics.getCoalescedRequests().inc();
+					statement.incrementPages();
+					return existing;
+				}
+				inFlight.remove(pageKey, existing);
+				continue;
+			}
+			final SharedPage page = new SharedPage();
+			if (inFlight.putIfAbsent(pageKey, page) == null) {
+				send(session, pageKey, page, statement, pagingState, host);
+				return page;
+			}
+		}
+	}
+
+	PagingOptimizingMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Whether readers request the page that follows the one they are reading.
+	 */
+	boolean isPrefetching() {
+		return options.getPrefetchDepth() > 0;
+	}
+
+	/**
+	 * Wait for a future, rethrowing driver exceptions the way the driver's synchronous calls do.
+	 */
+	static <T> T await(Future<T> future) {
+		try {
+			return Uninterruptibles.getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			throw propagate(e.getCause());
+		}
+	}
+
+	static RuntimeException propagate(Throwable cause) {
+		if (cause instanceof DriverException) {
+			throw ((DriverException) cause).copy();
+		}
+		throw new DriverInternalError("Unexpected exception thrown", cause);
+	}
+
+	private void send(PagingOptimizingSession session, PageKey pageKey, SharedPage page,
+			PagingOptimizingStatement statement, ByteBuffer pagingState, Host host) {
+		Futures.addCallback(session.executePage(statement, pagingState, host), new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet result) {
+				inFlight.remove(pageKey, page);
+				try {
+					page.load(result);
+					if (options.isPageCacheEnabled()) {
+						cache.put(pageKey, page);
+					}
+				} catch (Throwable t) {
+					// Readers waiting for the page must not hang, e.g. if the cache can't allocate memory.
+					page.fail(t);
+					return;
+				}
+				page.complete();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				inFlight.remove(pageKey, page);
+				page.fail(t);
+			}
+		});
+	}
+
+	/**
+	 * Rows of a single page shared by all its readers.
+	 */
+	static class SharedPage {
+
+		private final SettableFuture<SharedPage> done = SettableFuture.create();
+		private final AtomicInteger references = new AtomicInteger(1);
+		private volatile List<Row> rows;
+		private volatile ColumnDefinitions columns;
+		private volatile ExecutionInfo executionInfo;
+		private volatile ByteBuffer nextPagingState;
+		private volatile boolean completed;
+
+		/**
+		 * Returns a completed page holding rows read from the cache.
+		 */
+		static SharedPage cached(List<Row> rows, ColumnDefinitions columns, ExecutionInfo executionInfo,
+				ByteBuffer nextPagingState) {
+			final SharedPage page = new SharedPage();
+			page.rows = rows;
+			page.columns = columns;
+			page.executionInfo = executionInfo;
+			page.nextPagingState = nextPagingState;
+			page.complete();
+			return page;
+		}
+
+		private void load(ResultSet result) {
+			final int available = result.getAvailableWithoutFetching();
+			final List<Row> pageRows = new ArrayList<>(available);
+			for (int i = 0; i < available; ++i) {
+				pageRows.add(result.one());
+			}
+			rows = pageRows;
+			columns = result.getColumnDefinitions();
+			executionInfo = result.getExecutionInfo();
+			final byte[] pagingState = executionInfo.getPagingStateUnsafe();
+			nextPagingState = pagingState != null ? ByteBuffer.wrap(pagingState) : null;
+		}
+
+		private void complete() {
+			completed = true;
+			done.set(this);
+		}
+
+		private void fail(Throwable t) {
+			done.setException(t);
+		}
+
+		/**
+		 * Fails if the page was already released by all its readers.
+		 */
+		private boolean retain() {
+			int count;
+			do {
+				count = references.get();
+				if (count == 0) {
+					return false;
+				}
+			} while (!references.compareAndSet(count, count + 1));
+			return true;
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				rows = null;
+			}
+		}
+
+		ListenableFuture<SharedPage> getDone() {
+			return done;
+		}
+
+		/**
+		 * Whether the page was loaded successfully.
+		 */
+		boolean isDone() {
+			return completed;
+		}
+
+		List<Row> getRows() {
+			return rows;
+		}
+
+		ColumnDefinitions getColumns() {
+			return columns;
+		}
+
+		ExecutionInfo getExecutionInfo() {
+			return executionInfo;
+		}
+
+		/**
+		 * Paging state of the next page or null if this is the last page.
+		 */
+		ByteBuffer getNextPagingState() {
+			return nextPagingState;
+		}
+	}
+
+	/**
+	 * Everything that determines the result of a statement.
+	 */
+	static final class StatementKey {
+
+		private final String loggedKeyspace;
+		private final String keyspace;
+		private final String query;
+		private final Object values;
+		private final ConsistencyLevel consistencyLevel;
+		private final int fetchSize;
+		private final ByteBuffer pagingState;
+		private final int hash;
+
+		StatementKey(String loggedKeyspace, String keyspace, String query, Object values,
+				ConsistencyLevel consistencyLevel, int fetchSize, ByteBuffer pagingState) {
+			this.loggedKeyspace = loggedKeyspace;
+			this.keyspace = keyspace;
+			this.query = query;
+			this.values = values;
+			this.consistencyLevel = consistencyLevel;
+			this.fetchSize = fetchSize;
+			this.pagingState = pagingState;
+			hash = Objects.hash(loggedKeyspace, keyspace, query, values, consistencyLevel, fetchSize, pagingState);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof StatementKey)) {
+				return false;
+			}
+			final StatementKey other = (StatementKey) o;
+			return hash == other.hash && fetchSize == other.fetchSize && query.equals(other.query)
+					&& values.equals(other.values) && consistencyLevel == other.consistencyLevel
+					&& Objects.equals(loggedKeyspace, other.loggedKeyspace) && Objects.equals(keyspace, other.keyspace)
+					&& Objects.equals(pagingState, other.pagingState);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	static final class PageKey {
+
+		private final StatementKey statement;
+		private final ByteBuffer pagingState;
+
+		PageKey(StatementKey statement, ByteBuffer pagingState) {
+			this.statement = statement;
+			this.pagingState = pagingState;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PageKey)) {
+				return false;
+			}
+			final PageKey other = (PageKey) o;
+			return statement.equals(other.statement) && Objects.equals(pagingState, other.pagingState);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * statement.hashCode() + Objects.hashCode(pagingState);
+		}
+	}
+
+}
@@ -0,0 +1,368 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.PagingStateException;
+
+/**
+ * Append-only, memory-mapped log of paging checkpoints that lets a long query
+ * resume where it stopped after the process is restarted.
+ *
+ * A query executed with {@link #execute} under a scan ID appends a checkpoint
+ * every {@link #setCheckpointInterval(int) few pages}, when the consumer has read
+ * all fetched rows. The checkpoint holds the paging state of the next page, the ID
+ * of the host serving the query and the number of rows read so far. Executing
+ * the same statement under the same ID again starts from the last checkpoint
+ * and pins the query to the same host. Once all rows are read, the scan is
+ * marked as finished and a following execution starts from the beginning.
+ *
+ * Each record is written before its length, and carries a checksum, so
+ * a record torn by a crash is ignored when the log is opened. Writes go to
+ * the page cache and survive a crash of the process; {@link #close()} forces
+ * them to disk. When the log is opened, it is compacted to the last checkpoint of
+ * each unfinished scan, written to a new file that replaces the old one. A log
+ * is mapped in one piece, so it holds at most 2 GB of checkpoints between opens.
+ *
+ * Prefetched pages are not checkpointed until the consumer reads them, so with
+ * {@link PagingOptimizingOptions#setPrefetchDepth prefetching} enabled,
+ * checkpoints are written only when the consumer catches up with the fetched pages.
+ */
+public class PagingCheckpointLog implements Closeable {
+
+	private static final int HEADER_SIZE = 2 * Integer.BYTES;
+	private static final int MIN_CAPACITY = 1024 * 1024;
+	private static final int FINISHED = -1;
+	private static final UUID NO_HOST = new UUID(0, 0);
+
+	private final FileChannel channel;
+	private final Map<String, Checkpoint> checkpoints = new HashMap<>();
+	private MappedByteBuffer buffer;
+	private int position;
+	private int records;
+	private volatile int checkpointInterval = 10;
+
+	private PagingCheckpointLog(FileChannel channel) throws IOException {
+		this.channel = channel;
+		final long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			channel.close();
+			throw new IOException("Checkpoint log is too large to be mapped: " + size + " bytes");
+		}
+		map((int) Math.max(size, MIN_CAPACITY));
+		readRecords();
+	}
+
+	/**
+	 * Open the log stored in a given file, creating it if it doesn't exist, and
+	 * compact it if it holds checkpoints that were superseded.
+	 */
+	public static PagingCheckpointLog open(Path file) throws IOException {
+		final PagingCheckpointLog log = new PagingCheckpointLog(openChannel(file));
+		if (log.records == log.checkpoints.size()) {
+			return log;
+		}
+		final Path compacted = file.resolveSibling(file.getFileName() + ".compacted");
+		try {
+			Files.deleteIfExists(compacted);
+			try (final PagingCheckpointLog copy = new PagingCheckpointLog(openChannel(compacted))) {
+				for (Map.Entry<String, Checkpoint> entry : log.checkpoints.entrySet()) {
+					final Checkpoint checkpoint = entry.getValue();
+					copy.append(entry.getKey(), checkpoint.pagingState, checkpoint.hostId, checkpoint.rows);
+				}
+			}
+		} finally {
+			log.close();
+		}
+		Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new PagingCheckpointLog(openChannel(file));
+	}
+
+	private static FileChannel openChannel(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Set every how many pages a checkpoint is written. Defaults to 10.
+	 *
+	 * @return this {@code PagingCheckpointLog} instance.
+	 */
+	public PagingCheckpointLog setCheckpointInterval(int pages) {
+		if (pages < 1) {
+			throw new IllegalArgumentException("Checkpoint interval must be positive: " + pages);
+		}
+		checkpointInterval = pages;
+		return this;
+	}
+
+	/**
+	 * Returns the last checkpoint of a given scan or null if it has none or it is finished.
+	 */
+	public synchronized Checkpoint getCheckpoint(String scanId) {
+		return checkpoints.get(scanId);
+	}
+
+	/**
+	 * Execute a statement, resuming it from the last checkpoint of a given scan if there is one.
+	 *
+	 * The statement has to be the same, including bound values, as the one
+	 * that wrote the checkpoint; otherwise the paging state is rejected. The
+	 * statement itself is left as it is, so it can be executed again from
+	 * its own paging state.
+	 *
+	 * @param session a session of a cluster built by {@link ClusterOptimizer}.
+	 * @throws PagingStateException if the checkpoint was written by another statement.
+	 */
+	public ResultSet execute(Session session, String scanId, Statement statement) {
+		if (!(session instanceof PagingOptimizingSession)) {
+			throw new IllegalArgumentException("PagingCheckpointLog requires a session of a cluster built by ClusterOptimizer");
+		}
+		final Cluster cluster = session.getCluster();
+		final Checkpoint checkpoint = getCheckpoint(scanId);
+		ByteBuffer pagingState = null;
+		Host host = null;
+		long rows = 0;
+		if (checkpoint != null) {
+			pagingState = rawPagingState(checkpoint.pagingState, statement,
+					cluster.getConfiguration().getCodecRegistry());
+			host = findHost(cluster, checkpoint.getHostId());
+			rows = checkpoint.getRows();
+		}
+		return ((PagingOptimizingSession) session).execute(statement, pagingState, host,
+				new CheckpointingScan(this, scanId, rows, checkpointInterval));
+	}
+
+	/**
+	 * Returns the raw paging state held by a serialized {@link PagingState}, after
+	 * checking that it was issued for a given statement the way
+	 * {@link Statement#setPagingState(PagingState, CodecRegistry)} does. The
+	 * serialized form is the size of the raw state, the size of the hash, the raw
+	 * state, the hash and the protocol version, which may be absent.
+	 */
+	private static ByteBuffer rawPagingState(byte[] serialized, Statement statement, CodecRegistry codecRegistry) {
+		final ByteBuffer input = ByteBuffer.wrap(serialized);
+		final byte[] raw = new byte[input.getShort()];
+		final byte[] hash = new byte[input.getShort()];
+		input.get(raw).get(hash);
+		final ProtocolVersion protocolVersion = input.remaining() >= Short.BYTES
+				? ProtocolVersion.fromInt(input.getShort()) : ProtocolVersion.V2;
+		if (!Arrays.equals(hash, hash(statement, raw, protocolVersion, codecRegistry))) {
+			throw new PagingStateException("Paging state mismatch, "
+					+ "this means that the checkpoint was written by a different statement.");
+		}
+		return ByteBuffer.wrap(raw);
+	}
+
+	/**
+	 * Same hash as the driver's: MD5 of the query string, the values and the raw
+	 * paging state. The driver doesn't expose the statement wrapped by a
+	 * {@link com.datastax.driver.core.StatementWrapper}, so wrapped statements
+	 * can't be resumed.
+	 */
+	private static byte[] hash(Statement statement, byte[] raw, ProtocolVersion protocolVersion,
+			CodecRegistry codecRegistry) {
+		if (statement instanceof PagingOptimizingStatement) {
+			statement = ((PagingOptimizingStatement) statement).getWrapped();
+		}
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 isn't available", e);
+		}
+		if (statement instanceof BoundStatement) {
+			final BoundStatement bound = (BoundStatement) statement;
+			md.update(bound.preparedStatement().getQueryString().getBytes());
+			for (int i = 0; i < bound.preparedStatement().getVariables().size(); ++i) {
+				final ByteBuffer value = bound.getBytesUnsafe(i);
+				if (value != null) {
+					md.update(value);
+				}
+			}
+		} else if (statement instanceof RegularStatement) {
+			final RegularStatement regular = (RegularStatement) statement;
+			md.update(regular.getQueryString().getBytes());
+			final ByteBuffer[] values = regular.getValues(protocolVersion, codecRegistry);
+			if (values != null) {
+				for (ByteBuffer value : values) {
+					md.update(value.duplicate());
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("Can't resume " + statement.getClass().getSimpleName());
+		}
+		md.update(raw);
+		return md.digest();
+	}
+
+	private static Host findHost(Cluster cluster, UUID hostId) {
+		if (hostId == null) {
+			return null;
+		}
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			if (hostId.equals(host.getHostId())) {
+				return host;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Append a checkpoint of a scan. A null paging state marks the scan as finished.
+	 * The host ID may be null if the host's ID isn't known.
+	 */
+	synchronized void append(String scanId, byte[] pagingState, UUID hostId, long rows) {
+		final byte[] id = scanId.getBytes(StandardCharsets.UTF_8);
+		final int length = Short.BYTES + id.length + 3 * Long.BYTES + Integer.BYTES
+				+ (pagingState != null ? pagingState.length : 0);
+		ensureCapacity(HEADER_SIZE + length);
+		final ByteBuffer body = buffer.duplicate();
+		body.position(position + HEADER_SIZE);
+		body.putShort((short) id.length).put(id);
+		final UUID writtenHostId = hostId != null ? hostId : NO_HOST;
+		body.putLong(writtenHostId.getMostSignificantBits()).putLong(writtenHostId.getLeastSignificantBits());
+		body.putLong(rows);
+		if (pagingState != null) {
+			body.putInt(pagingState.length).put(pagingState);
+		} else {
+			body.putInt(FINISHED);
+		}
+		buffer.putInt(position + Integer.BYTES, checksum(position + HEADER_SIZE, length));
+		buffer.putInt(position, length);
+		position += HEADER_SIZE + length;
+		records++;
+		if (pagingState != null) {
+			checkpoints.put(scanId, new Checkpoint(pagingState, hostId, rows));
+		} else {
+			checkpoints.remove(scanId);
+		}
+	}
+
+	private void readRecords() {
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			final int length = buffer.getInt(position);
+			if (length <= 0 || (long) position + HEADER_SIZE + length > buffer.capacity()
+					|| buffer.getInt(position + Integer.BYTES) != checksum(position + HEADER_SIZE, length)) {
+				return;
+			}
+			final ByteBuffer body = buffer.duplicate();
+			body.position(position + HEADER_SIZE);
+			final byte[] id = new byte[body.getShort()];
+			body.get(id);
+			final UUID readHostId = new UUID(body.getLong(), body.getLong());
+			final UUID hostId = readHostId.equals(NO_HOST) ? null : readHostId;
+			final long rows = body.getLong();
+			final int pagingStateLength = body.getInt();
+			final String scanId = new String(id, StandardCharsets.UTF_8);
+			if (pagingStateLength == FINISHED) {
+				checkpoints.remove(scanId);
+			} else {
+				final byte[] pagingState = new byte[pagingStateLength];
+				body.get(pagingState);
+				checkpoints.put(scanId, new Checkpoint(pagingState, hostId, rows));
+			}
+			position += HEADER_SIZE + length;
+			records++;
+		}
+	}
+
+	private int checksum(int offset, int length) {
+		final ByteBuffer body = buffer.duplicate();
+		body.position(offset).limit(offset + length);
+		final CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	private void ensureCapacity(int recordSize) {
+		final long required = (long) position + recordSize + HEADER_SIZE;
+		if (required > buffer.capacity()) {
+			if (required > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Checkpoint log is full, reopen it to compact it");
+			}
+			try {
+				map((int) Math.min(Integer.MAX_VALUE, Math.max(2L * buffer.capacity(), required)));
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't grow checkpoint log", e);
+			}
+		}
+	}
+
+	private void map(int capacity) throws IOException {
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+	/**
+	 * Position of a scan from which it can be resumed.
+	 */
+	public static class Checkpoint {
+
+		private final byte[] pagingState;
+		private final UUID hostId;
+		private final long rows;
+
+		Checkpoint(byte[] pagingState, UUID hostId, long rows) {
+			this.pagingState = pagingState;
+			this.hostId = hostId;
+			this.rows = rows;
+		}
+
+		/**
+		 * Returns the paging state of the first page that wasn't read.
+		 */
+		public PagingState getPagingState() {
+			return PagingState.fromBytes(pagingState);
+		}
+
+		/**
+		 * Returns the ID of the host that served the last page before the checkpoint,
+		 * or null if it wasn't known.
+		 */
+		public UUID getHostId() {
+			return hostId;
+		}
+
+		/**
+		 * Returns the number of rows read before the checkpoint.
+		 */
+		public long getRows() {
+			return rows;
+		}
+	}
+
+}
@@ -4,48 +4,192 @@
 
 package com.scylladb.driver.tools;
 
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
+import com.datastax.driver.core.CloseFuture;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metrics;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.Policies;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 class PagingOptimizingCluster extends Cluster {
 	
-	PagingOptimizingCluster(final Cluster.Builder builder,
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics pagingOptimizingMetrics;
+	private final PageCache pageCache;
+	private final PageCoalescer pageCoalescer;
+	private final FetchSizeController fetchSizeController;
+	private final ConditionalStatements conditionalStatements;
+	private final PreparedStatementRegistry preparedStatements;
+	private final PoolWarmer poolWarmer;
+	private final RoutingTracer routingTracer;
+
+	PagingOptimizingCluster(final Cluster.Builder builder, final PagingOptimizingOptions options,
 			final Function<LoadBalancingPolicy, LoadBalancingPolicy> loadBalancingPolicyDecorator) {
-		super(addPagingOptimizingLoadBalancingPolicies(builder, loadBalancingPolicyDecorator));
-		register(new PagingOptimizingLatencyTracker());
+		this(builder, options, loadBalancingPolicyDecorator, new PagingOptimizingMetrics(),
+				new RoutingTracer(options.getRoutingTraceBufferSize()));
 	}
-	
-	private static Cluster.Builder addPagingOptimizingLoadBalancingPolicies(final Cluster.Builder builder,
-			final Function<LoadBalancingPolicy, LoadBalancingPolicy> loadBalancingPolicyDecorator) {
-		final LoadBalancingPolicy loadBalancingPolicy =
-				builder.getConfiguration().getPolicies().getLoadBalancingPolicy();
-		final PagingOptimizingLoadBalancingPolicy pageOptimizingLoadBalancingPolicy =
-				new PagingOptimizingLoadBalancingPolicy(loadBalancingPolicy);
 
-		builder.withLoadBalancingPolicy(loadBalancingPolicyDecorator != null
-				? loadBalancingPolicyDecorator.apply(pageOptimizingLoadBalancingPolicy)
-				: pageOptimizingLoadBalancingPolicy);
-		return builder;
+	private PagingOptimizingCluster(final Cluster.Builder builder, final PagingOptimizingOptions options,
+			final Function<LoadBalancingPolicy, LoadBalancingPolicy> loadBalancingPolicyDecorator,
+			final PagingOptimizingMetrics pagingOptimizingMetrics, final RoutingTracer routingTracer) {
+		super(addPagingOptimizingLoadBalancingPolicies(builder, options, loadBalancingPolicyDecorator,
+				pagingOptimizingMetrics, routingTracer));
+		this.options = options;
+		this.pagingOptimizingMetrics = pagingOptimizingMetrics;
+		this.routingTracer = routingTracer;
+		pageCache = new PageCache(this, options, pagingOptimizingMetrics);
+		pageCoalescer = new PageCoalescer(this, options, pagingOptimizingMetrics, pageCache);
+		fetchSizeController = new FetchSizeController(this, options, pagingOptimizingMetrics);
+		conditionalStatements = new ConditionalStatements(this);
+		preparedStatements = new PreparedStatementRegistry(options, pagingOptimizingMetrics);
+		poolWarmer = new PoolWarmer(this, options, pagingOptimizingMetrics);
+		register(new PagingOptimizingLatencyTracker(pagingOptimizingMetrics, fetchSizeController, routingTracer));
 	}
-	
+
+	/**
+	 * Driver metrics are created when the cluster is initialized, so this is
+	 * where the paging optimization metrics are added to them.
+	 */
 	@Override
-	public Session connect() {
-		return new PagingOptimizingSession(this, super.connect());
+	public Cluster init() {
+		super.init();
+		final Metrics driverMetrics = getMetrics();
+		if (driverMetrics != null) {
+			pagingOptimizingMetrics.exportTo(driverMetrics.getRegistry());
+		}
+		return this;
 	}
 	
-	@Override
-	public Session connect(final String keyspace) {
-		return new PagingOptimizingSession(this, super.connect(keyspace));
+	/**
+	 * Returns the builder's configuration with the paging optimizing policies wrapping
+	 * its own. The builder itself isn't modified, so building another cluster from it
+	 * wraps its original policies again. The speculative execution policy is wrapped
+	 * only if speculative page fetches or page retries, whose pages must not be
+	 * speculated, are enabled, and the retry policy only if page retries or
+	 * lightweight transaction routing, whose retries it counts, are enabled.
+	 */
+	private static Cluster.Initializer addPagingOptimizingLoadBalancingPolicies(final Cluster.Builder builder,
+			final PagingOptimizingOptions options,
+			final Function<LoadBalancingPolicy, LoadBalancingPolicy> loadBalancingPolicyDecorator,
+			final PagingOptimizingMetrics pagingOptimizingMetrics, final RoutingTracer routingTracer) {
+		final Configuration configuration = builder.getConfiguration();
+		final Policies policies = configuration.getPolicies();
+		final PagingOptimizingLoadBalancingPolicy pageOptimizingLoadBalancingPolicy =
+				new PagingOptimizingLoadBalancingPolicy(policies.getLoadBalancingPolicy(), options,
+						pagingOptimizingMetrics, routingTracer);
+		final boolean pageRetries = options.getPageRetryLimit() > 0;
+
+		final Policies.Builder optimizedPolicies = Policies.builder()
+				.withLoadBalancingPolicy(loadBalancingPolicyDecorator != null
+						? loadBalancingPolicyDecorator.apply(pageOptimizingLoadBalancingPolicy)
+						: pageOptimizingLoadBalancingPolicy)
+				.withReconnectionPolicy(policies.getReconnectionPolicy())
+				.withAddressTranslator(policies.getAddressTranslator())
+				.withTimestampGenerator(policies.getTimestampGenerator())
+				.withSpeculativeExecutionPolicy(options.isSpeculativePageFetchEnabled() || pageRetries
+						? new PagingSpeculativeExecutionPolicy(policies.getSpeculativeExecutionPolicy(), options)
+						: policies.getSpeculativeExecutionPolicy())
+				.withRetryPolicy(pageRetries || options.isLwtRoutingEnabled()
+						? new PagingRetryPolicy(policies.getRetryPolicy(), pagingOptimizingMetrics)
+						: policies.getRetryPolicy());
+		final Configuration optimizedConfiguration = Configuration.builder()
+				.withPolicies(optimizedPolicies.build())
+				.withProtocolOptions(configuration.getProtocolOptions())
+				.withPoolingOptions(configuration.getPoolingOptions())
+				.withSocketOptions(configuration.getSocketOptions())
+				.withMetricsOptions(configuration.getMetricsOptions())
+				.withQueryOptions(configuration.getQueryOptions())
+				.withThreadingOptions(configuration.getThreadingOptions())
+				.withNettyOptions(configuration.getNettyOptions())
+				.withCodecRegistry(configuration.getCodecRegistry())
+				.build();
+		return new Cluster.Initializer() {
+
+			@Override
+			public String getClusterName() {
+				return builder.getClusterName();
+			}
+
+			@Override
+			public List<InetSocketAddress> getContactPoints() {
+				return builder.getContactPoints();
+			}
+
+			@Override
+			public Configuration getConfiguration() {
+				return optimizedConfiguration;
+			}
+
+			@Override
+			public Collection<Host.StateListener> getInitialListeners() {
+				return builder.getInitialListeners();
+			}
+		};
+	}
+
+	PagingOptimizingOptions getPagingOptimizingOptions() {
+		return options;
 	}
 	
+	PagingOptimizingMetrics getPagingOptimizingMetrics() {
+		return pagingOptimizingMetrics;
+	}
+
+	/**
+	 * Pages cached by all sessions of this cluster.
+	 */
+	PageCache getPageCache() {
+		return pageCache;
+	}
+
+	/**
+	 * Requests of pages shared by all sessions of this cluster.
+	 */
+	PageCoalescer getPageCoalescer() {
+		return pageCoalescer;
+	}
+
+	/**
+	 * Fetch sizes adjusted for statements of all sessions of this cluster.
+	 */
+	FetchSizeController getFetchSizeController() {
+		return fetchSizeController;
+	}
+
+	/**
+	 * Lightweight transactions detected in all sessions of this cluster.
+	 */
+	ConditionalStatements getConditionalStatements() {
+		return conditionalStatements;
+	}
+
+	/**
+	 * Statements prepared by all sessions of this cluster.
+	 */
+	PreparedStatementRegistry getPreparedStatements() {
+		return preparedStatements;
+	}
+
+	/**
+	 * Routing decisions of pages of all sessions of this cluster.
+	 */
+	RoutingTracer getRoutingTracer() {
+		return routingTracer;
+	}
+
 	private class ConnectFuture implements ListenableFuture<Session> {
 		
 		private final ListenableFuture<Session> parentFuture;
@@ -89,13 +233,36 @@ class PagingOptimizingCluster extends Cluster {
 	}
 	
 	@Override
-	public ListenableFuture<Session> connectAsync() {
-		return new ConnectFuture(super.connectAsync());
+	public CloseFuture closeAsync() {
+		preparedStatements.close();
+		return super.closeAsync();
 	}
-	
+
+	/**
+	 * Also waits until registered prepared statements are saved.
+	 */
+	@Override
+	public void close() {
+		super.close();
+		preparedStatements.awaitClosed();
+	}
+
+	/**
+	 * All other connect methods of {@link Cluster} delegate to this one,
+	 * so it is the only one that wraps the session. With warm-up enabled,
+	 * the session is returned once its connection pools are warmed up and
+	 * it has prepared the statements of its keyspace registered in previous runs.
+	 */
 	@Override
 	public ListenableFuture<Session> connectAsync(final String keyspace) {
-		return new ConnectFuture(super.connectAsync(keyspace));
+		ListenableFuture<Session> connected = super.connectAsync(keyspace);
+		if (options.isPoolWarmUpEnabled()) {
+			connected = Futures.transformAsync(connected, poolWarmer::warmUp);
+		}
+		if (options.isPreparedStatementWarmUpEnabled()) {
+			connected = Futures.transformAsync(connected, preparedStatements::warmUp);
+		}
+		return new ConnectFuture(connected);
 	}
 	
 }
@@ -4,21 +4,63 @@
 
 package com.scylladb.driver.tools;
 
+import java.util.Set;
+
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Host;
 import com.datastax.driver.core.LatencyTracker;
 import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
 
 class PagingOptimizingLatencyTracker implements LatencyTracker {
 
+	private final PagingOptimizingMetrics metrics;
+	private final FetchSizeController fetchSizes;
+	private final RoutingTracer tracer;
+
+	PagingOptimizingLatencyTracker(PagingOptimizingMetrics metrics, FetchSizeController fetchSizes,
+			RoutingTracer tracer) {
+		this.metrics = metrics;
+		this.fetchSizes = fetchSizes;
+		this.tracer = tracer;
+	}
+
 	@Override
 	public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
-		if (statement instanceof PagingOptimizingStatement) {
+		if (!(statement instanceof PagingOptimizingStatement)) {
+			if (exception == null) {
+				metrics.getUnpagedLatency(host).update(newLatencyNanos);
+			}
+		} else {
 			final PagingOptimizingStatement optimizingStatement = (PagingOptimizingStatement) statement;
+			final Host lastHost = optimizingStatement.getLastHost();
+			final RoutingTracer.Decision decision = optimizingStatement.getRoutingDecision();
+			if (decision != null) {
+				tracer.record(decision, host, exception, newLatencyNanos);
+				if (exception == null) {
+					optimizingStatement.removeRoutingDecision(decision);
+				}
+			}
+			if (optimizingStatement.isConditional() && exception instanceof WriteTimeoutException
+					&& ((WriteTimeoutException) exception).getWriteType() == WriteType.CAS) {
+				metrics.getLwtContentions().inc();
+			}
+			final FetchSizeController.Shape shape = optimizingStatement.getShape();
+			if (shape != null) {
+				adjustFetchSize(optimizingStatement, shape, exception, newLatencyNanos);
+			}
 			if (exception == null) {
+				(optimizingStatement.getPages() > 1
+						? metrics.getPagedLatency(host)
+						: metrics.getUnpagedLatency(host)).update(newLatencyNanos);
+				if (lastHost != null) {
+					recordPinnedPage(optimizingStatement, host);
+				}
 				optimizingStatement.setLastHost(host);
 			} else {
-				final Host lastHost = optimizingStatement.getLastHost();
 				if (lastHost != null && lastHost.equals(host)) {
 					optimizingStatement.setLastHost(null);
 				}
@@ -26,6 +68,23 @@ class PagingOptimizingLatencyTracker implements LatencyTracker {
 		}
 	}
 
+	private void adjustFetchSize(PagingOptimizingStatement statement, FetchSizeController.Shape shape,
+			Exception exception, long latencyNanos) {
+		final int fetchSize = statement.getRequestedFetchSize();
+		if (exception == null) {
+			fetchSizes.onPage(shape, fetchSize, latencyNanos);
+		} else if (exception instanceof OperationTimedOutException || exception instanceof ReadTimeoutException) {
+			fetchSizes.onTimeout(shape, fetchSize);
+		}
+	}
+
+	private void recordPinnedPage(PagingOptimizingStatement statement, Host host) {
+		final Set<Host> replicas = statement.getReplicas();
+		if (replicas != null && !replicas.isEmpty() && !replicas.contains(host)) {
+			metrics.getNonReplicaPinnedPages().inc();
+		}
+	}
+
 	@Override
 	public void onRegister(Cluster cluster) {
 	}
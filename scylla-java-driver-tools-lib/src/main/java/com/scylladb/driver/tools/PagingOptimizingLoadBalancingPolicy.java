@@ -4,29 +4,93 @@
 
 package com.scylladb.driver.tools;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.Host;
 import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.RegularStatement;
 import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TokenRange;
 import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterators;
 
 class PagingOptimizingLoadBalancingPolicy implements LoadBalancingPolicy {
-	
+
+	private static final int MAX_QUERIES = 10000;
+	private static final CqlQuery NOT_SELECT = CqlQuery.parse("");
+
 	private final LoadBalancingPolicy wrapped;
-	private volatile CopyOnWriteArrayList<Host> hosts;
+	private final PagingOptimizingOptions options;
+	private final AtomicInteger replicaIndex = new AtomicInteger();
+	private final Set<Host> hosts = ConcurrentHashMap.newKeySet();
+	private final Set<Host> warmingUpHosts = ConcurrentHashMap.newKeySet();
+	private final PagingOptimizingMetrics metrics;
+	private final HostLatencyScores scores;
+	private final HostConcurrencyLimiter limiter;
+	private final RoutingTracer tracer;
+	private volatile Cluster cluster;
+	/**
+	 * Parsed SELECTs of prepared statements, kept until the prepared statement is
+	 * garbage collected, and of query strings, so that statements without a routing
+	 * key are parsed once. Other queries are cached as {@link #NOT_SELECT}.
+	 */
+	private final LoadingCache<PreparedStatement, CqlQuery> preparedSelects = CacheBuilder.newBuilder()
+			.weakKeys()
+			.maximumSize(MAX_QUERIES)
+			.build(new CacheLoader<PreparedStatement, CqlQuery>() {
+				@Override
+				public CqlQuery load(PreparedStatement statement) {
+					return parseSelect(statement.getQueryString());
+				}
+			});
+	private final LoadingCache<String, CqlQuery> selects = CacheBuilder.newBuilder()
+			.maximumSize(MAX_QUERIES)
+			.build(new CacheLoader<String, CqlQuery>() {
+				@Override
+				public CqlQuery load(String query) {
+					return parseSelect(query);
+				}
+			});
 
-	PagingOptimizingLoadBalancingPolicy(LoadBalancingPolicy loadBalancingPolicy) {
+	PagingOptimizingLoadBalancingPolicy(LoadBalancingPolicy loadBalancingPolicy, PagingOptimizingOptions options,
+			PagingOptimizingMetrics metrics, RoutingTracer tracer) {
 		wrapped = loadBalancingPolicy;
+		this.options = options;
+		this.metrics = metrics;
+		this.tracer = tracer;
+		scores = new HostLatencyScores(options);
+		limiter = new HostConcurrencyLimiter(options);
 	}
 	
 	@Override
 	public void init(Cluster cluster, Collection<Host> hosts) {
-		this.hosts = new CopyOnWriteArrayList<>(hosts);
+		this.cluster = cluster;
+		this.hosts.addAll(hosts);
 		wrapped.init(cluster, hosts);
+		cluster.register(scores);
+		cluster.register(limiter);
+		cluster.register(new Readmission());
+	}
+
+	HostConcurrencyLimiter getConcurrencyLimiter() {
+		return limiter;
 	}
 
 	@Override
@@ -34,77 +98,322 @@ class PagingOptimizingLoadBalancingPolicy implements LoadBalancingPolicy {
 		return wrapped.distance(host);
 	}
 	
-	private class WithFirstIterator implements Iterator<Host> {
-
-		private Host firstToReturn;
-		private final Iterator<Host> wrapped;
+	@Override
+	public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+		if (!(statement instanceof PagingOptimizingStatement)) {
+			return wrapped.newQueryPlan(loggedKeyspace, statement);
+		}
+		
+		final PagingOptimizingStatement optimizingStatement =
+				(PagingOptimizingStatement) statement; 
 		
-		public WithFirstIterator(Host host, Iterator<Host> iterator) {
-			firstToReturn = host;
-			wrapped = iterator;
+		optimizingStatement.incrementPages();
+
+		if (optimizingStatement.isConditional()) {
+			final Iterator<Host> plan = lwtPlan(loggedKeyspace, optimizingStatement);
+			if (plan != null) {
+				return plan;
+			}
 		}
+
+		final Host lastHost = optimizingStatement.getLastHost();
 		
-		@Override
-		public boolean hasNext() {
-			return wrapped.hasNext() || hasValidFirstToReturn();
+		if (lastHost != null) {
+			final Set<Host> replicas = resolveReplicas(loggedKeyspace, optimizingStatement);
+			final boolean live = hosts.contains(lastHost);
+			if (live && options.isLatencyAwareStickinessEnabled() && scores.isSlow(lastHost)) {
+				final Host faster = chooseFasterHost(loggedKeyspace, optimizingStatement, replicas);
+				if (faster != null) {
+					trace(optimizingStatement, lastHost, faster, RoutingReason.SLOW_HOST);
+					return pinnedPlan(loggedKeyspace, optimizingStatement, faster, true);
+				}
+			}
+			if (live && options.isConcurrencyLimitingEnabled() && limiter.isSaturated(lastHost)) {
+				final Host lessLoaded = chooseLessLoadedHost(loggedKeyspace, optimizingStatement, replicas);
+				if (lessLoaded != null) {
+					metrics.getConcurrencyLimitedPages().inc();
+					trace(optimizingStatement, lastHost, lessLoaded, RoutingReason.SATURATED_HOST);
+					return pinnedPlan(loggedKeyspace, optimizingStatement, lessLoaded, true);
+				}
+			}
+			if (live) {
+				trace(optimizingStatement, lastHost, lastHost, RoutingReason.STICKY);
+			} else {
+				trace(optimizingStatement, lastHost, null, RoutingReason.PINNED_HOST_DOWN);
+			}
+			return pinnedPlan(loggedKeyspace, optimizingStatement, lastHost, live);
 		}
 
-		@Override
-		public Host next() {
-			if (hasValidFirstToReturn()) {
-				final Host result = firstToReturn;
-				firstToReturn = null;
-				return result;
+		if (options.isReplicaPinningEnabled()) {
+			final Host replica = chooseReplica(loggedKeyspace, optimizingStatement);
+			if (replica != null) {
+				trace(optimizingStatement, null, replica, RoutingReason.REPLICA);
+				return pinnedPlan(loggedKeyspace, optimizingStatement, replica, true);
 			}
-			return wrapped.next();
 		}
-		
-		private boolean hasValidFirstToReturn() {
-			if (firstToReturn == null) {
-				return false;
+
+		trace(optimizingStatement, null, null, RoutingReason.WRAPPED_POLICY);
+		return wrapped.newQueryPlan(loggedKeyspace, statement);
+	}
+
+	/**
+	 * Plan of a lightweight transaction: the replicas of its partition that are up and
+	 * local, in ring order, followed by the rest of the wrapped policy's plan. Returns
+	 * null if there are no such replicas.
+	 *
+	 * The order doesn't depend on the wrapped policy, which may shuffle replicas, so
+	 * all transactions of a partition are coordinated by the same replica and fail over
+	 * to the same next one.
+	 */
+	private Iterator<Host> lwtPlan(String loggedKeyspace, PagingOptimizingStatement statement) {
+		final Set<Host> replicas = resolveReplicas(loggedKeyspace, statement);
+		final List<Host> plan = new ArrayList<>(replicas.size());
+		for (Host replica : replicas) {
+			if (hosts.contains(replica) && wrapped.distance(replica) == HostDistance.LOCAL) {
+				plan.add(replica);
 			}
-			return hosts.contains(firstToReturn);
 		}
-		
+		if (plan.isEmpty()) {
+			return null;
+		}
+		trace(statement, null, plan.get(0), RoutingReason.LWT_REPLICA);
+		return Iterators.concat(plan.iterator(),
+				Iterators.filter(wrapped.newQueryPlan(loggedKeyspace, statement), host -> !plan.contains(host)));
 	}
 
-	@Override
-	public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
-		final Iterator<Host> inner = wrapped.newQueryPlan(loggedKeyspace, statement);
-		
-		if (!(statement instanceof PagingOptimizingStatement)) {
-			return inner;
+	/**
+	 * Keep the routing decision about the statement's current page, so that its requests
+	 * are traced when they complete, if tracing is enabled.
+	 */
+	private void trace(PagingOptimizingStatement statement, Host pinned, Host chosen, RoutingReason reason) {
+		if (tracer.isEnabled()) {
+			statement.addRoutingDecision(tracer.decide(statement, pinned, chosen, reason));
+		} else {
+			statement.clearRoutingDecisions();
 		}
-		
-		final PagingOptimizingStatement optimizingStatement =
-				(PagingOptimizingStatement) statement; 
-		
-		final Host lastHost = optimizingStatement.getLastHost();
-		
-		return lastHost == null ? inner : new WithFirstIterator(lastHost, inner);
 	}
 
+	/**
+	 * Returns the statement's plan pinned to a given host, counting the request
+	 * against the host's concurrency limit if it is up.
+	 */
+	private Iterator<Host> pinnedPlan(String loggedKeyspace, PagingOptimizingStatement statement, Host host,
+			boolean live) {
+		if (live && options.isConcurrencyLimitingEnabled()) {
+			limiter.acquire(statement, host);
+		}
+		return statement.getPlan(wrapped, options).reset(loggedKeyspace, host, live);
+	}
+
+	/**
+	 * Resolve replicas of the statement's routing key, once per statement,
+	 * so that they can be checked against the hosts serving its pages.
+	 */
+	private Set<Host> resolveReplicas(String loggedKeyspace, PagingOptimizingStatement statement) {
+		Set<Host> replicas = statement.getReplicas();
+		if (replicas == null) {
+			final String keyspace = keyspace(loggedKeyspace, statement);
+			final ByteBuffer routingKey = statement.getRoutingKey(protocolVersion(), codecRegistry());
+			replicas = keyspace == null || routingKey == null
+					? Collections.<Host>emptySet()
+					: cluster.getMetadata().getReplicas(Metadata.quote(keyspace), routingKey);
+			statement.setReplicas(replicas);
+		}
+		return replicas;
+	}
+
+	/**
+	 * Choose a replica to serve the first page. Replicas are tried in turns
+	 * so that load is spread between them. Only hosts that are up and local
+	 * according to the wrapped policy are considered. Range scans, which have
+	 * no routing key, go to replicas of the range where they start; other
+	 * statements without a routing key are left to the wrapped policy.
+	 */
+	private Host chooseReplica(String loggedKeyspace, PagingOptimizingStatement statement) {
+		Set<Host> replicas = resolveReplicas(loggedKeyspace, statement);
+		if (replicas.isEmpty()) {
+			replicas = ringStartReplicas(rangeScanKeyspace(loggedKeyspace, statement));
+		}
+		final int size = replicas.size();
+		if (size == 0) {
+			return null;
+		}
+		final int start = Math.floorMod(replicaIndex.getAndIncrement(), size);
+		Host firstValid = null;
+		int i = 0;
+		for (Host replica : replicas) {
+			if (hosts.contains(replica) && wrapped.distance(replica) == HostDistance.LOCAL) {
+				if (i >= start) {
+					return replica;
+				}
+				if (firstValid == null) {
+					firstValid = replica;
+				}
+			}
+			++i;
+		}
+		return firstValid;
+	}
+
+	/**
+	 * Choose a host to take over the following pages of a statement from its slow
+	 * pinned host: the replica with the smallest average latency that is neither slow
+	 * nor remote, or the first host of the wrapped policy's plan that is not slow
+	 * if the statement has no known replicas.
+	 */
+	private Host chooseFasterHost(String loggedKeyspace, PagingOptimizingStatement statement, Set<Host> replicas) {
+		if (replicas.isEmpty()) {
+			final Iterator<Host> plan = wrapped.newQueryPlan(loggedKeyspace, statement);
+			while (plan.hasNext()) {
+				final Host host = plan.next();
+				if (!scores.isSlow(host)) {
+					return host;
+				}
+			}
+			return null;
+		}
+		Host fastest = null;
+		long fastestAverage = Long.MAX_VALUE;
+		for (Host replica : replicas) {
+			if (hosts.contains(replica) && wrapped.distance(replica) == HostDistance.LOCAL && !scores.isSlow(replica)) {
+				final long average = scores.getAverage(replica);
+				final long comparedAverage = average >= 0 ? average : Long.MAX_VALUE;
+				if (fastest == null || comparedAverage < fastestAverage) {
+					fastest = replica;
+					fastestAverage = comparedAverage;
+				}
+			}
+		}
+		return fastest;
+	}
+
+	/**
+	 * Choose a host to take over the following pages of a statement from its pinned
+	 * host when that one is saturated: the replica using the smallest part of its
+	 * concurrency limit that is neither saturated nor remote, or the first host of the
+	 * wrapped policy's plan that is not saturated if the statement has no known replicas.
+	 */
+	private Host chooseLessLoadedHost(String loggedKeyspace, PagingOptimizingStatement statement,
+			Set<Host> replicas) {
+		if (replicas.isEmpty()) {
+			final Iterator<Host> plan = wrapped.newQueryPlan(loggedKeyspace, statement);
+			while (plan.hasNext()) {
+				final Host host = plan.next();
+				if (!limiter.isSaturated(host)) {
+					return host;
+				}
+			}
+			return null;
+		}
+		Host leastLoaded = null;
+		double leastLoad = Double.MAX_VALUE;
+		for (Host replica : replicas) {
+			if (hosts.contains(replica) && wrapped.distance(replica) == HostDistance.LOCAL
+					&& !limiter.isSaturated(replica)) {
+				final double load = limiter.load(replica);
+				if (leastLoaded == null || load < leastLoad) {
+					leastLoaded = replica;
+					leastLoad = load;
+				}
+			}
+		}
+		return leastLoaded;
+	}
+
+	/**
+	 * Returns the keyspace of the table a statement scans, or null if it isn't a range scan.
+	 * Queries are parsed once, but whether they scan a range is checked against
+	 * the current schema every time.
+	 */
+	private String rangeScanKeyspace(String loggedKeyspace, PagingOptimizingStatement statement) {
+		final Statement wrappedStatement = statement.getWrapped();
+		final CqlQuery parsed;
+		if (wrappedStatement instanceof BoundStatement) {
+			parsed = preparedSelects.getUnchecked(((BoundStatement) wrappedStatement).preparedStatement());
+		} else if (wrappedStatement instanceof RegularStatement) {
+			parsed = selects.getUnchecked(((RegularStatement) wrappedStatement).getQueryString(codecRegistry()));
+		} else {
+			return null;
+		}
+		if (parsed == NOT_SELECT) {
+			return null;
+		}
+		final String defaultKeyspace = keyspace(loggedKeyspace, statement);
+		return parsed.isRangeScan(defaultKeyspace, cluster.getMetadata()) ? parsed.getSelectKeyspace(defaultKeyspace)
+				: null;
+	}
+
+	private static CqlQuery parseSelect(String query) {
+		return CqlQuery.maybeSelect(query) ? CqlQuery.parse(query) : NOT_SELECT;
+	}
+
+	/**
+	 * Replicas of the token range that wraps around the ring, i.e. the range containing
+	 * the smallest tokens, where a range scan starts reading.
+	 */
+	private Set<Host> ringStartReplicas(String keyspace) {
+		if (keyspace == null) {
+			return Collections.emptySet();
+		}
+		final Metadata metadata = cluster.getMetadata();
+		for (TokenRange range : metadata.getTokenRanges()) {
+			if (range.isWrappedAround() || range.getStart().equals(range.getEnd())) {
+				return metadata.getReplicas(Metadata.quote(keyspace), range);
+			}
+		}
+		return Collections.emptySet();
+	}
+
+	private static String keyspace(String loggedKeyspace, Statement statement) {
+		final String keyspace = statement.getKeyspace();
+		return keyspace != null ? keyspace : loggedKeyspace;
+	}
+
+	private ProtocolVersion protocolVersion() {
+		return cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+	}
+
+	private CodecRegistry codecRegistry() {
+		return cluster.getConfiguration().getCodecRegistry();
+	}
+
+	/**
+	 * With prepared statement warm-up enabled, a host that is added or comes up
+	 * gets pinned pages only once {@link Readmission} is notified.
+	 */
 	@Override
 	public void onAdd(Host host) {
-		hosts.addIfAbsent(host);
+		if (options.isPreparedStatementWarmUpEnabled()) {
+			warmingUpHosts.add(host);
+		} else {
+			hosts.add(host);
+		}
 		wrapped.onAdd(host);
 	}
 
 	@Override
 	public void onUp(Host host) {
-		hosts.addIfAbsent(host);
+		if (options.isPreparedStatementWarmUpEnabled()) {
+			warmingUpHosts.add(host);
+		} else {
+			hosts.add(host);
+		}
 		wrapped.onUp(host);
 	}
 
 	@Override
 	public void onDown(Host host) {
 		hosts.remove(host);
+		warmingUpHosts.remove(host);
 		wrapped.onDown(host);
 	}
 
 	@Override
 	public void onRemove(Host host) {
 		hosts.remove(host);
+		warmingUpHosts.remove(host);
+		scores.remove(host);
+		limiter.remove(host);
 		wrapped.onRemove(host);
 	}
 
@@ -112,4 +421,46 @@ class PagingOptimizingLoadBalancingPolicy implements LoadBalancingPolicy {
 	public void close() {
 		wrapped.close();
 	}
+
+	/**
+	 * Puts hosts that were added or came up back in use for pinned pages. The driver
+	 * notifies state listeners after it has prepared the known statements on a host
+	 * and opened its connection pools, while load balancing policies are notified
+	 * before that.
+	 */
+	private class Readmission implements Host.StateListener {
+
+		@Override
+		public void onAdd(Host host) {
+			readmit(host);
+		}
+
+		@Override
+		public void onUp(Host host) {
+			readmit(host);
+		}
+
+		private void readmit(Host host) {
+			if (warmingUpHosts.remove(host)) {
+				hosts.add(host);
+				metrics.getWarmedUpHosts().inc();
+			}
+		}
+
+		@Override
+		public void onDown(Host host) {
+		}
+
+		@Override
+		public void onRemove(Host host) {
+		}
+
+		@Override
+		public void onRegister(Cluster cluster) {
+		}
+
+		@Override
+		public void onUnregister(Cluster cluster) {
+		}
+	}
 }
@@ -0,0 +1,397 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.RatioGauge;
+import com.datastax.driver.core.Host;
+
+/**
+ * Metrics of the paging optimization.
+ *
+ * When driver metrics are enabled, all metrics are registered in the driver's
+ * {@link com.datastax.driver.core.Metrics#getRegistry() registry} and are reported
+ * to JMX together with the driver's own metrics.
+ *
+ * Counters are striped and histograms are backed by HdrHistogram recorders,
+ * so recording doesn't block or allocate on the request path.
+ */
+public class PagingOptimizingMetrics {
+
+	static final String PREFIX = "paging-optimizer.";
+
+	private final MetricRegistry registry = new MetricRegistry();
+	private boolean exported;
+	private final Counter nonReplicaPinnedPages = new Counter();
+	private final Counter pinnedPages = new Counter();
+	private final Counter stickyPages = new Counter();
+	private final Counter fallbacks = new Counter();
+	private final Counter sameRackFallbacks = new Counter();
+	private final Counter sameDatacenterFallbacks = new Counter();
+	private final Counter remoteFallbacks = new Counter();
+	private final Counter speculativePageFetches = new Counter();
+	private final Counter speculativePageFetchWins = new Counter();
+	private final Counter wastedSpeculativePageFetches = new Counter();
+	private final Counter coalescedRequests = new Counter();
+	private final Counter concurrencyLimitedPages = new Counter();
+	private final Counter pageCacheHits = new Counter();
+	private final Counter pageCacheMisses = new Counter();
+	private final Counter pageCacheEvictions = new Counter();
+	private final Counter splitBatches = new Counter();
+	private final Counter subBatches = new Counter();
+	private final Counter pageRetries = new Counter();
+	private final Counter lwtContentions = new Counter();
+	private final Counter lwtRetries = new Counter();
+	private final Counter warmedUpStatements = new Counter();
+	private final Counter warmedUpHosts = new Counter();
+	private final Counter warmedUpPools = new Counter();
+	private final Counter poolWarmUpTimeouts = new Counter();
+	private final Gauge<Double> stickinessHitRate = new RatioGauge() {
+		@Override
+		protected Ratio getRatio() {
+			return Ratio.of(stickyPages.getCount(), pinnedPages.getCount());
+		}
+	};
+	private final Histogram pagesPerQuery = newHistogram();
+	private final Histogram adaptiveFetchSizes = newHistogram();
+	private final ConcurrentMap<Host, Histogram> pagedLatencies = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Host, Histogram> unpagedLatencies = new ConcurrentHashMap<>();
+
+	PagingOptimizingMetrics() {
+		registry.register(PREFIX + "non-replica-pinned-pages", nonReplicaPinnedPages);
+		registry.register(PREFIX + "pinned-pages", pinnedPages);
+		registry.register(PREFIX + "sticky-pages", stickyPages);
+		registry.register(PREFIX + "fallbacks", fallbacks);
+		registry.register(PREFIX + "fallbacks.same-rack", sameRackFallbacks);
+		registry.register(PREFIX + "fallbacks.same-datacenter", sameDatacenterFallbacks);
+		registry.register(PREFIX + "fallbacks.remote", remoteFallbacks);
+		registry.register(PREFIX + "speculative-page-fetches", speculativePageFetches);
+		registry.register(PREFIX + "speculative-page-fetch-wins", speculativePageFetchWins);
+		registry.register(PREFIX + "wasted-speculative-page-fetches", wastedSpeculativePageFetches);
+		registry.register(PREFIX + "coalesced-requests", coalescedRequests);
+		registry.register(PREFIX + "concurrency-limited-pages", concurrencyLimitedPages);
+		registry.register(PREFIX + "page-cache-hits", pageCacheHits);
+		registry.register(PREFIX + "page-cache-misses", pageCacheMisses);
+		registry.register(PREFIX + "page-cache-evictions", pageCacheEvictions);
+		registry.register(PREFIX + "split-batches", splitBatches);
+		registry.register(PREFIX + "sub-batches", subBatches);
+		registry.register(PREFIX + "page-retries", pageRetries);
+		registry.register(PREFIX + "lwt-contentions", lwtContentions);
+		registry.register(PREFIX + "lwt-retries", lwtRetries);
+		registry.register(PREFIX + "warmed-up-statements", warmedUpStatements);
+		registry.register(PREFIX + "warmed-up-hosts", warmedUpHosts);
+		registry.register(PREFIX + "warmed-up-pools", warmedUpPools);
+		registry.register(PREFIX + "pool-warm-up-timeouts", poolWarmUpTimeouts);
+		registry.register(PREFIX + "stickiness-hit-rate", stickinessHitRate);
+		registry.register(PREFIX + "pages-per-query", pagesPerQuery);
+		registry.register(PREFIX + "adaptive-fetch-sizes", adaptiveFetchSizes);
+	}
+
+	/**
+	 * Register all metrics, including the ones created later, in a given registry.
+	 * Has effect only the first time it is called.
+	 */
+	synchronized void exportTo(MetricRegistry target) {
+		if (exported) {
+			return;
+		}
+		exported = true;
+		registry.addListener(new MetricRegistryListener.Base() {
+			@Override
+			public void onGaugeAdded(String name, Gauge<?> gauge) {
+				target.register(name, gauge);
+			}
+
+			@Override
+			public void onCounterAdded(String name, Counter counter) {
+				target.register(name, counter);
+			}
+
+			@Override
+			public void onHistogramAdded(String name, Histogram histogram) {
+				target.register(name, histogram);
+			}
+		});
+	}
+
+	private static Histogram newHistogram() {
+		return new Histogram(new HdrHistogramReservoir());
+	}
+
+	private static String pagedLatencyName(Host host) {
+		return PREFIX + "paged-latency." + host.getAddress().getHostAddress();
+	}
+
+	private static String unpagedLatencyName(Host host) {
+		return PREFIX + "unpaged-latency." + host.getAddress().getHostAddress();
+	}
+
+	/**
+	 * Returns the registry containing paging optimization metrics.
+	 */
+	public MetricRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Returns the number of pages, other than the first one, that were served by
+	 * the host the query was pinned to while that host was not a replica
+	 * of the query's routing key. Every such page costs the coordinator
+	 * a network round trip to a replica.
+	 */
+	public Counter getNonReplicaPinnedPages() {
+		return nonReplicaPinnedPages;
+	}
+
+	/**
+	 * Returns the number of pages that were requested with a pinned host,
+	 * i.e. all pages but the first one of each query.
+	 *
+	 * Like all page counts except {@link #getNonReplicaPinnedPages()}, it is updated
+	 * when the last page of a query is fetched.
+	 */
+	public Counter getPinnedPages() {
+		return pinnedPages;
+	}
+
+	/**
+	 * Returns the number of pinned pages that were served by the pinned host.
+	 */
+	public Counter getStickyPages() {
+		return stickyPages;
+	}
+
+	/**
+	 * Returns the number of pinned pages that were served by another host
+	 * because the pinned host was down, the request to it failed or
+	 * a speculative request to another host answered first.
+	 */
+	public Counter getFallbacks() {
+		return fallbacks;
+	}
+
+	/**
+	 * Returns the number of fallbacks served by a host in the same rack
+	 * and datacenter as the host of the previous page.
+	 */
+	public Counter getSameRackFallbacks() {
+		return sameRackFallbacks;
+	}
+
+	/**
+	 * Returns the number of fallbacks served by a host in the same datacenter
+	 * as the host of the previous page, but in another rack.
+	 */
+	public Counter getSameDatacenterFallbacks() {
+		return sameDatacenterFallbacks;
+	}
+
+	/**
+	 * Returns the number of fallbacks served by a host in another datacenter
+	 * than the host of the previous page.
+	 */
+	public Counter getRemoteFallbacks() {
+		return remoteFallbacks;
+	}
+
+	Counter getFallbacks(Locality locality) {
+		switch (locality) {
+		case SAME_RACK:
+			return sameRackFallbacks;
+		case SAME_DATACENTER:
+			return sameDatacenterFallbacks;
+		default:
+			return remoteFallbacks;
+		}
+	}
+
+	/**
+	 * Returns the number of speculative requests sent for pinned pages
+	 * because the pinned host was slow to answer.
+	 */
+	public Counter getSpeculativePageFetches() {
+		return speculativePageFetches;
+	}
+
+	/**
+	 * Returns the number of pinned pages served by a speculative request.
+	 */
+	public Counter getSpeculativePageFetchWins() {
+		return speculativePageFetchWins;
+	}
+
+	/**
+	 * Returns the number of speculative requests for pinned pages that were
+	 * beaten by the request to the pinned host.
+	 */
+	public Counter getWastedSpeculativePageFetches() {
+		return wastedSpeculativePageFetches;
+	}
+
+	/**
+	 * Returns the ratio of sticky pages to pinned pages.
+	 */
+	public Gauge<Double> getStickinessHitRate() {
+		return stickinessHitRate;
+	}
+
+	/**
+	 * Returns the number of page requests that joined an identical request
+	 * in flight instead of being sent.
+	 */
+	public Counter getCoalescedRequests() {
+		return coalescedRequests;
+	}
+
+	/**
+	 * Returns the number of pages moved away from their pinned host because it had
+	 * as many pinned requests in flight as its concurrency limit allows.
+	 */
+	public Counter getConcurrencyLimitedPages() {
+		return concurrencyLimitedPages;
+	}
+
+	/**
+	 * Returns the number of pages served from the page cache.
+	 */
+	public Counter getPageCacheHits() {
+		return pageCacheHits;
+	}
+
+	/**
+	 * Returns the number of pages looked up in the page cache and not found.
+	 */
+	public Counter getPageCacheMisses() {
+		return pageCacheMisses;
+	}
+
+	/**
+	 * Returns the number of pages removed from the page cache because
+	 * they expired or to make room for other pages.
+	 */
+	public Counter getPageCacheEvictions() {
+		return pageCacheEvictions;
+	}
+
+	/**
+	 * Returns the number of unlogged batches split by replica.
+	 */
+	public Counter getSplitBatches() {
+		return splitBatches;
+	}
+
+	/**
+	 * Returns the number of sub-batches split batches were sent as.
+	 */
+	public Counter getSubBatches() {
+		return subBatches;
+	}
+
+	/**
+	 * Returns the number of failed pages that were retried on another host.
+	 */
+	public Counter getPageRetries() {
+		return pageRetries;
+	}
+
+	/**
+	 * Returns the number of requests of lightweight transactions that timed out
+	 * because of Paxos contention. Counted for transactions routed by
+	 * {@link PagingOptimizingOptions#setLwtRoutingEnabled LWT routing}.
+	 */
+	public Counter getLwtContentions() {
+		return lwtContentions;
+	}
+
+	/**
+	 * Returns the number of times the cluster's retry policy retried a request of a
+	 * lightweight transaction. Counted for transactions routed by
+	 * {@link PagingOptimizingOptions#setLwtRoutingEnabled LWT routing}.
+	 */
+	public Counter getLwtRetries() {
+		return lwtRetries;
+	}
+
+	/**
+	 * Returns the number of statements from the
+	 * {@link PagingOptimizingOptions#setPreparedStatementsFile prepared statements file}
+	 * that were prepared when a session connected.
+	 */
+	public Counter getWarmedUpStatements() {
+		return warmedUpStatements;
+	}
+
+	/**
+	 * Returns the number of hosts that came up or were added and started serving pinned
+	 * pages once their connection pools were open, with
+	 * {@link PagingOptimizingOptions#setPreparedStatementWarmUpEnabled warm-up} enabled.
+	 */
+	public Counter getWarmedUpHosts() {
+		return warmedUpHosts;
+	}
+
+	/**
+	 * Returns the number of connection pools of hosts that were filled and checked
+	 * before their session was returned, with
+	 * {@link PagingOptimizingOptions#setPoolWarmUpEnabled pool warm-up} enabled.
+	 */
+	public Counter getWarmedUpPools() {
+		return warmedUpPools;
+	}
+
+	/**
+	 * Returns the number of sessions returned when their
+	 * {@link PagingOptimizingOptions#setPoolWarmUpTimeout pool warm-up timeout} passed,
+	 * before the pools of all local hosts were warmed up.
+	 */
+	public Counter getPoolWarmUpTimeouts() {
+		return poolWarmUpTimeouts;
+	}
+
+	/**
+	 * Returns the distribution of the number of pages fetched by a query.
+	 * A query is recorded when its last page is fetched.
+	 */
+	public Histogram getPagesPerQuery() {
+		return pagesPerQuery;
+	}
+
+	/**
+	 * Returns the distribution of fetch sizes of pages whose fetch size was
+	 * {@link PagingOptimizingOptions#setAdaptiveFetchSizeEnabled adjusted}.
+	 */
+	public Histogram getAdaptiveFetchSizes() {
+		return adaptiveFetchSizes;
+	}
+
+	/**
+	 * Returns latencies, in nanoseconds, of successful requests served by a given host
+	 * for pages following the first one of a query. A page requested right after the
+	 * previous one was delivered may be recorded as the previous page's request.
+	 */
+	public Histogram getPagedLatency(Host host) {
+		final Histogram histogram = pagedLatencies.get(host);
+		return histogram != null ? histogram
+				: pagedLatencies.computeIfAbsent(host, h -> registry.register(pagedLatencyName(h), newHistogram()));
+	}
+
+	/**
+	 * Returns latencies, in nanoseconds, of successful requests served by a given host
+	 * for the first page of a query.
+	 */
+	public Histogram getUnpagedLatency(Host host) {
+		final Histogram histogram = unpagedLatencies.get(host);
+		return histogram != null ? histogram
+				: unpagedLatencies.computeIfAbsent(host, h -> registry.register(unpagedLatencyName(h), newHistogram()));
+	}
+
+}
@@ -0,0 +1,696 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options of the paging optimization applied by {@link ClusterOptimizer}.
+ *
+ * All optional behaviours are disabled by default, so by default the only
+ * optimization is that all pages of a query are served by the same node.
+ */
+public class PagingOptimizingOptions {
+
+	private volatile boolean replicaPinningEnabled = false;
+	private volatile int prefetchDepth = 0;
+	private volatile long prefetchMemoryBudget = 16 * 1024 * 1024;
+	private volatile boolean latencyAwareStickinessEnabled = false;
+	private volatile double latencyExclusionThreshold = 2.0;
+	private volatile long latencyScaleNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile int latencyMinMeasurements = 50;
+	private volatile boolean speculativePageFetchEnabled = false;
+	private volatile double speculativePageFetchPercentile = 99.0;
+	private volatile long speculativePageFetchIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+	private volatile boolean coalescingEnabled = false;
+	private volatile boolean localityFallbackEnabled = false;
+	private volatile boolean concurrencyLimitingEnabled = false;
+	private volatile int maxConcurrencyPerHost = 128;
+	private volatile boolean pageCacheEnabled = false;
+	private volatile long pageCacheTtlNanos = TimeUnit.SECONDS.toNanos(10);
+	private volatile long pageCacheMaxBytes = 64 * 1024 * 1024;
+	private volatile boolean adaptiveFetchSizeEnabled = false;
+	private volatile long targetPageLatencyNanos = TimeUnit.MILLISECONDS.toNanos(50);
+	private volatile long maxPageBytes = 1024 * 1024;
+	private volatile int minFetchSize = 100;
+	private volatile int maxFetchSize = 10000;
+	private volatile boolean batchSplittingEnabled = false;
+	private volatile int routingTraceBufferSize = 0;
+	private volatile int pageRetryLimit = 0;
+	private volatile boolean lwtRoutingEnabled = false;
+	private volatile boolean preparedStatementWarmUpEnabled = false;
+	private volatile boolean preparedStatementReuseEnabled = false;
+	private volatile Path preparedStatementsFile = null;
+	private volatile int warmUpConcurrency = 16;
+	private volatile boolean poolWarmUpEnabled = false;
+	private volatile long poolWarmUpTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * Enable or disable sending the first page of a query to a replica.
+	 *
+	 * When enabled, the first page goes to a replica owning the statement's
+	 * routing key and all following pages stick to that replica. Range scans,
+	 * i.e. SELECTs that don't restrict the partition key, go to a replica of the
+	 * beginning of the token ring, which is where they start; other statements
+	 * without a routing key are routed by the wrapped load balancing policy. When
+	 * disabled, the first page goes wherever the wrapped load balancing policy sends it.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setReplicaPinningEnabled(boolean enabled) {
+		replicaPinningEnabled = enabled;
+		return this;
+	}
+
+	public boolean isReplicaPinningEnabled() {
+		return replicaPinningEnabled;
+	}
+
+	/**
+	 * Set how many pages ahead of the one being consumed are fetched in the background.
+	 *
+	 * With depth 1, page N+1 is requested from the query's pinned host as soon as
+	 * the consumer starts reading page N. Depth 0, the default, disables prefetching,
+	 * so a page is requested only when the consumer reaches the end of the previous one.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPrefetchDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Prefetch depth can't be negative: " + depth);
+		}
+		prefetchDepth = depth;
+		return this;
+	}
+
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Set the maximum size, in bytes, of rows a single query may hold in memory
+	 * before it stops prefetching. The size of rows is estimated from the sizes
+	 * of their values. Defaults to 16 MiB.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPrefetchMemoryBudget(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Prefetch memory budget can't be negative: " + bytes);
+		}
+		prefetchMemoryBudget = bytes;
+		return this;
+	}
+
+	public long getPrefetchMemoryBudget() {
+		return prefetchMemoryBudget;
+	}
+
+	/**
+	 * Enable or disable moving pages of a query away from a pinned host that is
+	 * much slower than its peers.
+	 *
+	 * When enabled, a decaying average latency is kept for every host. Before a page
+	 * is requested, the average of the host the query is pinned to is compared with
+	 * the smallest average of all hosts. If it is more than
+	 * {@link #setLatencyExclusionThreshold(double) threshold} times bigger, the page
+	 * and all following ones go to the fastest replica of the query's routing key,
+	 * or to the first host of the wrapped policy's plan that is not slow if
+	 * the statement has no routing key.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setLatencyAwareStickinessEnabled(boolean enabled) {
+		latencyAwareStickinessEnabled = enabled;
+		return this;
+	}
+
+	public boolean isLatencyAwareStickinessEnabled() {
+		return latencyAwareStickinessEnabled;
+	}
+
+	/**
+	 * Set how many times slower than the fastest host a pinned host has to be
+	 * for the following pages to be moved away from it. Defaults to 2.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setLatencyExclusionThreshold(double threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("Latency exclusion threshold must be at least 1: " + threshold);
+		}
+		latencyExclusionThreshold = threshold;
+		return this;
+	}
+
+	public double getLatencyExclusionThreshold() {
+		return latencyExclusionThreshold;
+	}
+
+	/**
+	 * Set how quickly old measurements lose weight in the average latency of a host.
+	 * After {@code scale} has passed since the previous measurement, its weight
+	 * drops to about a third. Defaults to 100 milliseconds.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setLatencyScale(long scale, TimeUnit unit) {
+		if (scale <= 0) {
+			throw new IllegalArgumentException("Latency scale must be positive: " + scale);
+		}
+		latencyScaleNanos = unit.toNanos(scale);
+		return this;
+	}
+
+	public long getLatencyScaleNanos() {
+		return latencyScaleNanos;
+	}
+
+	/**
+	 * Set how many requests a host has to serve before its average latency is
+	 * taken into account. Defaults to 50.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setLatencyMinMeasurements(int measurements) {
+		if (measurements < 1) {
+			throw new IllegalArgumentException("Latency min measurements must be positive: " + measurements);
+		}
+		latencyMinMeasurements = measurements;
+		return this;
+	}
+
+	public int getLatencyMinMeasurements() {
+		return latencyMinMeasurements;
+	}
+
+	/**
+	 * Enable or disable racing a page against a second host when its pinned host
+	 * is slow to answer.
+	 *
+	 * When enabled, a page that is pinned to a host and is not served within
+	 * {@link #setSpeculativePageFetchPercentile(double) a percentile} of that host's
+	 * latencies is requested again from the next host of the query plan, which is
+	 * another replica if the wrapped policy is token aware. The first response wins
+	 * and the following pages are pinned to the host that sent it. The first page of
+	 * a query is handled by the cluster's own speculative execution policy.
+	 *
+	 * Like all speculative executions, this applies only to idempotent statements.
+	 *
+	 * Takes effect only if this is enabled when the cluster is built, and latencies
+	 * are tracked only if it is enabled when the cluster is initialized.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setSpeculativePageFetchEnabled(boolean enabled) {
+		speculativePageFetchEnabled = enabled;
+		return this;
+	}
+
+	public boolean isSpeculativePageFetchEnabled() {
+		return speculativePageFetchEnabled;
+	}
+
+	/**
+	 * Set the percentile of a host's latencies after which a page pinned to it
+	 * is requested from a second host. Defaults to 99.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setSpeculativePageFetchPercentile(double percentile) {
+		if (percentile <= 0 || percentile >= 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+		}
+		speculativePageFetchPercentile = percentile;
+		return this;
+	}
+
+	public double getSpeculativePageFetchPercentile() {
+		return speculativePageFetchPercentile;
+	}
+
+	/**
+	 * Set the interval over which latencies are recorded to compute the delay of
+	 * speculative page fetches. Percentiles come from the previous interval, so
+	 * nothing is speculated during the first one. Defaults to 1 minute.
+	 *
+	 * Read when the cluster is initialized.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setSpeculativePageFetchInterval(long interval, TimeUnit unit) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Interval must be positive: " + interval);
+		}
+		speculativePageFetchIntervalMillis = unit.toMillis(interval);
+		return this;
+	}
+
+	public long getSpeculativePageFetchIntervalMillis() {
+		return speculativePageFetchIntervalMillis;
+	}
+
+	/**
+	 * Enable or disable keeping pages close to their pinned host when it can't serve them.
+	 *
+	 * When enabled and the host a query is pinned to is down or fails, the page goes
+	 * to a host in the same rack, then to one in the same datacenter and only then to
+	 * a remote one, as reported by the cluster's metadata. Hosts the wrapped load
+	 * balancing policy leaves out of its plan are never used. When disabled,
+	 * the page goes to the hosts of the wrapped policy's plan in its order.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setLocalityFallbackEnabled(boolean enabled) {
+		localityFallbackEnabled = enabled;
+		return this;
+	}
+
+	public boolean isLocalityFallbackEnabled() {
+		return localityFallbackEnabled;
+	}
+
+	/**
+	 * Enable or disable spreading pinned pages away from hosts with too many
+	 * of them in flight.
+	 *
+	 * When enabled, pinned page requests in flight are counted for every host against
+	 * an adaptive limit. The limit grows while the host answers quickly and shrinks when
+	 * its latency grows to more than twice its recent minimum, a request times out or
+	 * the host reports it is overloaded. A page whose pinned host is at its limit, and
+	 * all following pages of its query, go to the least loaded replica of the query's
+	 * routing key instead, or to the first host of the wrapped policy's plan that is not
+	 * at its limit if the statement has no routing key. If all candidates are at their
+	 * limits, the page stays on its pinned host.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setConcurrencyLimitingEnabled(boolean enabled) {
+		concurrencyLimitingEnabled = enabled;
+		return this;
+	}
+
+	public boolean isConcurrencyLimitingEnabled() {
+		return concurrencyLimitingEnabled;
+	}
+
+	/**
+	 * Set the highest limit of pinned page requests in flight to a single host.
+	 * Limits start at 20, or at this value if it is smaller. Defaults to 128.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setMaxConcurrencyPerHost(int requests) {
+		if (requests < 1) {
+			throw new IllegalArgumentException("Max concurrency per host must be positive: " + requests);
+		}
+		maxConcurrencyPerHost = requests;
+		return this;
+	}
+
+	public int getMaxConcurrencyPerHost() {
+		return maxConcurrencyPerHost;
+	}
+
+	/**
+	 * Enable or disable sharing server requests between identical reads
+	 * executed at the same time.
+	 *
+	 * When enabled, a SELECT executed while an identical one, with the same query,
+	 * values, consistency level, fetch size and paging state, is waiting for the same
+	 * page joins that request instead of sending its own. Each caller still gets its
+	 * own result set. Pages are shared only while they are in flight, so a read never
+	 * returns data older than a read started at the same time.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setCoalescingEnabled(boolean enabled) {
+		coalescingEnabled = enabled;
+		return this;
+	}
+
+	public boolean isCoalescingEnabled() {
+		return coalescingEnabled;
+	}
+
+	/**
+	 * Enable or disable serving pages of SELECT statements from a client-side cache.
+	 *
+	 * When enabled, a page of a SELECT is cached, keyed by its query, values,
+	 * consistency level, fetch size and paging state, and a read of the same page
+	 * within the {@link #setPageCacheTtl(long, TimeUnit) TTL} is served from the
+	 * cache without a request. Reads may therefore return data up to the TTL old.
+	 * Cached values are kept off the Java heap.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPageCacheEnabled(boolean enabled) {
+		pageCacheEnabled = enabled;
+		return this;
+	}
+
+	public boolean isPageCacheEnabled() {
+		return pageCacheEnabled;
+	}
+
+	/**
+	 * Set how long a page stays in the cache after it was fetched. Defaults to 10 seconds.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPageCacheTtl(long ttl, TimeUnit unit) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("Page cache TTL must be positive: " + ttl);
+		}
+		pageCacheTtlNanos = unit.toNanos(ttl);
+		return this;
+	}
+
+	public long getPageCacheTtlNanos() {
+		return pageCacheTtlNanos;
+	}
+
+	/**
+	 * Set the maximum size, in bytes, of the values of all cached pages.
+	 * Defaults to 64 MiB. Direct buffers of evicted pages are freed by the
+	 * garbage collector, so more direct memory may be in use until it runs.
+	 *
+	 * Read when the cluster is built.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPageCacheMaxBytes(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("Page cache size must be positive: " + bytes);
+		}
+		pageCacheMaxBytes = bytes;
+		return this;
+	}
+
+	public long getPageCacheMaxBytes() {
+		return pageCacheMaxBytes;
+	}
+
+	/**
+	 * Enable or disable adjusting the fetch size of statements between pages.
+	 *
+	 * When enabled, all statements with the same query share a fetch size, which
+	 * starts at the fetch size of the first of them and is adjusted after every page
+	 * so that pages take about the {@link #setTargetPageLatency(long, TimeUnit) target
+	 * latency} and hold at most {@link #setMaxPageBytes(long) max page bytes} of values.
+	 * The fetch size set on a statement is then only used for the first statement of
+	 * its query. Pages of coalesced or cached reads keep their statement's fetch size.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setAdaptiveFetchSizeEnabled(boolean enabled) {
+		adaptiveFetchSizeEnabled = enabled;
+		return this;
+	}
+
+	public boolean isAdaptiveFetchSizeEnabled() {
+		return adaptiveFetchSizeEnabled;
+	}
+
+	/**
+	 * Set how long a page should take when the fetch size is adjusted. Defaults to 50 ms.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setTargetPageLatency(long latency, TimeUnit unit) {
+		if (latency <= 0) {
+			throw new IllegalArgumentException("Target page latency must be positive: " + latency);
+		}
+		targetPageLatencyNanos = unit.toNanos(latency);
+		return this;
+	}
+
+	public long getTargetPageLatencyNanos() {
+		return targetPageLatencyNanos;
+	}
+
+	/**
+	 * Set the maximum size, in bytes, of the values of a page when the fetch size
+	 * is adjusted. The size of rows is estimated from the sizes of their values.
+	 * Defaults to 1 MiB.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setMaxPageBytes(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("Max page bytes must be positive: " + bytes);
+		}
+		maxPageBytes = bytes;
+		return this;
+	}
+
+	public long getMaxPageBytes() {
+		return maxPageBytes;
+	}
+
+	/**
+	 * Set the bounds of adjusted fetch sizes. Default to 100 and 10000.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setFetchSizeRange(int min, int max) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("Invalid fetch size range: " + min + ".." + max);
+		}
+		minFetchSize = min;
+		maxFetchSize = max;
+		return this;
+	}
+
+	public int getMinFetchSize() {
+		return minFetchSize;
+	}
+
+	public int getMaxFetchSize() {
+		return maxFetchSize;
+	}
+
+	/**
+	 * Enable or disable splitting unlogged batches by replica.
+	 *
+	 * When enabled, the statements of an unlogged batch are grouped by the first
+	 * replica of their partition that is up and local, and each group is sent as
+	 * a separate unlogged batch to its replica, all of them in parallel. The batch
+	 * completes when all groups are applied and fails as soon as one of them fails.
+	 * Logged, counter and conditional batches are sent as they are.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setBatchSplittingEnabled(boolean enabled) {
+		batchSplittingEnabled = enabled;
+		return this;
+	}
+
+	public boolean isBatchSplittingEnabled() {
+		return batchSplittingEnabled;
+	}
+
+	/**
+	 * Set how many of the most recent routing decisions of pages are kept for
+	 * {@link ClusterOptimizer#getRoutingTraces}. The size is rounded up to a power
+	 * of two. Defaults to 0, which keeps none.
+	 *
+	 * Decisions are also recorded as {@code com.scylladb.driver.tools.RoutingDecision}
+	 * Java Flight Recorder events whenever a recording includes them, regardless of
+	 * this option.
+	 *
+	 * Read when the cluster is built.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setRoutingTraceBufferSize(int size) {
+		if (size < 0 || size > 1 << 30) {
+			throw new IllegalArgumentException("Invalid routing trace buffer size: " + size);
+		}
+		routingTraceBufferSize = size;
+		return this;
+	}
+
+	public int getRoutingTraceBufferSize() {
+		return routingTraceBufferSize;
+	}
+
+	/**
+	 * Set how many failed pages of a query may be retried on another host.
+	 *
+	 * When a request for a page following the first one times out, is rejected
+	 * as unavailable or overloaded, or fails with a server error, the same page,
+	 * with the same paging state, is requested from the next host of the query
+	 * plan, i.e. another replica with a token aware policy, and the following
+	 * pages stick to the host that served it. Once a query used up its retries,
+	 * or for first pages, the cluster's retry policy decides as usual. Following
+	 * pages are reads, so they are retried even if the statement isn't marked
+	 * idempotent. Statements with their own retry policy are left to it.
+	 * Defaults to 0, which disables retrying pages. Pages are retried only if
+	 * the limit is above 0 when the cluster is built.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPageRetryLimit(int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("Page retry limit can't be negative: " + retries);
+		}
+		pageRetryLimit = retries;
+		return this;
+	}
+
+	public int getPageRetryLimit() {
+		return pageRetryLimit;
+	}
+
+	/**
+	 * Enable or disable routing lightweight transactions to a single replica of
+	 * their partition.
+	 *
+	 * When enabled, conditional statements and batches containing one are sent
+	 * to the first replica of their partition, in ring order, that is up and local.
+	 * If it fails, they go to the following replicas in the same order, and then to
+	 * the rest of the wrapped policy's plan. So all transactions of a partition are
+	 * coordinated by the same node, whose Paxos ballots don't compete with those of
+	 * other coordinators. Prepared statements are checked for a condition once.
+	 * When disabled, lightweight transactions are routed like other statements.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setLwtRoutingEnabled(boolean enabled) {
+		lwtRoutingEnabled = enabled;
+		return this;
+	}
+
+	public boolean isLwtRoutingEnabled() {
+		return lwtRoutingEnabled;
+	}
+
+	/**
+	 * Enable or disable warming up prepared statements.
+	 *
+	 * When enabled, statements prepared through the cluster's sessions are kept in
+	 * a registry of up to 10000 queries, so that the driver keeps re-preparing them on
+	 * every host that comes up or is added, before the host gets requests. A host that comes back is used for pinned pages only once
+	 * its connection pools are open, i.e. after the driver has re-prepared them on it,
+	 * so pinned pages don't pay for an UNPREPARED response and a re-prepare. Relies on
+	 * {@link com.datastax.driver.core.QueryOptions#setReprepareOnUp re-preparing on up},
+	 * which is enabled by default.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPreparedStatementWarmUpEnabled(boolean enabled) {
+		preparedStatementWarmUpEnabled = enabled;
+		return this;
+	}
+
+	public boolean isPreparedStatementWarmUpEnabled() {
+		return preparedStatementWarmUpEnabled;
+	}
+
+	/**
+	 * Enable or disable returning the registered statement when a query that was
+	 * {@link #setPreparedStatementWarmUpEnabled warmed up} is prepared again in a session
+	 * logged into the same keyspace, without a round trip to the hosts.
+	 *
+	 * All callers then share the same {@link com.datastax.driver.core.PreparedStatement}
+	 * instance, so options set on it, e.g. its consistency level or idempotence, apply to
+	 * the bound statements of all of them. Defaults to false.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPreparedStatementReuseEnabled(boolean enabled) {
+		preparedStatementReuseEnabled = enabled;
+		return this;
+	}
+
+	public boolean isPreparedStatementReuseEnabled() {
+		return preparedStatementReuseEnabled;
+	}
+
+	/**
+	 * Set the file the registry of {@link #setPreparedStatementWarmUpEnabled warmed up}
+	 * prepared statements is kept in, so that a restarted application doesn't start cold.
+	 *
+	 * Statements listed in the file are prepared on all hosts when a session logged
+	 * into their keyspace connects, {@link #setWarmUpConcurrency a few} at a time, and
+	 * the session is returned once they are prepared. Statements prepared for the first
+	 * time are appended to the file while the registry isn't full. A missing file is created. Defaults to null, which
+	 * keeps the registry in memory only.
+	 *
+	 * Read when the cluster is built.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPreparedStatementsFile(Path file) {
+		preparedStatementsFile = file;
+		return this;
+	}
+
+	public Path getPreparedStatementsFile() {
+		return preparedStatementsFile;
+	}
+
+	/**
+	 * Set how many statements from the {@link #setPreparedStatementsFile prepared statements file}
+	 * a connecting session prepares at once. Defaults to 16.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setWarmUpConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Warm-up concurrency must be positive: " + concurrency);
+		}
+		warmUpConcurrency = concurrency;
+		return this;
+	}
+
+	public int getWarmUpConcurrency() {
+		return warmUpConcurrency;
+	}
+
+	/**
+	 * Enable or disable warming up connection pools before a session is returned.
+	 *
+	 * When enabled, connecting a session doesn't complete until the pool of every
+	 * local host that is up has all its core connections open and a query of a system
+	 * table has been served by the host on each of them, all hosts in parallel. On
+	 * Scylla every connection is bound to a shard, so with at least as many core
+	 * connections as shards, the first requests of every shard go over a connection
+	 * that is already open. Connections that failed to open are opened again and
+	 * checks that failed are repeated until the {@link #setPoolWarmUpTimeout timeout}.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPoolWarmUpEnabled(boolean enabled) {
+		poolWarmUpEnabled = enabled;
+		return this;
+	}
+
+	public boolean isPoolWarmUpEnabled() {
+		return poolWarmUpEnabled;
+	}
+
+	/**
+	 * Set how long {@link #setPoolWarmUpEnabled pool warm-up} may delay connecting
+	 * a session. Once it passes, the session is returned with the pools as they are.
+	 * Defaults to 10 seconds.
+	 *
+	 * @return this {@code PagingOptimizingOptions} instance.
+	 */
+	public PagingOptimizingOptions setPoolWarmUpTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Pool warm-up timeout must be positive: " + timeout);
+		}
+		poolWarmUpTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	public long getPoolWarmUpTimeoutNanos() {
+		return poolWarmUpTimeoutNanos;
+	}
+
+}
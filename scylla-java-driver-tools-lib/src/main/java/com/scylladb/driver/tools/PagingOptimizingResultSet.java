@@ -0,0 +1,292 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@link ResultSet} that keeps its statement pinned to the host that served
+ * the last page and records paging metrics of its query once the last page
+ * is fetched.
+ *
+ * The driver reports a request to latency trackers only after its result is
+ * delivered, so the next page may be requested before
+ * {@link PagingOptimizingLatencyTracker} pins the statement. Pinning from here,
+ * before every operation that may fetch a page, closes that window.
+ *
+ * When {@link PagingOptimizingOptions#setPrefetchDepth prefetching} is enabled,
+ * following pages are requested while the current one is consumed. Queries executed
+ * through a {@link PagingCheckpointLog} are checkpointed whenever all fetched
+ * rows have been read.
+ */
+class PagingOptimizingResultSet implements ResultSet {
+
+	private static final int SAMPLED_ROWS = 64;
+
+	private final ResultSet wrapped;
+	private final PagingOptimizingStatement statement;
+	private final PagingOptimizingMetrics metrics;
+	private final QueryOptions queryOptions;
+	private final int prefetchDepth;
+	private final long prefetchMemoryBudget;
+	private final CheckpointingScan checkpoint;
+	private final FetchSizeController.Shape shape;
+	private volatile boolean recorded;
+	private ListenableFuture<ResultSet> prefetch;
+	private long sampledBytes;
+	private int sampledRows;
+	private long rows;
+
+	PagingOptimizingResultSet(ResultSet wrapped, PagingOptimizingStatement statement,
+			PagingOptimizingCluster cluster) {
+		this(wrapped, statement, cluster, false);
+	}
+
+	/**
+	 * @param singlePage whether only the first page is read, as by {@link PageCoalescer},
+	 * in which case nothing is prefetched and paging metrics aren't recorded.
+	 */
+	PagingOptimizingResultSet(ResultSet wrapped, PagingOptimizingStatement statement,
+			PagingOptimizingCluster cluster, boolean singlePage) {
+		final PagingOptimizingOptions options = cluster.getPagingOptimizingOptions();
+		this.wrapped = wrapped;
+		this.statement = statement;
+		metrics = cluster.getPagingOptimizingMetrics();
+		queryOptions = cluster.getConfiguration().getQueryOptions();
+		prefetchDepth = singlePage ? 0 : options.getPrefetchDepth();
+		prefetchMemoryBudget = options.getPrefetchMemoryBudget();
+		checkpoint = statement.getCheckpoint();
+		shape = statement.getShape();
+		recorded = singlePage;
+		recordIfFullyFetched();
+		prefetch();
+	}
+
+	/**
+	 * Pin the statement to the host that served the last page if the next
+	 * operation may fetch a new page.
+	 */
+	private void pin() {
+		if (wrapped.getAvailableWithoutFetching() == 0) {
+			pinToLastPage();
+			if (checkpoint != null) {
+				checkpoint.onFetchedRowsRead(wrapped.getExecutionInfo(), wrapped.isFullyFetched(),
+						statement.getPages(), rows);
+			}
+		}
+	}
+
+	private void pinToLastPage() {
+		final Host queried = wrapped.getExecutionInfo().getQueriedHost();
+		if (!queried.equals(statement.getLastHost())) {
+			statement.setLastHost(queried);
+		}
+	}
+
+	private void afterRow(Row row) {
+		if (row == null) {
+			return;
+		}
+		++rows;
+		if (prefetchDepth > 0 || shape != null) {
+			sample(row);
+		}
+		if (prefetchDepth > 0) {
+			prefetch();
+		}
+	}
+
+	/**
+	 * Estimate the size of rows from the sizes of the values of the first rows.
+	 * The estimate is passed to the statement's shape, if any, once all sampled
+	 * rows are read or the query has fewer rows.
+	 */
+	private void sample(Row row) {
+		if (sampledRows < SAMPLED_ROWS) {
+			for (int i = 0; i < wrapped.getColumnDefinitions().size(); ++i) {
+				final ByteBuffer value = row.getBytesUnsafe(i);
+				sampledBytes += value != null ? value.remaining() : 0;
+			}
+			++sampledRows;
+			if (shape != null && (sampledRows == SAMPLED_ROWS
+					|| (wrapped.getAvailableWithoutFetching() == 0 && wrapped.isFullyFetched()))) {
+				shape.setBytesPerRow(sampledBytes / sampledRows);
+			}
+		}
+	}
+
+	/**
+	 * Request the next page unless a request is already in flight, all pages are
+	 * fetched, enough pages are buffered or the buffered rows together with
+	 * the next page would exceed the budget.
+	 *
+	 * Called only by the consuming thread because the driver's result set doesn't
+	 * support starting fetches concurrently. So a page is prefetched only after
+	 * the previous one arrives and the consumer reads another row.
+	 */
+	private void prefetch() {
+		if (prefetchDepth == 0 || (prefetch != null && !prefetch.isDone()) || wrapped.isFullyFetched()) {
+			return;
+		}
+		final long available = wrapped.getAvailableWithoutFetching();
+		// Like the driver, fall back to the cluster's fetch size.
+		final int nextFetchSize = statement.getNextFetchSize();
+		final int fetchSize = nextFetchSize > 0 ? nextFetchSize : queryOptions.getFetchSize();
+		if (available > (long) prefetchDepth * fetchSize) {
+			return;
+		}
+		if (sampledRows > 0 && (available + fetchSize) * sampledBytes / sampledRows > prefetchMemoryBudget) {
+			return;
+		}
+		pinToLastPage();
+		prefetch = wrapped.fetchMoreResults();
+	}
+
+	private void recordIfFullyFetched() {
+		if (!recorded && wrapped.isFullyFetched()) {
+			recorded = true;
+			record(metrics, wrapped.getAllExecutionInfo());
+		}
+	}
+
+	/**
+	 * Record paging metrics of a query whose pages were all fetched.
+	 */
+	static void record(PagingOptimizingMetrics metrics, List<ExecutionInfo> pages) {
+		metrics.getPagesPerQuery().update(pages.size());
+		Host previous = null;
+		for (ExecutionInfo page : pages) {
+			final Host queried = page.getQueriedHost();
+			if (previous != null) {
+				metrics.getPinnedPages().inc();
+				if (previous.equals(queried)) {
+					metrics.getStickyPages().inc();
+				} else {
+					metrics.getFallbacks().inc();
+					metrics.getFallbacks(Locality.of(queried, previous)).inc();
+				}
+				recordSpeculation(metrics, page);
+			}
+			previous = queried;
+		}
+	}
+
+	private static void recordSpeculation(PagingOptimizingMetrics metrics, ExecutionInfo page) {
+		final int speculative = page.getSpeculativeExecutions();
+		if (speculative > 0) {
+			final int won = page.getSuccessfulExecutionIndex() > 0 ? 1 : 0;
+			metrics.getSpeculativePageFetches().inc(speculative);
+			metrics.getSpeculativePageFetchWins().inc(won);
+			metrics.getWastedSpeculativePageFetches().inc(speculative - won);
+		}
+	}
+
+	@Override
+	public boolean isExhausted() {
+		pin();
+		final boolean result = wrapped.isExhausted();
+		recordIfFullyFetched();
+		return result;
+	}
+
+	@Override
+	public boolean isFullyFetched() {
+		final boolean result = wrapped.isFullyFetched();
+		recordIfFullyFetched();
+		return result;
+	}
+
+	@Override
+	public int getAvailableWithoutFetching() {
+		return wrapped.getAvailableWithoutFetching();
+	}
+
+	@Override
+	public ListenableFuture<ResultSet> fetchMoreResults() {
+		pin();
+		final ListenableFuture<ResultSet> fetched = statement.releaseOnCompletion(wrapped.fetchMoreResults());
+		return Futures.transform(fetched, (ResultSet resultSet) -> {
+			recordIfFullyFetched();
+			return (ResultSet) this;
+		});
+	}
+
+	@Override
+	public Row one() {
+		pin();
+		final Row result = wrapped.one();
+		recordIfFullyFetched();
+		afterRow(result);
+		return result;
+	}
+
+	/**
+	 * Reads rows one by one, instead of delegating, so that each page is pinned.
+	 */
+	@Override
+	public List<Row> all() {
+		final List<Row> result = new ArrayList<>(getAvailableWithoutFetching());
+		for (Row row = one(); row != null; row = one()) {
+			result.add(row);
+		}
+		return result;
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+		final Iterator<Row> iterator = wrapped.iterator();
+		return new Iterator<Row>() {
+
+			@Override
+			public boolean hasNext() {
+				pin();
+				final boolean result = iterator.hasNext();
+				recordIfFullyFetched();
+				return result;
+			}
+
+			@Override
+			public Row next() {
+				final Row result = iterator.next();
+				afterRow(result);
+				return result;
+			}
+
+		};
+	}
+
+	@Override
+	public ExecutionInfo getExecutionInfo() {
+		return wrapped.getExecutionInfo();
+	}
+
+	@Override
+	public List<ExecutionInfo> getAllExecutionInfo() {
+		return wrapped.getAllExecutionInfo();
+	}
+
+	@Override
+	public ColumnDefinitions getColumnDefinitions() {
+		return wrapped.getColumnDefinitions();
+	}
+
+	@Override
+	public boolean wasApplied() {
+		return wrapped.wasApplied();
+	}
+
+}
@@ -0,0 +1,86 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+
+/**
+ * {@link ResultSetFuture} that completes with a {@link PagingOptimizingResultSet}.
+ */
+class PagingOptimizingResultSetFuture implements ResultSetFuture {
+
+	private final ResultSetFuture wrapped;
+	private final PagingOptimizingStatement statement;
+	private final PagingOptimizingCluster cluster;
+	private volatile ResultSet resultSet;
+
+	PagingOptimizingResultSetFuture(ResultSetFuture wrapped, PagingOptimizingStatement statement,
+			PagingOptimizingCluster cluster) {
+		this.wrapped = wrapped;
+		this.statement = statement;
+		this.cluster = cluster;
+	}
+
+	private ResultSet wrap(ResultSet result) {
+		ResultSet wrappedResult = resultSet;
+		if (wrappedResult == null) {
+			synchronized (this) {
+				wrappedResult = resultSet;
+				if (wrappedResult == null) {
+					wrappedResult = new PagingOptimizingResultSet(result, statement, cluster);
+					resultSet = wrappedResult;
+				}
+			}
+		}
+		return wrappedResult;
+	}
+
+	@Override
+	public ResultSet getUninterruptibly() {
+		return wrap(wrapped.getUninterruptibly());
+	}
+
+	@Override
+	public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+		return wrap(wrapped.getUninterruptibly(timeout, unit));
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return wrapped.cancel(mayInterruptIfRunning);
+	}
+
+	@Override
+	public ResultSet get() throws InterruptedException, ExecutionException {
+		return wrap(wrapped.get());
+	}
+
+	@Override
+	public ResultSet get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		return wrap(wrapped.get(timeout, unit));
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return wrapped.isCancelled();
+	}
+
+	@Override
+	public boolean isDone() {
+		return wrapped.isDone();
+	}
+
+	@Override
+	public void addListener(Runnable listener, Executor executor) {
+		wrapped.addListener(listener, executor);
+	}
+
+}
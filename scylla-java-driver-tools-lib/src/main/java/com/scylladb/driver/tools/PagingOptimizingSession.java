@@ -4,10 +4,14 @@
 
 package com.scylladb.driver.tools;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.CloseFuture;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.RegularStatement;
 import com.datastax.driver.core.ResultSet;
@@ -15,16 +19,41 @@ import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 class PagingOptimizingSession implements Session {
 	
-	private final Cluster cluster;
+	private final PagingOptimizingCluster cluster;
 	private final Session session;
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics metrics;
+	private final FetchSizeController fetchSizes;
+	private final BatchSplitter batchSplitter;
+	private final ConditionalStatements conditions;
+	private final PreparedStatementRegistry preparedStatements;
 	
-	PagingOptimizingSession(Cluster cluster, Session session) {
+	PagingOptimizingSession(PagingOptimizingCluster cluster, Session session) {
 		this.cluster = cluster;
 		this.session = session;
+		this.options = cluster.getPagingOptimizingOptions();
+		this.metrics = cluster.getPagingOptimizingMetrics();
+		this.fetchSizes = cluster.getFetchSizeController();
+		this.conditions = cluster.getConditionalStatements();
+		this.preparedStatements = cluster.getPreparedStatements();
+		this.batchSplitter = new BatchSplitter(this, cluster, metrics, conditions);
+	}
+
+	private PagingOptimizingStatement wrap(Statement statement) {
+		final PagingOptimizingStatement optimizingStatement = new PagingOptimizingStatement(statement);
+		if (options.isAdaptiveFetchSizeEnabled()) {
+			optimizingStatement.setShape(fetchSizes.shape(statement));
+		}
+		optimizingStatement.setPageRetries(options.getPageRetryLimit());
+		if (options.isLwtRoutingEnabled()) {
+			optimizingStatement.setConditional(conditions.isConditional(statement));
+		}
+		return optimizingStatement;
 	}
 
 	@Override
@@ -59,7 +88,20 @@ class PagingOptimizingSession implements Session {
 
 	@Override
 	public ResultSet execute(Statement statement) {
-		return session.execute(new PagingOptimizingStatement(statement));
+		final ResultSetFuture split = executeSplit(statement);
+		if (split != null) {
+			return split.getUninterruptibly();
+		}
+		final PagingOptimizingStatement optimizingStatement = wrap(statement);
+		final ResultSetFuture coalesced = executeCoalesced(statement, optimizingStatement);
+		if (coalesced != null) {
+			return coalesced.getUninterruptibly();
+		}
+		if (!canPage(statement)) {
+			return executeAsync(optimizingStatement).getUninterruptibly();
+		}
+		return new PagingOptimizingResultSet(executeAsync(optimizingStatement).getUninterruptibly(), optimizingStatement,
+				cluster);
 	}
 
 	@Override
@@ -79,27 +121,156 @@ class PagingOptimizingSession implements Session {
 
 	@Override
 	public ResultSetFuture executeAsync(Statement statement) {
-		return session.executeAsync(new PagingOptimizingStatement(statement));
+		final ResultSetFuture split = executeSplit(statement);
+		if (split != null) {
+			return split;
+		}
+		final PagingOptimizingStatement optimizingStatement = wrap(statement);
+		final ResultSetFuture coalesced = executeCoalesced(statement, optimizingStatement);
+		if (coalesced != null) {
+			return coalesced;
+		}
+		if (!canPage(statement)) {
+			return executeAsync(optimizingStatement);
+		}
+		return new PagingOptimizingResultSetFuture(executeAsync(optimizingStatement), optimizingStatement, cluster);
+	}
+
+	/**
+	 * Synchronous executions wait for this too, as the driver's do, so that all
+	 * requests stop being counted by the concurrency limiter when they complete.
+	 */
+	private ResultSetFuture executeAsync(PagingOptimizingStatement optimizingStatement) {
+		return optimizingStatement.releaseOnCompletion(session.executeAsync(optimizingStatement));
+	}
+
+	/**
+	 * Whether a statement may return more than one page. Results of statements that
+	 * can't, e.g. writes and batches, are returned as the driver's, so that they
+	 * skip paging metrics and prefetching. Statements of unknown types may.
+	 */
+	private boolean canPage(Statement statement) {
+		if (statement instanceof BatchStatement) {
+			return false;
+		} else if (statement instanceof BoundStatement) {
+			return CqlQuery.maybeSelect(((BoundStatement) statement).preparedStatement().getQueryString());
+		} else if (statement instanceof RegularStatement) {
+			return CqlQuery.maybeSelect(
+					((RegularStatement) statement).getQueryString(cluster.getConfiguration().getCodecRegistry()));
+		}
+		return true;
+	}
+
+	/**
+	 * Execute a batch split by replica, if batch splitting is enabled and the
+	 * statement is a batch that can be split. Returns null otherwise.
+	 */
+	private ResultSetFuture executeSplit(Statement statement) {
+		if (!options.isBatchSplittingEnabled() || !(statement instanceof BatchStatement)) {
+			return null;
+		}
+		return batchSplitter.executeAsync((BatchStatement) statement, session.getLoggedKeyspace());
+	}
+
+	/**
+	 * Execute a statement through the single-flight layer, if it or the page cache
+	 * is enabled and the statement can be coalesced. Returns null otherwise.
+	 */
+	private ResultSetFuture executeCoalesced(Statement statement, PagingOptimizingStatement optimizingStatement) {
+		if (!options.isCoalescingEnabled() && !options.isPageCacheEnabled()) {
+			return null;
+		}
+		final PageCoalescer coalescer = cluster.getPageCoalescer();
+		final PageCoalescer.StatementKey key = coalescer.key(session.getLoggedKeyspace(), statement, optimizingStatement);
+		if (key == null) {
+			return null;
+		}
+		return new CoalescedResultSetFuture(this, coalescer, key, optimizingStatement,
+				coalescer.fetch(this, key, optimizingStatement, null, null));
+	}
+
+	/**
+	 * Execute a statement with all its pages pinned to a given host.
+	 */
+	ResultSetFuture executeAsync(Statement statement, Host host) {
+		final PagingOptimizingStatement optimizingStatement = wrap(statement);
+		optimizingStatement.setLastHost(host);
+		return new PagingOptimizingResultSetFuture(executeAsync(optimizingStatement), optimizingStatement, cluster);
+	}
+
+	/**
+	 * Execute a single page of a statement for {@link PageCoalescer}, pinned to
+	 * a given host if it isn't null. All pages of a reader are executed with the
+	 * same statement, one after another.
+	 *
+	 * @param pagingState paging state of the page or null for the first page.
+	 */
+	ListenableFuture<ResultSet> executePage(PagingOptimizingStatement optimizingStatement, ByteBuffer pagingState,
+			Host host) {
+		optimizingStatement.setPagingStateOverride(pagingState);
+		optimizingStatement.setLastHost(host);
+		return Futures.transform(executeAsync(optimizingStatement),
+				(ResultSet result) -> (ResultSet) new PagingOptimizingResultSet(result, optimizingStatement, cluster,
+						true));
+	}
+
+	/**
+	 * Execute a statement from a given raw paging state, pinned to a given host if
+	 * it isn't null, writing checkpoints of its pages. A null paging state starts
+	 * from the statement's own one; the statement isn't modified.
+	 */
+	ResultSet execute(Statement statement, ByteBuffer pagingState, Host host, CheckpointingScan checkpoint) {
+		final PagingOptimizingStatement optimizingStatement = wrap(statement);
+		optimizingStatement.setPagingStateOverride(pagingState);
+		optimizingStatement.setLastHost(host);
+		optimizingStatement.setCheckpoint(checkpoint);
+		return new PagingOptimizingResultSet(executeAsync(optimizingStatement).getUninterruptibly(), optimizingStatement,
+				cluster);
 	}
 
 	@Override
 	public PreparedStatement prepare(String query) {
-		return session.prepare(query);
+		final PreparedStatement registered = registered(query);
+		return register(registered != null ? registered : session.prepare(query));
 	}
 
 	@Override
 	public PreparedStatement prepare(RegularStatement statement) {
-		return session.prepare(statement);
+		return register(session.prepare(statement));
 	}
 
 	@Override
 	public ListenableFuture<PreparedStatement> prepareAsync(String query) {
-		return session.prepareAsync(query);
+		final PreparedStatement registered = registered(query);
+		if (registered != null) {
+			return Futures.immediateFuture(register(registered));
+		}
+		return Futures.transform(session.prepareAsync(query), this::register);
 	}
 
 	@Override
 	public ListenableFuture<PreparedStatement> prepareAsync(RegularStatement statement) {
-		return session.prepareAsync(statement);
+		return Futures.transform(session.prepareAsync(statement), this::register);
+	}
+
+	/**
+	 * Returns the statement already prepared for a query in this session's keyspace,
+	 * if prepared statement warm-up and reuse are enabled. Statements prepared from a
+	 * {@link RegularStatement} aren't reused, as they take its options.
+	 */
+	private PreparedStatement registered(String query) {
+		return options.isPreparedStatementWarmUpEnabled() && options.isPreparedStatementReuseEnabled()
+				? preparedStatements.get(session.getLoggedKeyspace(), query) : null;
+	}
+
+	/**
+	 * Register a prepared statement for warm-up.
+	 */
+	private PreparedStatement register(PreparedStatement statement) {
+		if (options.isPreparedStatementWarmUpEnabled()) {
+			preparedStatements.register(statement);
+		}
+		return statement;
 	}
 
 	@Override
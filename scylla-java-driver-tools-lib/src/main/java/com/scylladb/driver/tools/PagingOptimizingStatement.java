@@ -4,16 +4,51 @@
 
 package com.scylladb.driver.tools;
 
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.QueryOptions;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.StatementWrapper;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 class PagingOptimizingStatement extends StatementWrapper {
+
+	private static final ByteBuffer NO_ROUTING_KEY = ByteBuffer.allocate(0);
+
+	private final Statement wrapped;
 	
 	private volatile Host lastHost;
+	private volatile Set<Host> replicas;
+	private volatile PinnedQueryPlan plan;
+	private volatile int pages;
+	private volatile CheckpointingScan checkpoint;
+	private volatile ByteBuffer pagingStateOverride;
+	private volatile FetchSizeController.Shape shape;
+	private volatile int requestedFetchSize;
+	private volatile ByteBuffer routingKey;
+	private volatile long traceId;
+	private volatile Queue<RoutingTracer.Decision> routingDecisions;
+	private volatile int pageRetries;
+	private volatile boolean conditional;
+	private Host inFlightHost;
+	private Host sampledHost;
+	private HostConcurrencyLimiter limiter;
 
 	PagingOptimizingStatement(Statement wrapped) {
 		super(wrapped);
+		this.wrapped = wrapped;
+	}
+
+	Statement getWrapped() {
+		return wrapped;
 	}
 	
 	Host getLastHost() {
@@ -24,4 +59,282 @@ class PagingOptimizingStatement extends StatementWrapper {
 		lastHost = host;
 	}
 
+	/**
+	 * Replicas of the statement's routing key or null if they were not resolved yet.
+	 * Empty if the statement has no routing key.
+	 */
+	Set<Host> getReplicas() {
+		return replicas;
+	}
+
+	void setReplicas(Set<Host> replicas) {
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Number of pages requested so far.
+	 */
+	int getPages() {
+		return pages;
+	}
+
+	/**
+	 * Called once per page, when the page is routed or, for a page that
+	 * {@link PageCoalescer} shares with a request of another statement, when
+	 * the page is joined. Pages are requested one after another, so the increment
+	 * doesn't need to be atomic.
+	 */
+	void incrementPages() {
+		pages++;
+	}
+
+	/**
+	 * Whether the statement is a lightweight transaction routed to its partition's
+	 * first replica.
+	 */
+	boolean isConditional() {
+		return conditional;
+	}
+
+	void setConditional(boolean conditional) {
+		this.conditional = conditional;
+	}
+
+	/**
+	 * Set how many failed pages of the statement may still be retried on another host.
+	 */
+	void setPageRetries(int retries) {
+		pageRetries = retries;
+	}
+
+	/**
+	 * Use one of the statement's page retries. Returns false if there are none left.
+	 * Speculative requests of the same page may fail at the same time, so this is atomic.
+	 */
+	synchronized boolean takePageRetry() {
+		if (pageRetries == 0) {
+			return false;
+		}
+		pageRetries--;
+		return true;
+	}
+
+	/**
+	 * Pages following the first one are reads, so while they may be retried
+	 * the driver is told they are idempotent. Otherwise it wouldn't ask the
+	 * retry policy about timeouts and request errors.
+	 *
+	 * The driver also speculates only idempotent statements, so
+	 * {@link PagingSpeculativeExecutionPolicy} doesn't speculate statements that
+	 * are {@link #isIdempotentForRetryOnly idempotent only to be retried}.
+	 */
+	@Override
+	public boolean isIdempotentWithDefault(QueryOptions queryOptions) {
+		return isRetryable() || super.isIdempotentWithDefault(queryOptions);
+	}
+
+	/**
+	 * Whether the statement is idempotent only because its page may be retried.
+	 */
+	boolean isIdempotentForRetryOnly(QueryOptions queryOptions) {
+		return isRetryable() && !super.isIdempotentWithDefault(queryOptions);
+	}
+
+	private boolean isRetryable() {
+		return pageRetries > 0 && pages > 1 && super.getRetryPolicy() == null;
+	}
+
+	/**
+	 * Plan reused by all pages of this statement. Created on first use.
+	 * Pages of a statement are requested one after another, so this is never
+	 * called concurrently.
+	 */
+	PinnedQueryPlan getPlan(LoadBalancingPolicy wrappedPolicy, PagingOptimizingOptions options) {
+		if (plan == null) {
+			plan = new PinnedQueryPlan(wrappedPolicy, this, options);
+		}
+		return plan;
+	}
+
+	/**
+	 * Host a request of the statement is counted against by a concurrency limiter.
+	 */
+	synchronized void setInFlightHost(Host host, HostConcurrencyLimiter limiter) {
+		inFlightHost = host;
+		sampledHost = host;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Returns the host a request of the statement is counted against, or null if
+	 * none is, and stops counting it, so that each request is released once.
+	 */
+	synchronized Host takeInFlightHost() {
+		final Host host = inFlightHost;
+		inFlightHost = null;
+		return host;
+	}
+
+	/**
+	 * Returns the host whose limit the latency of the statement's request adjusts,
+	 * or null if there is none, so that each request is sampled once. Unlike the
+	 * in-flight host, it is kept when the request stops being counted because its
+	 * future completed, which happens before the driver reports the request.
+	 */
+	synchronized Host takeSampledHost() {
+		final Host host = sampledHost;
+		sampledHost = null;
+		return host;
+	}
+
+	/**
+	 * Stop counting the statement's request against its host when a future of the
+	 * request completes, whether it succeeds, fails or is cancelled. The driver
+	 * reports a request to latency trackers, which otherwise release it, only if it
+	 * was sent to a host: not when it is cancelled while waiting for a connection,
+	 * nor when it fails because no host could take it, e.g. all pools were busy.
+	 */
+	<T extends ListenableFuture<?>> T releaseOnCompletion(T future) {
+		future.addListener(() -> {
+			final HostConcurrencyLimiter inFlightLimiter;
+			synchronized (this) {
+				inFlightLimiter = limiter;
+			}
+			if (inFlightLimiter != null) {
+				inFlightLimiter.release(this);
+			}
+		}, MoreExecutors.directExecutor());
+		return future;
+	}
+
+	/**
+	 * Checkpoints of the statement's pages or null if they are not checkpointed.
+	 */
+	CheckpointingScan getCheckpoint() {
+		return checkpoint;
+	}
+
+	void setCheckpoint(CheckpointingScan checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Shape whose adjusted fetch size the statement's pages are requested with,
+	 * or null if they are requested with the wrapped statement's fetch size.
+	 */
+	FetchSizeController.Shape getShape() {
+		return shape;
+	}
+
+	void setShape(FetchSizeController.Shape shape) {
+		this.shape = shape;
+	}
+
+	/**
+	 * Fetch size the last page was requested with, if the statement has a shape.
+	 */
+	int getRequestedFetchSize() {
+		return requestedFetchSize;
+	}
+
+	/**
+	 * Fetch size the next page will be requested with, or 0 if the driver's default
+	 * applies. Unlike {@link #getFetchSize()}, it doesn't record the fetch size as
+	 * requested, so the optimization reads it from here.
+	 */
+	int getNextFetchSize() {
+		final FetchSizeController.Shape current = shape;
+		return current != null ? current.getFetchSize() : super.getFetchSize();
+	}
+
+	/**
+	 * The driver reads the fetch size when it builds the request of every page,
+	 * and only then, so a shape's fetch size applies from the next page on and
+	 * is recorded as the one the page was requested with.
+	 */
+	@Override
+	public int getFetchSize() {
+		final FetchSizeController.Shape current = shape;
+		if (current == null) {
+			return super.getFetchSize();
+		}
+		final int fetchSize = current.getFetchSize();
+		requestedFetchSize = fetchSize;
+		return fetchSize;
+	}
+
+	/**
+	 * The routing key is needed by the load balancing policies for every page,
+	 * so it is computed once per statement. The driver takes it from the wrapped
+	 * statement's explicit key, or assembles it from the variables whose indexes
+	 * it keeps with the prepared statement.
+	 */
+	@Override
+	public ByteBuffer getRoutingKey(ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
+		ByteBuffer key = routingKey;
+		if (key == null) {
+			key = super.getRoutingKey(protocolVersion, codecRegistry);
+			key = key != null ? key : NO_ROUTING_KEY;
+			routingKey = key;
+		}
+		return key != NO_ROUTING_KEY ? key.duplicate() : null;
+	}
+
+	/**
+	 * Number identifying the statement in routing traces or 0 if it wasn't traced yet.
+	 */
+	long getTraceId() {
+		return traceId;
+	}
+
+	void setTraceId(long id) {
+		traceId = id;
+	}
+
+	/**
+	 * Oldest routing decision whose page didn't succeed yet or null if there is none.
+	 * The driver may route the next page before it reports the previous one to latency
+	 * trackers, so decisions are queued until their page succeeds.
+	 */
+	RoutingTracer.Decision getRoutingDecision() {
+		final Queue<RoutingTracer.Decision> decisions = routingDecisions;
+		return decisions != null ? decisions.peek() : null;
+	}
+
+	/**
+	 * Called once per page, like {@link #incrementPages()}.
+	 */
+	void addRoutingDecision(RoutingTracer.Decision decision) {
+		if (routingDecisions == null) {
+			routingDecisions = new ConcurrentLinkedQueue<>();
+		}
+		routingDecisions.add(decision);
+	}
+
+	void removeRoutingDecision(RoutingTracer.Decision decision) {
+		routingDecisions.remove(decision);
+	}
+
+	void clearRoutingDecisions() {
+		final Queue<RoutingTracer.Decision> decisions = routingDecisions;
+		if (decisions != null) {
+			decisions.clear();
+		}
+	}
+
+	/**
+	 * Request a page with a given paging state without modifying the wrapped
+	 * statement, so that it can be shared by requests of different pages.
+	 * Null leaves the wrapped statement's paging state.
+	 */
+	void setPagingStateOverride(ByteBuffer pagingState) {
+		pagingStateOverride = pagingState;
+	}
+
+	@Override
+	public ByteBuffer getPagingState() {
+		final ByteBuffer pagingState = pagingStateOverride;
+		return pagingState != null ? pagingState.duplicate() : super.getPagingState();
+	}
+
 }
@@ -0,0 +1,101 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.policies.RetryPolicy;
+
+/**
+ * Retry policy that resumes a query whose page failed on the next host of its
+ * query plan, instead of failing the whole query, and counts retries of
+ * lightweight transactions.
+ *
+ * The driver retries the same request, so the page is read again from the same
+ * paging state. The query plan of a pinned page returns the pinned host first
+ * and then the hosts of the wrapped load balancing policy, so with a token aware
+ * policy the page goes to another replica, and the following pages are pinned to
+ * whichever host serves it. Each query retries at most
+ * {@link PagingOptimizingOptions#setPageRetryLimit} pages.
+ *
+ * First pages, queries that used up their retries and statements not executed
+ * through the optimizing session are handled by the wrapped policy.
+ */
+class PagingRetryPolicy implements RetryPolicy {
+
+	private final RetryPolicy wrapped;
+	private final PagingOptimizingMetrics metrics;
+
+	PagingRetryPolicy(RetryPolicy wrapped, PagingOptimizingMetrics metrics) {
+		this.wrapped = wrapped;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Whether a failed request of a statement is retried as a failed page.
+	 */
+	private boolean retryPage(Statement statement) {
+		if (!(statement instanceof PagingOptimizingStatement)) {
+			return false;
+		}
+		final PagingOptimizingStatement optimizingStatement = (PagingOptimizingStatement) statement;
+		if (optimizingStatement.getPages() > 1 && optimizingStatement.takePageRetry()) {
+			metrics.getPageRetries().inc();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Count retries of lightweight transactions decided by the wrapped policy.
+	 */
+	private RetryDecision count(Statement statement, RetryDecision decision) {
+		if (decision.getType() == RetryDecision.Type.RETRY && statement instanceof PagingOptimizingStatement
+				&& ((PagingOptimizingStatement) statement).isConditional()) {
+			metrics.getLwtRetries().inc();
+		}
+		return decision;
+	}
+
+	@Override
+	public RetryDecision onReadTimeout(Statement statement, ConsistencyLevel cl, int requiredResponses,
+			int receivedResponses, boolean dataRetrieved, int nbRetry) {
+		return retryPage(statement) ? RetryDecision.tryNextHost(cl) : count(statement,
+				wrapped.onReadTimeout(statement, cl, requiredResponses, receivedResponses, dataRetrieved, nbRetry));
+	}
+
+	@Override
+	public RetryDecision onWriteTimeout(Statement statement, ConsistencyLevel cl, WriteType writeType,
+			int requiredAcks, int receivedAcks, int nbRetry) {
+		return count(statement, wrapped.onWriteTimeout(statement, cl, writeType, requiredAcks, receivedAcks, nbRetry));
+	}
+
+	@Override
+	public RetryDecision onUnavailable(Statement statement, ConsistencyLevel cl, int requiredReplica,
+			int aliveReplica, int nbRetry) {
+		return retryPage(statement) ? RetryDecision.tryNextHost(cl)
+				: count(statement, wrapped.onUnavailable(statement, cl, requiredReplica, aliveReplica, nbRetry));
+	}
+
+	@Override
+	public RetryDecision onRequestError(Statement statement, ConsistencyLevel cl, DriverException e, int nbRetry) {
+		return retryPage(statement) ? RetryDecision.tryNextHost(cl)
+				: count(statement, wrapped.onRequestError(statement, cl, e, nbRetry));
+	}
+
+	@Override
+	public void init(Cluster cluster) {
+		wrapped.init(cluster);
+	}
+
+	@Override
+	public void close() {
+		wrapped.close();
+	}
+
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PerHostPercentileTracker;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+
+/**
+ * Speculative execution policy that races a pinned page against the next host
+ * of the query plan when the pinned host doesn't answer within a percentile
+ * of its recent latencies. Nothing is speculated until enough latencies of the
+ * pinned host were recorded over a whole interval.
+ *
+ * The query plan of a pinned page returns the pinned host first and then the
+ * hosts of the wrapped load balancing policy, so with a token aware policy
+ * the speculative request goes to another replica. Whichever host answers
+ * first serves the page and the following pages are pinned to it.
+ *
+ * First pages and statements not executed through the optimizing session
+ * are handled by the wrapped policy. As with any speculative execution,
+ * only idempotent statements are speculated, and pages that are idempotent
+ * only so that they may be retried are not. Latencies are tracked only if
+ * speculative page fetches are enabled when the cluster is initialized.
+ */
+class PagingSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy {
+
+	private static final long HIGHEST_TRACKABLE_LATENCY_MILLIS = TimeUnit.SECONDS.toMillis(15);
+	private static final int MIN_RECORDED_VALUES = 100;
+
+	private final SpeculativeExecutionPolicy wrapped;
+	private final PagingOptimizingOptions options;
+	private volatile Cluster cluster;
+	private volatile PerHostPercentileTracker percentileTracker;
+
+	PagingSpeculativeExecutionPolicy(SpeculativeExecutionPolicy wrapped, PagingOptimizingOptions options) {
+		this.wrapped = wrapped;
+		this.options = options;
+	}
+
+	@Override
+	public void init(Cluster cluster) {
+		this.cluster = cluster;
+		// Every request is reported to latency trackers, so none is registered unless it's needed.
+		if (options.isSpeculativePageFetchEnabled()) {
+			percentileTracker = PerHostPercentileTracker.builder(HIGHEST_TRACKABLE_LATENCY_MILLIS)
+					.withMinRecordedValues(MIN_RECORDED_VALUES)
+					.withInterval(options.getSpeculativePageFetchIntervalMillis(), TimeUnit.MILLISECONDS)
+					.build();
+			cluster.register(percentileTracker);
+		}
+		wrapped.init(cluster);
+	}
+
+	@Override
+	public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+		if (statement instanceof PagingOptimizingStatement && ((PagingOptimizingStatement) statement)
+				.isIdempotentForRetryOnly(cluster.getConfiguration().getQueryOptions())) {
+			return NoSpeculativeExecutionPolicy.INSTANCE.newPlan(loggedKeyspace, statement);
+		}
+		if (options.isSpeculativePageFetchEnabled() && percentileTracker != null
+				&& statement instanceof PagingOptimizingStatement
+				&& ((PagingOptimizingStatement) statement).getLastHost() != null) {
+			return new PinnedPagePlan(statement);
+		}
+		return wrapped.newPlan(loggedKeyspace, statement);
+	}
+
+	@Override
+	public void close() {
+		wrapped.close();
+	}
+
+	/**
+	 * Schedules a single speculative request, since a page has only one pinned host to back up.
+	 */
+	private class PinnedPagePlan implements SpeculativeExecutionPlan {
+
+		private final Statement statement;
+		private boolean scheduled;
+
+		PinnedPagePlan(Statement statement) {
+			this.statement = statement;
+		}
+
+		@Override
+		public synchronized long nextExecution(Host lastQueried) {
+			if (scheduled) {
+				return -1;
+			}
+			scheduled = true;
+			final long latency = percentileTracker.getLatencyAtPercentile(lastQueried, statement, null,
+					options.getSpeculativePageFetchPercentile());
+			// Latencies are tracked in milliseconds and a zero delay would speculate every page.
+			return latency < 0 ? -1 : Math.max(latency, 1);
+		}
+	}
+
+}
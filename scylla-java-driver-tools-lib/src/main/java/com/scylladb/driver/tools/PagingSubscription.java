@@ -0,0 +1,160 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.scylladb.driver.tools.ReactivePaging.Subscriber;
+import com.scylladb.driver.tools.ReactivePaging.Subscription;
+
+/**
+ * Subscription to the rows, or pages, of a statement.
+ *
+ * All signals are sent from a drain loop that only one thread runs at a time,
+ * so they are serialized as the Reactive Streams specification requires.
+ * A call that finds the loop running only tells it to go around once more.
+ */
+class PagingSubscription<T> implements Subscription {
+
+	private final PagingOptimizingSession session;
+	private final Statement statement;
+	private final Subscriber<? super T> subscriber;
+	private final boolean pages;
+	private final AtomicLong requested = new AtomicLong();
+	private final AtomicInteger wip = new AtomicInteger();
+	private volatile boolean cancelled;
+	private volatile ResultSet resultSet;
+	private volatile boolean fetching;
+	private volatile Throwable error;
+	private boolean executed;
+	private boolean terminated;
+
+	PagingSubscription(PagingOptimizingSession session, Statement statement, Subscriber<? super T> subscriber,
+			boolean pages) {
+		this.session = session;
+		this.statement = statement;
+		this.subscriber = subscriber;
+		this.pages = pages;
+	}
+
+	void start() {
+		subscriber.onSubscribe(this);
+	}
+
+	@Override
+	public void request(long n) {
+		if (n <= 0) {
+			error = new IllegalArgumentException("Requested a non-positive number of items: " + n);
+		} else {
+			long current;
+			do {
+				current = requested.get();
+				if (current == Long.MAX_VALUE) {
+					break;
+				}
+			} while (!requested.compareAndSet(current, current + Math.min(n, Long.MAX_VALUE - current)));
+		}
+		drain();
+	}
+
+	@Override
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			emit();
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void emit() {
+		if (cancelled || terminated) {
+			return;
+		}
+		if (error != null) {
+			terminated = true;
+			subscriber.onError(error);
+			return;
+		}
+		if (!executed) {
+			if (requested.get() == 0) {
+				return;
+			}
+			executed = true;
+			fetch(session.executeAsync(statement));
+			return;
+		}
+		final ResultSet current = resultSet;
+		if (current == null || fetching) {
+			return;
+		}
+		while (!cancelled) {
+			final int available = current.getAvailableWithoutFetching();
+			if (available == 0) {
+				if (current.isFullyFetched()) {
+					terminated = true;
+					subscriber.onComplete();
+				} else if (requested.get() > 0) {
+					fetch(current.fetchMoreResults());
+				}
+				return;
+			}
+			if (requested.get() == 0) {
+				return;
+			}
+			subscriber.onNext(next(current, available));
+			if (requested.get() != Long.MAX_VALUE) {
+				requested.decrementAndGet();
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T next(ResultSet current, int available) {
+		if (!pages) {
+			return (T) current.one();
+		}
+		final List<Row> page = new ArrayList<>(available);
+		for (int i = 0; i < available; ++i) {
+			page.add(current.one());
+		}
+		return (T) page;
+	}
+
+	private void fetch(ListenableFuture<ResultSet> future) {
+		fetching = true;
+		Futures.addCallback(future, new FutureCallback<ResultSet>() {
+			@Override
+			public void onSuccess(ResultSet result) {
+				resultSet = result;
+				fetching = false;
+				drain();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				error = t;
+				fetching = false;
+				drain();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+/**
+ * Query plan that returns a pinned host first and then the hosts of the wrapped
+ * policy's plan, skipping the pinned one.
+ *
+ * A single instance is kept by each {@link PagingOptimizingStatement} and is
+ * {@link #reset reset} for every page, so pages don't allocate new plans.
+ * The wrapped plan is created only if the pinned host can't serve the page.
+ *
+ * With {@link PagingOptimizingOptions#setLocalityFallbackEnabled locality
+ * fallback} enabled, the hosts of the wrapped plan are ordered by their
+ * {@link Locality} relative to the pinned host: hosts in the same rack come
+ * first, then the rest of its datacenter and then remote hosts. Hosts of the same
+ * locality keep the wrapped plan's order, so replicas still come first
+ * with a token aware policy.
+ *
+ * The driver consumes a plan while holding its monitor, so resetting
+ * under the same monitor keeps the plan consistent even if the request
+ * of a previous page is still finishing.
+ */
+class PinnedQueryPlan implements Iterator<Host> {
+
+	private final LoadBalancingPolicy wrappedPolicy;
+	private final PagingOptimizingStatement statement;
+	private final PagingOptimizingOptions options;
+
+	private String loggedKeyspace;
+	private Host first;
+	private boolean firstReturned;
+	private Iterator<Host> wrapped;
+	private Host next;
+
+	PinnedQueryPlan(LoadBalancingPolicy wrappedPolicy, PagingOptimizingStatement statement,
+			PagingOptimizingOptions options) {
+		this.wrappedPolicy = wrappedPolicy;
+		this.statement = statement;
+		this.options = options;
+	}
+
+	/**
+	 * Prepare the plan for a new page.
+	 *
+	 * @param live whether {@code first} is up, as checked by the caller.
+	 */
+	synchronized PinnedQueryPlan reset(String loggedKeyspace, Host first, boolean live) {
+		this.loggedKeyspace = loggedKeyspace;
+		this.first = first;
+		firstReturned = !live;
+		wrapped = null;
+		next = null;
+		return this;
+	}
+
+	@Override
+	public synchronized boolean hasNext() {
+		return !firstReturned || computeNext();
+	}
+
+	@Override
+	public synchronized Host next() {
+		if (!firstReturned) {
+			firstReturned = true;
+			return first;
+		}
+		if (!computeNext()) {
+			throw new NoSuchElementException();
+		}
+		final Host result = next;
+		next = null;
+		return result;
+	}
+
+	/**
+	 * Find the next host of the wrapped plan, skipping the host that was
+	 * already returned first so that it is not tried twice.
+	 */
+	private boolean computeNext() {
+		if (wrapped == null) {
+			wrapped = wrappedPolicy.newQueryPlan(loggedKeyspace, statement);
+			if (options.isLocalityFallbackEnabled()) {
+				wrapped = rankByLocality(wrapped);
+			}
+		}
+		while (next == null && wrapped.hasNext()) {
+			final Host candidate = wrapped.next();
+			if (!candidate.equals(first)) {
+				next = candidate;
+			}
+		}
+		return next != null;
+	}
+
+	private Iterator<Host> rankByLocality(Iterator<Host> plan) {
+		final List<Host> ranked = new ArrayList<>();
+		plan.forEachRemaining(ranked::add);
+		// List.sort is stable, so hosts of the same locality keep their order.
+		ranked.sort(Comparator.comparing(host -> Locality.of(host, first)));
+		return ranked.iterator();
+	}
+
+}
@@ -0,0 +1,160 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Fills and checks the connection pools of a new session before it is returned.
+ *
+ * The driver opens the core connections of every host when a session connects, but
+ * the session is ready even if some of them failed to open, and a pool opens missing
+ * connections only when it gets requests. So for every local host that is up, the
+ * warmer sends as many concurrent queries of a system table as the pool has core
+ * connections, pinned to the host; the pool gives each of them the least busy
+ * connection. This is repeated, every {@link #RETRY_DELAY_MILLIS}, until all queries
+ * are served by the host and the pool has all its core connections, or the timeout
+ * passes.
+ */
+class PoolWarmer {
+
+	private static final String VALIDATION_QUERY = "SELECT key FROM system.local";
+	private static final long RETRY_DELAY_MILLIS = 100;
+
+	private final Cluster cluster;
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics metrics;
+
+	PoolWarmer(Cluster cluster, PagingOptimizingOptions options, PagingOptimizingMetrics metrics) {
+		this.cluster = cluster;
+		this.options = options;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Warm up the pools of a session. Returns a future of the session that completes
+	 * when pools of all local hosts are warmed up or the timeout passes.
+	 */
+	ListenableFuture<Session> warmUp(Session session) {
+		final long timeoutNanos = options.getPoolWarmUpTimeoutNanos();
+		final long deadline = System.nanoTime() + timeoutNanos;
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("paging-optimizer-pool-warm-up-%d").build());
+		final SettableFuture<Session> done = SettableFuture.create();
+		done.addListener(scheduler::shutdownNow, MoreExecutors.directExecutor());
+
+		final LoadBalancingPolicy policy = cluster.getConfiguration().getPolicies().getLoadBalancingPolicy();
+		final int connections = cluster.getConfiguration().getPoolingOptions()
+				.getCoreConnectionsPerHost(HostDistance.LOCAL);
+		final List<ListenableFuture<Void>> pools = new ArrayList<>();
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			if (host.isUp() && policy.distance(host) == HostDistance.LOCAL) {
+				final HostWarmUp pool = new HostWarmUp(session, host, connections, deadline, scheduler, done);
+				pools.add(pool.future);
+				pool.run();
+			}
+		}
+		Futures.successfulAsList(pools).addListener(() -> done.set(session), MoreExecutors.directExecutor());
+		try {
+			scheduler.schedule(() -> {
+				if (done.set(session)) {
+					metrics.getPoolWarmUpTimeouts().inc();
+				}
+			}, timeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// All pools were warmed up already.
+		}
+		return done;
+	}
+
+	/**
+	 * Rounds of queries that warm up the pool of one host.
+	 */
+	private class HostWarmUp implements Runnable {
+
+		private final Session session;
+		private final Host host;
+		private final int connections;
+		private final long deadline;
+		private final ScheduledExecutorService scheduler;
+		private final ListenableFuture<Session> done;
+		private final SettableFuture<Void> future = SettableFuture.create();
+
+		HostWarmUp(Session session, Host host, int connections, long deadline, ScheduledExecutorService scheduler,
+				ListenableFuture<Session> done) {
+			this.session = session;
+			this.host = host;
+			this.connections = connections;
+			this.deadline = deadline;
+			this.scheduler = scheduler;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (done.isDone() || remainingMillis <= 0) {
+				future.set(null);
+				return;
+			}
+			final List<ListenableFuture<ResultSet>> queries = new ArrayList<>(connections);
+			for (int i = 0; i < connections; ++i) {
+				final PagingOptimizingStatement statement = new PagingOptimizingStatement(
+						new SimpleStatement(VALIDATION_QUERY)
+								.setReadTimeoutMillis((int) Math.min(remainingMillis, Integer.MAX_VALUE)));
+				statement.setLastHost(host);
+				queries.add(session.executeAsync(statement));
+			}
+			final ListenableFuture<List<ResultSet>> results = Futures.successfulAsList(queries);
+			results.addListener(() -> check(Futures.getUnchecked(results)), MoreExecutors.directExecutor());
+		}
+
+		/**
+		 * Finish if all queries of the round were served by the host and its pool is full,
+		 * or schedule another round. Failed queries have null results.
+		 */
+		private void check(List<ResultSet> results) {
+			if (servedByHost(results) && session.getState().getOpenConnections(host) >= connections) {
+				metrics.getWarmedUpPools().inc();
+				future.set(null);
+				return;
+			}
+			try {
+				scheduler.schedule(this, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// The session was returned.
+				future.set(null);
+			}
+		}
+
+		private boolean servedByHost(List<ResultSet> results) {
+			for (ResultSet resultSet : results) {
+				if (resultSet == null || !host.equals(resultSet.getExecutionInfo().getQueriedHost())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Statements prepared through the sessions of a cluster, identified by their query
+ * and the keyspace of the session that prepared them.
+ *
+ * The driver references prepared statements weakly and re-prepares on hosts that
+ * come up only the ones the application still holds; the registry holds them, so
+ * all of them are re-prepared. With a file, queries read from it are prepared when
+ * a session logged into their keyspace connects, and new queries are appended to it,
+ * one per line as the keyspace and the query separated by a tab, with tabs, line
+ * breaks and backslashes escaped. Statements are often registered on the driver's
+ * I/O threads, which must not block, so queries are appended by a thread of the
+ * registry, in order, and the cluster waits for it when it's closed.
+ *
+ * At most {@link #MAX_STATEMENTS} queries are registered, including the ones read
+ * from the file; queries prepared once the registry is full are neither kept nor
+ * saved.
+ */
+class PreparedStatementRegistry {
+
+	private static final Logger logger = Logger.getLogger(PreparedStatementRegistry.class.getName());
+	private static final int MAX_STATEMENTS = 10000;
+	private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+	private final PagingOptimizingOptions options;
+	private final PagingOptimizingMetrics metrics;
+	private final Path file;
+	private final ThreadPoolExecutor appender;
+	private final Set<Query> queries = ConcurrentHashMap.newKeySet();
+	private final ConcurrentMap<Query, PreparedStatement> statements = new ConcurrentHashMap<>();
+
+	PreparedStatementRegistry(PagingOptimizingOptions options, PagingOptimizingMetrics metrics) {
+		this.options = options;
+		this.metrics = metrics;
+		file = options.getPreparedStatementsFile();
+		if (file != null) {
+			appender = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+					new ThreadFactoryBuilder().setDaemon(true).setNameFormat("paging-optimizer-statements-%d").build());
+			appender.allowCoreThreadTimeOut(true);
+			load();
+		} else {
+			appender = null;
+		}
+	}
+
+	private void load() {
+		try {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				final int tab = line.indexOf('\t');
+				if (tab >= 0 && queries.size() < MAX_STATEMENTS) {
+					final String keyspace = unescape(line.substring(0, tab));
+					queries.add(new Query(keyspace.isEmpty() ? null : keyspace, unescape(line.substring(tab + 1))));
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// Nothing was prepared yet.
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Can't read prepared statements from " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the statement registered for a given query prepared in a given keyspace,
+	 * or null if it wasn't prepared yet.
+	 */
+	PreparedStatement get(String keyspace, String query) {
+		return statements.get(new Query(keyspace, query));
+	}
+
+	/**
+	 * Register a prepared statement, appending its query to the file if it's new,
+	 * unless the registry is full.
+	 */
+	PreparedStatement register(PreparedStatement statement) {
+		final Query query = new Query(statement.getQueryKeyspace(), statement.getQueryString());
+		if (!queries.contains(query) && queries.size() >= MAX_STATEMENTS) {
+			logger.log(Level.FINE, "Prepared statement registry is full, not registering {0}", query.query);
+			return statement;
+		}
+		statements.putIfAbsent(query, statement);
+		if (queries.add(query) && file != null) {
+			append(query);
+		}
+		return statement;
+	}
+
+	private void append(Query query) {
+		try {
+			appender.execute(() -> write(query));
+		} catch (RejectedExecutionException e) {
+			logger.log(Level.FINE, "Cluster is closed, not saving prepared statement {0}", query.query);
+		}
+	}
+
+	private void write(Query query) {
+		try (final BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			writer.write(escape(query.keyspace != null ? query.keyspace : "") + '\t' + escape(query.query));
+			writer.newLine();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Can't save prepared statement to " + file, e);
+		}
+	}
+
+	/**
+	 * Stop appending queries to the file once the ones already registered are appended.
+	 */
+	void close() {
+		if (appender != null) {
+			appender.shutdown();
+		}
+	}
+
+	/**
+	 * Wait until the queries registered before {@link #close()} are appended to the file.
+	 */
+	void awaitClosed() {
+		if (appender == null) {
+			return;
+		}
+		try {
+			if (!appender.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				logger.log(Level.WARNING, "Timed out saving prepared statements to {0}", file);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Prepare the registered queries of a session's keyspace that it hasn't prepared yet,
+	 * at most {@link PagingOptimizingOptions#getWarmUpConcurrency()} at a time. Returns
+	 * a future of the session that completes when all of them are done. Queries that
+	 * fail to prepare, e.g. because their table was dropped, are skipped.
+	 */
+	ListenableFuture<Session> warmUp(Session session) {
+		final String keyspace = session.getLoggedKeyspace();
+		final Queue<String> pending = new ConcurrentLinkedQueue<>();
+		for (Query query : queries) {
+			if (Objects.equals(query.keyspace, keyspace) && !statements.containsKey(query)) {
+				pending.add(query.query);
+			}
+		}
+		if (pending.isEmpty()) {
+			return Futures.immediateFuture(session);
+		}
+		final SettableFuture<Session> done = SettableFuture.create();
+		final int workers = Math.min(options.getWarmUpConcurrency(), pending.size());
+		final AtomicInteger running = new AtomicInteger(workers);
+		for (int i = 0; i < workers; ++i) {
+			prepareNext(session, pending, running, done);
+		}
+		return done;
+	}
+
+	private void prepareNext(Session session, Queue<String> pending, AtomicInteger running,
+			SettableFuture<Session> done) {
+		final String query = pending.poll();
+		if (query == null) {
+			if (running.decrementAndGet() == 0) {
+				done.set(session);
+			}
+			return;
+		}
+		Futures.addCallback(session.prepareAsync(query), new FutureCallback<PreparedStatement>() {
+			@Override
+			public void onSuccess(PreparedStatement statement) {
+				register(statement);
+				metrics.getWarmedUpStatements().inc();
+				prepareNext(session, pending, running, done);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				logger.log(Level.FINE, "Can't warm up prepared statement " + query, t);
+				prepareNext(session, pending, running, done);
+			}
+		});
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(String value) {
+		final StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				c = value.charAt(++i);
+				c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+			}
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	private static final class Query {
+
+		private final String keyspace;
+		private final String query;
+
+		Query(String keyspace, String query) {
+			this.keyspace = keyspace;
+			this.query = query;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Query)) {
+				return false;
+			}
+			final Query other = (Query) o;
+			return Objects.equals(keyspace, other.keyspace) && query.equals(other.query);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(keyspace, query);
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.List;
+
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+
+/**
+ * Publishers of the rows of paged queries, driven by the demand of their subscribers.
+ *
+ * A query is executed when its subscriber first requests items, and each following
+ * page is requested only once the subscriber has requested more items than were
+ * fetched. No thread waits for pages, so many queries can be read at the same time
+ * by a few threads, and each one holds at most a page of rows in memory, plus the
+ * pages {@link PagingOptimizingOptions#setPrefetchDepth prefetched} if enabled.
+ * All pages of a query are pinned to the same host as with any other query
+ * of the optimizing session.
+ *
+ * The interfaces follow the Reactive Streams specification, so a publisher can
+ * be adapted to {@code org.reactivestreams.Publisher} or {@code java.util.concurrent.Flow.Publisher}
+ * by forwarding the calls. Signals are delivered on the thread that calls
+ * {@link Subscription#request} or on a driver's I/O thread, so subscribers must not block.
+ *
+ * Every subscription executes the statement again.
+ */
+public final class ReactivePaging {
+
+	private ReactivePaging() {
+	}
+
+	/**
+	 * Publisher of the rows of a statement, one item per row.
+	 *
+	 * @param session a session of a cluster built by {@link ClusterOptimizer}.
+	 */
+	public static Publisher<Row> rows(Session session, Statement statement) {
+		final PagingOptimizingSession optimizingSession = checkSession(session);
+		return subscriber -> new PagingSubscription<>(optimizingSession, statement, subscriber, false).start();
+	}
+
+	/**
+	 * Publisher of the rows of a statement, one item per page. An item holds
+	 * the rows of a single response unless prefetching is enabled, in which
+	 * case it holds all rows received since the previous item.
+	 *
+	 * @param session a session of a cluster built by {@link ClusterOptimizer}.
+	 */
+	public static Publisher<List<Row>> pages(Session session, Statement statement) {
+		final PagingOptimizingSession optimizingSession = checkSession(session);
+		return subscriber -> new PagingSubscription<>(optimizingSession, statement, subscriber, true).start();
+	}
+
+	private static PagingOptimizingSession checkSession(Session session) {
+		if (!(session instanceof PagingOptimizingSession)) {
+			throw new IllegalArgumentException("ReactivePaging requires a session of a cluster built by ClusterOptimizer");
+		}
+		return (PagingOptimizingSession) session;
+	}
+
+	/**
+	 * Source of items that are pushed to a subscriber as it requests them.
+	 */
+	@FunctionalInterface
+	public interface Publisher<T> {
+
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of the items of a publisher.
+	 */
+	public interface Subscriber<T> {
+
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable error);
+
+		void onComplete();
+	}
+
+	/**
+	 * Link between a publisher and a subscriber, through which the subscriber requests items.
+	 */
+	public interface Subscription {
+
+		/**
+		 * Request {@code n} more items. A non-positive {@code n} fails the subscription.
+		 */
+		void request(long n);
+
+		/**
+		 * Stop receiving items. Pages that are already requested are dropped.
+		 */
+		void cancel();
+	}
+
+}
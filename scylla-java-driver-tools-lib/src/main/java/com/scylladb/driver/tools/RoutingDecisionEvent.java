@@ -0,0 +1,80 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event of a {@link RoutingTrace}.
+ *
+ * Only {@link RoutingTracer} refers to this class, and only after checking that
+ * the JVM has the {@code jdk.jfr} API, so the library still runs without it.
+ */
+@Name("com.scylladb.driver.tools.RoutingDecision")
+@Label("Page Routing Decision")
+@Description("Host chosen for a page by the paging optimizer and the host that served it")
+@Category({ "Scylla", "Driver" })
+@StackTrace(false)
+class RoutingDecisionEvent extends Event {
+
+	private static final EventType TYPE = EventType.getEventType(RoutingDecisionEvent.class);
+
+	@Label("Statement")
+	long statementId;
+
+	@Label("Page")
+	int page;
+
+	@Label("Pinned Host")
+	String pinnedHost;
+
+	@Label("Chosen Host")
+	String chosenHost;
+
+	@Label("Reason")
+	String reason;
+
+	@Label("Host")
+	String host;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+
+	@Label("Error")
+	String error;
+
+	/**
+	 * Whether a recording is recording these events.
+	 */
+	static boolean isRecorded() {
+		return TYPE.isEnabled();
+	}
+
+	static void commit(RoutingTrace trace) {
+		final RoutingDecisionEvent event = new RoutingDecisionEvent();
+		event.statementId = trace.getStatementId();
+		event.page = trace.getPage();
+		event.pinnedHost = toString(trace.getPinnedHost());
+		event.chosenHost = toString(trace.getChosenHost());
+		event.reason = trace.getReason().name();
+		event.host = toString(trace.getHost());
+		event.latency = trace.getLatencyNanos();
+		event.error = trace.getError();
+		event.commit();
+	}
+
+	private static String toString(Object host) {
+		return host != null ? host.toString() : null;
+	}
+
+}
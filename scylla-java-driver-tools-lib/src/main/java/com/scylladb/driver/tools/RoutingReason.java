@@ -0,0 +1,46 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+/**
+ * Why the optimizer sent a page to the host it chose.
+ */
+public enum RoutingReason {
+
+	/**
+	 * The page goes to the host that served the previous page of its query.
+	 */
+	STICKY,
+
+	/**
+	 * The pinned host is down, so the page goes to the wrapped policy's plan.
+	 */
+	PINNED_HOST_DOWN,
+
+	/**
+	 * The pinned host is slower than other replicas, so the page goes to a faster one.
+	 */
+	SLOW_HOST,
+
+	/**
+	 * The pinned host is at its concurrency limit, so the page goes to a less loaded one.
+	 */
+	SATURATED_HOST,
+
+	/**
+	 * The first page of a query goes to a replica of its routing key.
+	 */
+	REPLICA,
+
+	/**
+	 * A lightweight transaction goes to the first live replica of its partition in ring order.
+	 */
+	LWT_REPLICA,
+
+	/**
+	 * The first page of a query goes wherever the wrapped policy's plan starts.
+	 */
+	WRAPPED_POLICY
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import com.datastax.driver.core.Host;
+
+/**
+ * Record of a request of a page: where the optimizer wanted it to go, why,
+ * which host served it and how long it took.
+ *
+ * A page is recorded once for every host it was sent to, so retries and
+ * speculative executions of a page have a record each.
+ */
+public final class RoutingTrace {
+
+	private final long sequence;
+	private final long statementId;
+	private final int page;
+	private final Host pinnedHost;
+	private final Host chosenHost;
+	private final RoutingReason reason;
+	private final Host host;
+	private final long latencyNanos;
+	private final String error;
+
+	RoutingTrace(long sequence, long statementId, int page, Host pinnedHost, Host chosenHost, RoutingReason reason,
+			Host host, long latencyNanos, String error) {
+		this.sequence = sequence;
+		this.statementId = statementId;
+		this.page = page;
+		this.pinnedHost = pinnedHost;
+		this.chosenHost = chosenHost;
+		this.reason = reason;
+		this.host = host;
+		this.latencyNanos = latencyNanos;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the position of this record among all records of the cluster.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns a number identifying the execution of a statement, shared by all its pages.
+	 */
+	public long getStatementId() {
+		return statementId;
+	}
+
+	/**
+	 * Returns the number of the page, starting from 1.
+	 */
+	public int getPage() {
+		return page;
+	}
+
+	/**
+	 * Returns the host the query was pinned to or null for its first page.
+	 */
+	public Host getPinnedHost() {
+		return pinnedHost;
+	}
+
+	/**
+	 * Returns the host the optimizer put first in the plan or null if the plan
+	 * of the wrapped policy was used.
+	 */
+	public Host getChosenHost() {
+		return chosenHost;
+	}
+
+	public RoutingReason getReason() {
+		return reason;
+	}
+
+	/**
+	 * Returns the host the request was sent to.
+	 */
+	public Host getHost() {
+		return host;
+	}
+
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	/**
+	 * Returns the class name of the exception the request failed with or null if it succeeded.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "RoutingTrace(#" + sequence + ", statement " + statementId + ", page " + page + ", pinned " + pinnedHost
+				+ ", chosen " + chosenHost + ", " + reason + ", host " + host + ", " + latencyNanos + " ns"
+				+ (error != null ? ", " + error : "") + ")";
+	}
+
+}
@@ -0,0 +1,134 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.datastax.driver.core.Host;
+
+/**
+ * Records routing decisions of pages as {@link RoutingTrace}s, as Java Flight
+ * Recorder events while a recording includes them and in a ring buffer of the
+ * most recent ones if its size is {@link PagingOptimizingOptions#setRoutingTraceBufferSize set}.
+ *
+ * When neither is on, deciding where a page goes costs a check of the recording
+ * state, and nothing is allocated. The ring buffer is lock-free: writers claim
+ * slots with an atomic counter and readers copy the slots, so a snapshot may miss
+ * records that are being written.
+ */
+class RoutingTracer {
+
+	private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+	private final AtomicLong statementIds = new AtomicLong();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicReferenceArray<RoutingTrace> buffer;
+	private final int mask;
+
+	/**
+	 * @param bufferSize number of records kept, rounded up to a power of two, or 0 to keep none.
+	 */
+	RoutingTracer(int bufferSize) {
+		if (bufferSize > 0) {
+			final int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+			buffer = new AtomicReferenceArray<>(Math.max(1, capacity));
+			mask = buffer.length() - 1;
+		} else {
+			buffer = null;
+			mask = 0;
+		}
+	}
+
+	private static boolean isJfrAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	boolean isEnabled() {
+		return buffer != null || (JFR_AVAILABLE && RoutingDecisionEvent.isRecorded());
+	}
+
+	/**
+	 * Returns a decision about the current page of a statement.
+	 *
+	 * @param pinned host the statement is pinned to or null.
+	 * @param chosen host the plan starts with or null if it is the wrapped policy's plan.
+	 */
+	Decision decide(PagingOptimizingStatement statement, Host pinned, Host chosen, RoutingReason reason) {
+		long id = statement.getTraceId();
+		if (id == 0) {
+			id = statementIds.incrementAndGet();
+			statement.setTraceId(id);
+		}
+		return new Decision(id, statement.getPages(), pinned, chosen, reason);
+	}
+
+	/**
+	 * Record a request made according to a decision.
+	 */
+	void record(Decision decision, Host host, Exception exception, long latencyNanos) {
+		final boolean recorded = JFR_AVAILABLE && RoutingDecisionEvent.isRecorded();
+		if (buffer == null && !recorded) {
+			return;
+		}
+		final long number = sequence.incrementAndGet();
+		final RoutingTrace trace = new RoutingTrace(number, decision.statementId, decision.page, decision.pinned,
+				decision.chosen, decision.reason, host, latencyNanos,
+				exception != null ? exception.getClass().getName() : null);
+		if (buffer != null) {
+			buffer.set((int) number & mask, trace);
+		}
+		if (recorded) {
+			RoutingDecisionEvent.commit(trace);
+		}
+	}
+
+	/**
+	 * Returns the records in the ring buffer, oldest first.
+	 */
+	List<RoutingTrace> getTraces() {
+		if (buffer == null) {
+			throw new IllegalStateException("Routing trace buffer is disabled");
+		}
+		final List<RoutingTrace> traces = new ArrayList<>(buffer.length());
+		for (int i = 0; i < buffer.length(); ++i) {
+			final RoutingTrace trace = buffer.get(i);
+			if (trace != null) {
+				traces.add(trace);
+			}
+		}
+		traces.sort(Comparator.comparingLong(RoutingTrace::getSequence));
+		return traces;
+	}
+
+	/**
+	 * Where the optimizer sent a page of a statement and why.
+	 */
+	static class Decision {
+
+		private final long statementId;
+		private final int page;
+		private final Host pinned;
+		private final Host chosen;
+		private final RoutingReason reason;
+
+		Decision(long statementId, int page, Host pinned, Host chosen, RoutingReason reason) {
+			this.statementId = statementId;
+			this.page = page;
+			this.pinned = pinned;
+			this.chosen = chosen;
+			this.reason = reason;
+		}
+	}
+
+}
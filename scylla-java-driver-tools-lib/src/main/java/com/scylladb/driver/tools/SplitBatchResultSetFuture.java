@@ -0,0 +1,71 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Future of a batch executed as sub-batches. Completes with the result of the first
+ * sub-batch once all of them succeed, or fails as soon as one of them fails, in which
+ * case other sub-batches may still be applied, as statements of an unlogged batch may
+ * be when its coordinator fails. Cancelling it cancels all sub-batches.
+ */
+class SplitBatchResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+	private final List<ResultSetFuture> subBatches;
+
+	SplitBatchResultSetFuture(List<ResultSetFuture> subBatches) {
+		this.subBatches = subBatches;
+		final ListenableFuture<List<ResultSet>> all = Futures.allAsList(subBatches);
+		Futures.addCallback(all, new FutureCallback<List<ResultSet>>() {
+			@Override
+			public void onSuccess(List<ResultSet> results) {
+				set(results.get(0));
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				setException(t);
+			}
+		});
+	}
+
+	@Override
+	public ResultSet getUninterruptibly() {
+		return PageCoalescer.await(this);
+	}
+
+	@Override
+	public ResultSet getUninterruptibly(long timeout, TimeUnit unit) throws TimeoutException {
+		try {
+			return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+		} catch (ExecutionException e) {
+			throw PageCoalescer.propagate(e.getCause());
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!super.cancel(mayInterruptIfRunning)) {
+			return false;
+		}
+		for (ResultSetFuture subBatch : subBatches) {
+			subBatch.cancel(mayInterruptIfRunning);
+		}
+		return true;
+	}
+
+}
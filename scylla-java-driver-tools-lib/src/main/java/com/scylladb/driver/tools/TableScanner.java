@@ -0,0 +1,374 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Reads a whole table by scanning parts of the token ring in parallel.
+ *
+ * The ring is split into sub-ranges and each of them is read with a paged query
+ * whose pages are all served by one local replica of the sub-range. Sub-ranges
+ * are interleaved between replicas so that all nodes work at the same time.
+ *
+ * At most {@link #setConcurrency concurrency} sub-ranges are read at once, and
+ * a sub-range fetches its next page while its current page is being consumed, but
+ * never further ahead. So a scan keeps at most {@code 2 * concurrency * fetchSize}
+ * rows in memory, however slow the consumer is.
+ *
+ * Requires a {@link Session} of a {@link com.datastax.driver.core.Cluster Cluster}
+ * built by {@link ClusterOptimizer}.
+ */
+public class TableScanner {
+
+	private final PagingOptimizingSession session;
+	private final String keyspace;
+	private final String table;
+	private String columns = "*";
+	private int concurrency = 16;
+	private int fetchSize = 5000;
+	private int shardsPerNode = 1;
+	private int splitsPerShard = 1;
+	private PreparedStatement bounded;
+	private PreparedStatement unbounded;
+
+	public TableScanner(Session session, String keyspace, String table) {
+		if (!(session instanceof PagingOptimizingSession)) {
+			throw new IllegalArgumentException("Session was not created by a cluster built by "
+					+ ClusterOptimizer.class.getName());
+		}
+		this.session = (PagingOptimizingSession) session;
+		this.keyspace = keyspace;
+		this.table = table;
+	}
+
+	/**
+	 * Set the columns to read. All columns are read by default.
+	 *
+	 * @return this {@code TableScanner} instance.
+	 */
+	public synchronized TableScanner setColumns(String... columns) {
+		this.columns = String.join(", ", columns);
+		bounded = null;
+		unbounded = null;
+		return this;
+	}
+
+	/**
+	 * Set the maximum number of sub-ranges read at the same time. Defaults to 16.
+	 *
+	 * @return this {@code TableScanner} instance.
+	 */
+	public synchronized TableScanner setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("Concurrency has to be positive: " + concurrency);
+		}
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	/**
+	 * Set the page size of sub-range queries. Defaults to 5000.
+	 *
+	 * @return this {@code TableScanner} instance.
+	 */
+	public synchronized TableScanner setFetchSize(int fetchSize) {
+		if (fetchSize < 1) {
+			throw new IllegalArgumentException("Fetch size has to be positive: " + fetchSize);
+		}
+		this.fetchSize = fetchSize;
+		return this;
+	}
+
+	/**
+	 * Set the number of shards of each node and the number of sub-ranges to create
+	 * for each shard. The ring is split into at least
+	 * {@code nodes * shardsPerNode * splitsPerShard} sub-ranges, where nodes are the
+	 * local ones, so that every shard of every local node has work. Both default to 1, in which case the ring is split
+	 * only between token ranges of nodes.
+	 *
+	 * @return this {@code TableScanner} instance.
+	 */
+	public synchronized TableScanner setSplitting(int shardsPerNode, int splitsPerShard) {
+		if (shardsPerNode < 1 || splitsPerShard < 1) {
+			throw new IllegalArgumentException("Splitting has to be positive: " + shardsPerNode + ", "
+					+ splitsPerShard);
+		}
+		this.shardsPerNode = shardsPerNode;
+		this.splitsPerShard = splitsPerShard;
+		return this;
+	}
+
+	/**
+	 * Start a scan. Rows are returned in no particular order. Settings changed
+	 * later don't affect the scan.
+	 */
+	public synchronized Scan scan() {
+		final Metadata metadata = session.getCluster().getMetadata();
+		if (bounded == null) {
+			prepare(metadata);
+		}
+		return new Scan(bounded, unbounded, split(metadata), concurrency, fetchSize);
+	}
+
+	private void prepare(Metadata metadata) {
+		final KeyspaceMetadata keyspaceMetadata = metadata.getKeyspace(Metadata.quote(keyspace));
+		final TableMetadata tableMetadata = keyspaceMetadata != null ? keyspaceMetadata.getTable(Metadata.quote(table))
+				: null;
+		if (tableMetadata == null) {
+			throw new IllegalArgumentException("Unknown table " + keyspace + "." + table);
+		}
+		final List<String> partitionKey = new ArrayList<>();
+		for (ColumnMetadata column : tableMetadata.getPartitionKey()) {
+			partitionKey.add(Metadata.quoteIfNecessary(column.getName()));
+		}
+		final String token = "token(" + String.join(", ", partitionKey) + ")";
+		final String select = "SELECT " + columns + " FROM "
+				+ Metadata.quoteIfNecessary(tableMetadata.getKeyspace().getName()) + "."
+				+ Metadata.quoteIfNecessary(tableMetadata.getName()) + " WHERE " + token + " > ?";
+		bounded = session.prepare(select + " AND " + token + " <= ?");
+		unbounded = session.prepare(select);
+	}
+
+	/**
+	 * Split the ring into sub-ranges, each assigned to a local replica, ordered so that
+	 * consecutive sub-ranges belong to different replicas.
+	 */
+	private Deque<Split> split(Metadata metadata) {
+		final LoadBalancingPolicy policy = session.getCluster().getConfiguration().getPolicies()
+				.getLoadBalancingPolicy();
+		final List<TokenRange> ranges = new ArrayList<>(metadata.getTokenRanges());
+		int localHosts = 0;
+		for (Host host : metadata.getAllHosts()) {
+			if (policy.distance(host) == HostDistance.LOCAL) {
+				++localHosts;
+			}
+		}
+		final int target = Math.max(localHosts, 1) * shardsPerNode * splitsPerShard;
+		final int splitsPerRange = (target + ranges.size() - 1) / ranges.size();
+
+		final Map<Host, Deque<Split>> byReplica = new LinkedHashMap<>();
+		int index = 0;
+		for (TokenRange range : ranges) {
+			final List<Host> replicas = new ArrayList<>();
+			for (Host replica : metadata.getReplicas(Metadata.quote(keyspace), range)) {
+				if (replica.isUp() && policy.distance(replica) == HostDistance.LOCAL) {
+					replicas.add(replica);
+				}
+			}
+			// A range starting and ending at the same token covers the whole ring and
+			// has to be split so that its parts can be unwrapped.
+			final int splits = range.getStart().equals(range.getEnd()) ? Math.max(2, splitsPerRange) : splitsPerRange;
+			for (TokenRange part : range.splitEvenly(splits)) {
+				for (TokenRange unwrapped : part.unwrap()) {
+					final Host replica = replicas.isEmpty() ? null : replicas.get(index++ % replicas.size());
+					byReplica.computeIfAbsent(replica, r -> new ArrayDeque<>()).add(new Split(unwrapped, replica));
+				}
+			}
+		}
+
+		final Deque<Split> result = new ArrayDeque<>();
+		while (!byReplica.isEmpty()) {
+			final Iterator<Deque<Split>> queues = byReplica.values().iterator();
+			while (queues.hasNext()) {
+				final Deque<Split> queue = queues.next();
+				result.add(queue.poll());
+				if (queue.isEmpty()) {
+					queues.remove();
+				}
+			}
+		}
+		return result;
+	}
+
+	private static class Split {
+
+		final TokenRange range;
+		final Host replica;
+
+		Split(TokenRange range, Host replica) {
+			this.range = range;
+			this.replica = replica;
+		}
+
+		/**
+		 * Unwrapped ranges end before they start only if they end at the end of the ring.
+		 */
+		boolean endsAtRingEnd() {
+			return range.getEnd().compareTo(range.getStart()) <= 0;
+		}
+
+	}
+
+	/**
+	 * State of reading a single sub-range.
+	 */
+	private static class SplitRead {
+
+		ResultSet resultSet;
+		Throwable error;
+		ListenableFuture<ResultSet> nextPage;
+
+	}
+
+	/**
+	 * Rows of a scan. Not thread safe. Closing a scan cancels the requests in flight
+	 * and stops reading sub-ranges that were not started yet.
+	 */
+	public class Scan implements Iterator<Row>, AutoCloseable {
+
+		private final PreparedStatement bounded;
+		private final PreparedStatement unbounded;
+		private final Deque<Split> pending;
+		private final int concurrency;
+		private final int fetchSize;
+		private final BlockingQueue<SplitRead> ready = new LinkedBlockingQueue<>();
+		private final Set<ListenableFuture<ResultSet>> inFlight = ConcurrentHashMap.newKeySet();
+		private int active;
+		private SplitRead current;
+		private int remaining;
+
+		private Scan(PreparedStatement bounded, PreparedStatement unbounded, Deque<Split> pending, int concurrency,
+				int fetchSize) {
+			this.bounded = bounded;
+			this.unbounded = unbounded;
+			this.pending = pending;
+			this.concurrency = concurrency;
+			this.fetchSize = fetchSize;
+			while (active < concurrency && !pending.isEmpty()) {
+				start(pending.poll());
+			}
+		}
+
+		private void start(Split split) {
+			final Statement statement = split.endsAtRingEnd()
+					? unbounded.bind().setToken(0, split.range.getStart())
+					: bounded.bind().setToken(0, split.range.getStart()).setToken(1, split.range.getEnd());
+			statement.setFetchSize(fetchSize);
+			++active;
+			whenDone(new SplitRead(), track(session.executeAsync(statement, split.replica)));
+		}
+
+		/**
+		 * Keep a request until it completes, so that it can be cancelled by {@link #close()}.
+		 */
+		private ListenableFuture<ResultSet> track(ListenableFuture<ResultSet> future) {
+			inFlight.add(future);
+			future.addListener(() -> inFlight.remove(future), MoreExecutors.directExecutor());
+			return future;
+		}
+
+		private void whenDone(SplitRead read, ListenableFuture<ResultSet> future) {
+			Futures.addCallback(future, new FutureCallback<ResultSet>() {
+				@Override
+				public void onSuccess(ResultSet resultSet) {
+					read.resultSet = resultSet;
+					ready.add(read);
+				}
+
+				@Override
+				public void onFailure(Throwable error) {
+					read.error = error;
+					ready.add(read);
+				}
+			});
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (remaining == 0) {
+				if (current != null) {
+					finishPage(current);
+					current = null;
+				}
+				if (active == 0) {
+					return false;
+				}
+				current = Uninterruptibles.takeUninterruptibly(ready);
+				if (current.error != null) {
+					final Throwable error = current.error;
+					close();
+					if (error instanceof DriverException) {
+						throw ((DriverException) error).copy();
+					}
+					throw Throwables.propagate(error);
+				}
+				remaining = current.resultSet.getAvailableWithoutFetching();
+				if (!current.resultSet.isFullyFetched()) {
+					current.nextPage = track(current.resultSet.fetchMoreResults());
+				}
+			}
+			return true;
+		}
+
+		private void finishPage(SplitRead read) {
+			if (read.nextPage != null) {
+				final ListenableFuture<ResultSet> nextPage = read.nextPage;
+				read.nextPage = null;
+				whenDone(read, nextPage);
+			} else {
+				--active;
+				if (!pending.isEmpty()) {
+					start(pending.poll());
+				}
+			}
+		}
+
+		@Override
+		public Row next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			--remaining;
+			return current.resultSet.one();
+		}
+
+		@Override
+		public void close() {
+			pending.clear();
+			for (ListenableFuture<ResultSet> future : inFlight) {
+				future.cancel(true);
+			}
+			ready.clear();
+			active = 0;
+			current = null;
+			remaining = 0;
+		}
+
+	}
+
+}
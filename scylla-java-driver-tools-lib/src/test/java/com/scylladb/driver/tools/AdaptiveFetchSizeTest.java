@@ -0,0 +1,114 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class AdaptiveFetchSizeTest {
+
+	private static final int ROWS_PER_PARTITION = 200;
+	private static final int FETCH_SIZE = 10;
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withRowsPerPartition(ROWS_PER_PARTITION).start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	/**
+	 * Read all partitions one after another and return the sizes of the pages of the last one.
+	 */
+	private List<Integer> readPartitions(PagingOptimizingOptions options) {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(), options)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final List<Integer> pages = new ArrayList<>();
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				pages.clear();
+				final ResultSet resultSet = session.execute(select.bind(pk).setFetchSize(FETCH_SIZE));
+				int rows = 0;
+				while (!resultSet.isExhausted()) {
+					final int page = resultSet.getAvailableWithoutFetching();
+					pages.add(page);
+					for (int i = 0; i < page; ++i) {
+						assertEquals(rows++, resultSet.one().getInt(1));
+					}
+				}
+				assertEquals(ROWS_PER_PARTITION, rows);
+			}
+			return pages;
+		}
+	}
+
+	@Test
+	public void fetchSizeIsKeptByDefault() {
+		for (int page : readPartitions(new PagingOptimizingOptions())) {
+			assertEquals(FETCH_SIZE, page);
+		}
+	}
+
+	@Test
+	public void fastPagesGrowFetchSize() {
+		final List<Integer> pages = readPartitions(new PagingOptimizingOptions().setAdaptiveFetchSizeEnabled(true)
+				.setFetchSizeRange(1, 100).setTargetPageLatency(1, TimeUnit.SECONDS));
+		assertEquals(2, pages.size());
+		assertEquals(100, (int) pages.get(0));
+	}
+
+	@Test
+	public void pageBytesCapFetchSize() {
+		// A row of the fake cluster has three int values.
+		final List<Integer> pages = readPartitions(new PagingOptimizingOptions().setAdaptiveFetchSizeEnabled(true)
+				.setFetchSizeRange(1, 100).setTargetPageLatency(1, TimeUnit.SECONDS).setMaxPageBytes(12 * 25));
+		assertEquals(25, (int) pages.get(0));
+	}
+
+	@Test
+	public void slowPagesShrinkFetchSize() {
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(20, TimeUnit.MILLISECONDS);
+		}
+		final List<Integer> pages = readPartitions(new PagingOptimizingOptions().setAdaptiveFetchSizeEnabled(true)
+				.setFetchSizeRange(5, 100).setTargetPageLatency(5, TimeUnit.MILLISECONDS));
+		assertEquals(5, (int) pages.get(0));
+	}
+
+	@Test
+	public void onlySelectsHaveShapes() {
+		try (final Cluster cluster = fakeCluster.clusterBuilder().build()) {
+			final FetchSizeController controller = new FetchSizeController(cluster,
+					new PagingOptimizingOptions().setAdaptiveFetchSizeEnabled(true), new PagingOptimizingMetrics());
+			assertNotNull(controller.shape(new SimpleStatement(" select * FROM ks.t WHERE pk = 0")));
+			assertNull(controller.shape(new SimpleStatement("INSERT INTO ks.t (pk, ck, v) VALUES (0, 0, 0)")));
+			assertNull(controller.shape(new SimpleStatement("UPDATE ks.t SET v = 1 WHERE pk = 0 AND ck = 0")));
+			assertNull(controller.shape(new SimpleStatement("DELETE FROM ks.t WHERE pk = 0")));
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.LatencyTracker;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class BatchSplittingTest {
+
+	private static final int PARTITIONS = 30;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement insert;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withPartitions(PARTITIONS).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setBatchSplittingEnabled(true));
+		session = cluster.connect();
+		insert = session.prepare("INSERT INTO ks.t (pk, ck, v) VALUES (?, ?, ?)");
+		fakeCluster.resetCounters();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private BatchStatement batch(BatchStatement.Type type) {
+		final BatchStatement batch = new BatchStatement(type);
+		for (int pk = 0; pk < PARTITIONS; ++pk) {
+			batch.add(insert.bind(pk, 0, 1));
+		}
+		return batch;
+	}
+
+	private long batchRequests() {
+		long batches = 0;
+		for (FakeNode node : fakeCluster.getNodes()) {
+			batches += node.getBatchRequests();
+		}
+		return batches;
+	}
+
+	@Test
+	public void unloggedBatchesAreSplitByReplica() {
+		session.execute(batch(BatchStatement.Type.UNLOGGED));
+		for (FakeNode node : fakeCluster.getNodes()) {
+			assertEquals(1, node.getBatchRequests());
+		}
+		assertEquals(0, fakeCluster.getNonReplicaRequests());
+		final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+		assertEquals(1, metrics.getSplitBatches().getCount());
+		assertEquals(fakeCluster.getNodes().size(), metrics.getSubBatches().getCount());
+	}
+
+	@Test
+	public void loggedBatchesAreNotSplit() {
+		session.execute(batch(BatchStatement.Type.LOGGED));
+		assertEquals(1, batchRequests());
+		assertEquals(1, fakeCluster.getNonReplicaRequests());
+		assertEquals(0, ClusterOptimizer.getMetrics(cluster).getSplitBatches().getCount());
+	}
+
+	@Test
+	public void conditionalBatchesAreNotSplit() {
+		final PreparedStatement conditional = session.prepare("INSERT INTO ks.t (pk, ck, v) VALUES (?, ?, ?) IF NOT EXISTS");
+		final BatchStatement batch = batch(BatchStatement.Type.UNLOGGED);
+		batch.add(conditional.bind(0, 1, 1));
+		session.execute(batch);
+		assertEquals(1, batchRequests());
+	}
+
+	@Test
+	public void subBatchesShareTimestampAndIdempotence() throws Exception {
+		final List<Statement> subBatches = new CopyOnWriteArrayList<>();
+		cluster.register(new LatencyTracker() {
+			@Override
+			public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+				subBatches.add(statement);
+			}
+
+			@Override
+			public void onRegister(Cluster cluster) {
+			}
+
+			@Override
+			public void onUnregister(Cluster cluster) {
+			}
+		});
+		final BatchStatement batch = batch(BatchStatement.Type.UNLOGGED);
+		batch.setIdempotent(true);
+		session.execute(batch);
+		// The driver reports requests to latency trackers after their results are delivered.
+		final long deadline = System.currentTimeMillis() + 1000;
+		while (subBatches.size() < fakeCluster.getNodes().size() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(fakeCluster.getNodes().size(), subBatches.size());
+		final long timestamp = subBatches.get(0).getDefaultTimestamp();
+		assertNotEquals(Long.MIN_VALUE, timestamp);
+		for (Statement subBatch : subBatches) {
+			assertEquals(timestamp, subBatch.getDefaultTimestamp());
+			assertTrue(subBatch.isIdempotent());
+		}
+	}
+
+	@Test
+	public void failedSubBatchFailsBatch() throws Exception {
+		fakeCluster.getNodes().get(0).failNextRequests(1, FakeNode.Failure.OVERLOADED);
+		try {
+			session.execute(batch(BatchStatement.Type.UNLOGGED));
+			fail("Batch should fail");
+		} catch (OverloadedException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.ReactivePaging.Subscriber;
+import com.scylladb.driver.tools.ReactivePaging.Subscription;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class CoalescingTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int READERS = 10;
+
+	private FakeCluster fakeCluster;
+	private ExecutorService executor;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(1).start();
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(50, TimeUnit.MILLISECONDS);
+		}
+		executor = Executors.newFixedThreadPool(READERS);
+	}
+
+	@After
+	public void stopFakeCluster() {
+		executor.shutdownNow();
+		fakeCluster.close();
+	}
+
+	/**
+	 * Start identical reads at the same time and read them concurrently.
+	 * Returns the number of collapsed requests.
+	 */
+	private long readConcurrently(PagingOptimizingOptions options) throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(), options)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			fakeCluster.resetCounters();
+			final List<ResultSetFuture> resultSets = new ArrayList<>();
+			for (int i = 0; i < READERS; ++i) {
+				resultSets.add(session.executeAsync(select.bind(0).setFetchSize(FETCH_SIZE)));
+			}
+			final List<Future<Integer>> readers = new ArrayList<>();
+			for (ResultSetFuture resultSet : resultSets) {
+				readers.add(executor.submit(() -> {
+					int rows = 0;
+					for (Row row : resultSet.getUninterruptibly()) {
+						assertEquals(rows++, row.getInt(1));
+					}
+					return rows;
+				}));
+			}
+			for (Future<Integer> reader : readers) {
+				assertEquals(fakeCluster.getRowsPerPartition(), (int) reader.get());
+			}
+			final long collapsed = ClusterOptimizer.getMetrics(cluster).getCoalescedRequests().getCount();
+			final int pages = fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+			assertEquals(READERS * pages, fakeCluster.getRequests() + collapsed);
+			return collapsed;
+		}
+	}
+
+	@Test
+	public void identicalReadsShareRequests() throws Exception {
+		assertTrue(readConcurrently(new PagingOptimizingOptions().setCoalescingEnabled(true)) >= READERS - 1);
+	}
+
+	@Test
+	public void readsAreNotCoalescedByDefault() throws Exception {
+		assertEquals(0, readConcurrently(new PagingOptimizingOptions()));
+	}
+
+	private static PagingOptimizingOptions coalescingAndCaching() {
+		return new PagingOptimizingOptions().setCoalescingEnabled(true).setPageCacheEnabled(true);
+	}
+
+	@Test
+	public void fetchedPagesAreAvailableWithoutFetching() throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				coalescingAndCaching())) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			// The second read takes its pages from the cache.
+			for (int read = 0; read < 2; ++read) {
+				final ResultSet resultSet = session.execute(select.bind(0).setFetchSize(FETCH_SIZE));
+				int rows = 0;
+				while (!resultSet.isFullyFetched()) {
+					final int available = resultSet.getAvailableWithoutFetching();
+					resultSet.fetchMoreResults().get();
+					assertEquals(available + FETCH_SIZE, resultSet.getAvailableWithoutFetching());
+				}
+				for (int available = resultSet.getAvailableWithoutFetching(); available > 0; --available) {
+					assertEquals(rows++, resultSet.one().getInt(1));
+				}
+				assertEquals(fakeCluster.getRowsPerPartition(), rows);
+				assertTrue(resultSet.isExhausted());
+			}
+		}
+	}
+
+	@Test
+	public void rowsArePublishedReactively() throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				coalescingAndCaching())) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			for (int read = 0; read < 2; ++read) {
+				final List<Row> rows = new CopyOnWriteArrayList<>();
+				final CountDownLatch done = new CountDownLatch(1);
+				ReactivePaging.rows(session, select.bind(0).setFetchSize(FETCH_SIZE)).subscribe(new Subscriber<Row>() {
+					@Override
+					public void onSubscribe(Subscription subscription) {
+						subscription.request(Long.MAX_VALUE);
+					}
+
+					@Override
+					public void onNext(Row row) {
+						rows.add(row);
+					}
+
+					@Override
+					public void onError(Throwable error) {
+					}
+
+					@Override
+					public void onComplete() {
+						done.countDown();
+					}
+				});
+				assertTrue(done.await(10, TimeUnit.SECONDS));
+				assertEquals(fakeCluster.getRowsPerPartition(), rows.size());
+				for (int i = 0; i < rows.size(); ++i) {
+					assertEquals(i, rows.get(i).getInt(1));
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.google.common.util.concurrent.Futures;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class ConcurrencyLimitingTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int SCANS = 30;
+
+	private FakeCluster fakeCluster;
+	private ExecutorService executor;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).withPartitions(SCANS).start();
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(20, TimeUnit.MILLISECONDS);
+		}
+		executor = Executors.newFixedThreadPool(SCANS);
+	}
+
+	@After
+	public void stopFakeCluster() {
+		executor.shutdownNow();
+		fakeCluster.close();
+	}
+
+	/**
+	 * Read all partitions concurrently. Returns the number of pages moved away from a saturated host.
+	 */
+	private long scanConcurrently(PagingOptimizingOptions options) throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()),
+				options.setMaxConcurrencyPerHost(2))) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final List<ResultSetFuture> resultSets = new ArrayList<>();
+			for (int pk = 0; pk < SCANS; ++pk) {
+				resultSets.add(session.executeAsync(select.bind(pk).setFetchSize(FETCH_SIZE)));
+			}
+			final List<Future<Integer>> scans = new ArrayList<>();
+			for (ResultSetFuture resultSet : resultSets) {
+				scans.add(executor.submit(() -> {
+					int rows = 0;
+					for (Row row : resultSet.getUninterruptibly()) {
+						assertEquals(rows++, row.getInt(1));
+					}
+					return rows;
+				}));
+			}
+			for (Future<Integer> scan : scans) {
+				assertEquals(fakeCluster.getRowsPerPartition(), (int) scan.get());
+			}
+			return ClusterOptimizer.getMetrics(cluster).getConcurrencyLimitedPages().getCount();
+		}
+	}
+
+	@Test
+	public void pagesMoveAwayFromSaturatedHosts() throws Exception {
+		assertTrue(scanConcurrently(new PagingOptimizingOptions().setConcurrencyLimitingEnabled(true)) > 0);
+	}
+
+	@Test
+	public void pagesAreNotLimitedByDefault() throws Exception {
+		assertEquals(0, scanConcurrently(new PagingOptimizingOptions()));
+	}
+
+	@Test
+	public void cancelledRequestsStopBeingCounted() throws Exception {
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(500, TimeUnit.MILLISECONDS);
+		}
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setConcurrencyLimitingEnabled(true).setReplicaPinningEnabled(true))) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final List<ResultSetFuture> resultSets = new ArrayList<>();
+			for (int pk = 0; pk < SCANS; ++pk) {
+				resultSets.add(session.executeAsync(select.bind(pk).setFetchSize(FETCH_SIZE)));
+			}
+			for (ResultSetFuture resultSet : resultSets) {
+				assertTrue(resultSet.cancel(true));
+			}
+			final HostConcurrencyLimiter limiter = ((PagingOptimizingLoadBalancingPolicy) cluster.getConfiguration()
+					.getPolicies().getLoadBalancingPolicy()).getConcurrencyLimiter();
+			for (Host host : cluster.getMetadata().getAllHosts()) {
+				assertEquals(0, limiter.load(host), 0);
+			}
+		}
+	}
+
+	@Test
+	public void requestsFailedWithoutHostStopBeingCounted() throws Exception {
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(500, TimeUnit.MILLISECONDS);
+		}
+		final PoolingOptions poolingOptions = new PoolingOptions().setConnectionsPerHost(HostDistance.LOCAL, 1, 1)
+				.setMaxRequestsPerConnection(HostDistance.LOCAL, 1).setMaxQueueSize(0);
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withPoolingOptions(poolingOptions),
+				new PagingOptimizingOptions().setConcurrencyLimitingEnabled(true).setReplicaPinningEnabled(true))) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final List<ResultSetFuture> resultSets = new ArrayList<>();
+			for (int pk = 0; pk < SCANS; ++pk) {
+				resultSets.add(session.executeAsync(select.bind(pk).setFetchSize(FETCH_SIZE)));
+			}
+			// Listeners run in order, so the requests were released once the list is complete.
+			Futures.successfulAsList(resultSets).get();
+			int failed = 0;
+			for (ResultSetFuture resultSet : resultSets) {
+				try {
+					resultSet.getUninterruptibly();
+				} catch (NoHostAvailableException e) {
+					++failed;
+				}
+			}
+			assertTrue(failed > 0);
+			final HostConcurrencyLimiter limiter = ((PagingOptimizingLoadBalancingPolicy) cluster.getConfiguration()
+					.getPolicies().getLoadBalancingPolicy()).getConcurrencyLimiter();
+			for (Host host : cluster.getMetadata().getAllHosts()) {
+				assertEquals(0, limiter.load(host), 0);
+			}
+		}
+	}
+
+	@Test
+	public void synchronousRequestsFailedWithoutHostStopBeingCounted() throws Exception {
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(500, TimeUnit.MILLISECONDS);
+		}
+		final PoolingOptions poolingOptions = new PoolingOptions().setConnectionsPerHost(HostDistance.LOCAL, 1, 1)
+				.setMaxRequestsPerConnection(HostDistance.LOCAL, 1).setMaxQueueSize(0);
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withPoolingOptions(poolingOptions),
+				new PagingOptimizingOptions().setConcurrencyLimitingEnabled(true).setReplicaPinningEnabled(true))) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final List<ResultSetFuture> resultSets = new ArrayList<>();
+			for (Host host : cluster.getMetadata().getAllHosts()) {
+				resultSets.add(((PagingOptimizingSession) session).executeAsync(select.bind(0), host));
+			}
+			int failed = 0;
+			for (int pk = 0; pk < SCANS; ++pk) {
+				try {
+					session.execute(select.bind(pk).setFetchSize(FETCH_SIZE));
+				} catch (NoHostAvailableException e) {
+					++failed;
+				}
+			}
+			assertTrue(failed > 0);
+			Futures.successfulAsList(resultSets).get();
+			final HostConcurrencyLimiter limiter = ((PagingOptimizingLoadBalancingPolicy) cluster.getConfiguration()
+					.getPolicies().getLoadBalancingPolicy()).getConcurrencyLimiter();
+			for (Host host : cluster.getMetadata().getAllHosts()) {
+				assertEquals(0, limiter.load(host), 0);
+			}
+		}
+	}
+
+}
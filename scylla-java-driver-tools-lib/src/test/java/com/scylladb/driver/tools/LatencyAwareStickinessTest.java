@@ -0,0 +1,78 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class LatencyAwareStickinessTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int WARM_UP_QUERIES = 30;
+
+	private FakeCluster fakeCluster;
+	private FakeNode slowNode;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).withPartitions(9).start();
+		slowNode = fakeCluster.getNodes().get(0);
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private void readAllPartitions(PagingOptimizingOptions options) {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()),
+				options.setLatencyMinMeasurements(5))) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			slowNode.setLatency(30, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < WARM_UP_QUERIES; ++i) {
+				session.execute(select.bind(i % fakeCluster.getPartitions()).setFetchSize(fakeCluster.getRowsPerPartition() + 1));
+			}
+			fakeCluster.resetCounters();
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				int rows = 0;
+				for (Row row : session.execute(select.bind(pk).setFetchSize(FETCH_SIZE))) {
+					assertEquals(row.getInt(1) + 5, row.getInt(2));
+					++rows;
+				}
+				assertEquals(fakeCluster.getRowsPerPartition(), rows);
+			}
+		}
+	}
+
+	@Test
+	public void pagesMoveAwayFromSlowHost() {
+		readAllPartitions(new PagingOptimizingOptions().setLatencyAwareStickinessEnabled(true));
+		assertTrue(slowNode.getRequests() > 0);
+		assertEquals(0, slowNode.getPagedRequests());
+	}
+
+	@Test
+	public void pagesStickToSlowHostByDefault() {
+		readAllPartitions(new PagingOptimizingOptions());
+		assertTrue(slowNode.getPagedRequests() > 0);
+	}
+
+}
@@ -0,0 +1,92 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class LocalityFallbackTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int QUERIES = 12;
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		// Two datacenters with two racks each; only rack1 has two nodes in each datacenter.
+		fakeCluster = FakeCluster.builder().withNodes(6).withDatacenters(2).withRacks(2).withReplicationFactor(6)
+				.start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	/**
+	 * Fail the request for the second page of every query at its pinned host.
+	 * Returns the number of queries whose pinned host has another host in its rack.
+	 */
+	private int readWithFailures(Cluster cluster) {
+		final Session session = cluster.connect();
+		final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		int withRackPeer = 0;
+		for (int i = 0; i < QUERIES; ++i) {
+			final ResultSet resultSet = session.execute(
+					select.bind(i % fakeCluster.getPartitions()).setFetchSize(FETCH_SIZE).setIdempotent(true));
+			final Host pinnedHost = resultSet.getExecutionInfo().getQueriedHost();
+			fakeCluster.getNode(pinnedHost.getAddress()).failNextRequests(1, FakeNode.Failure.OVERLOADED);
+			assertEquals(fakeCluster.getRowsPerPartition(), resultSet.all().size());
+			for (Host host : cluster.getMetadata().getAllHosts()) {
+				if (!host.equals(pinnedHost) && Locality.of(host, pinnedHost) == Locality.SAME_RACK) {
+					++withRackPeer;
+					break;
+				}
+			}
+		}
+		return withRackPeer;
+	}
+
+	@Test
+	public void fallbackPrefersSameRackThenSameDatacenter() {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()),
+				new PagingOptimizingOptions().setLocalityFallbackEnabled(true))) {
+			final int withRackPeer = readWithFailures(cluster);
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			assertEquals(QUERIES, metrics.getFallbacks().getCount());
+			assertEquals(withRackPeer, metrics.getSameRackFallbacks().getCount());
+			assertEquals(QUERIES - withRackPeer, metrics.getSameDatacenterFallbacks().getCount());
+			assertEquals(0, metrics.getRemoteFallbacks().getCount());
+		}
+	}
+
+	@Test
+	public void fallbackFollowsWrappedPolicyByDefault() {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()),
+				new PagingOptimizingOptions())) {
+			readWithFailures(cluster);
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			assertEquals(QUERIES, metrics.getFallbacks().getCount());
+			assertTrue(metrics.getRemoteFallbacks().getCount() > 0);
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class LwtRoutingTest {
+
+	private static final int TRANSACTIONS = 20;
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).withPartitions(10).start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private Cluster buildCluster(boolean lwtRouting) {
+		return ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setLwtRoutingEnabled(lwtRouting));
+	}
+
+	private static PreparedStatement prepareInsert(Session session) {
+		return session.prepare("INSERT INTO ks.t (pk, ck, v) VALUES (?, ?, ?) IF NOT EXISTS");
+	}
+
+	/**
+	 * Nodes replicating a statement's partition, in ring order.
+	 */
+	private List<FakeNode> replicas(Cluster cluster, BoundStatement statement) {
+		final List<FakeNode> replicas = new ArrayList<>();
+		for (Host host : cluster.getMetadata().getReplicas("ks", statement.getRoutingKey(
+				cluster.getConfiguration().getProtocolOptions().getProtocolVersion(),
+				cluster.getConfiguration().getCodecRegistry()))) {
+			replicas.add(fakeCluster.getNode(host.getAddress()));
+		}
+		return replicas;
+	}
+
+	@Test
+	public void transactionsOfPartitionGoToFirstReplica() {
+		try (final Cluster cluster = buildCluster(true)) {
+			final Session session = cluster.connect();
+			final PreparedStatement insert = prepareInsert(session);
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				fakeCluster.resetCounters();
+				for (int i = 0; i < TRANSACTIONS; ++i) {
+					session.execute(insert.bind(pk, i, 1));
+				}
+				assertEquals(TRANSACTIONS, replicas(cluster, insert.bind(pk, 0, 1)).get(0).getConditionalRequests());
+			}
+		}
+	}
+
+	@Test
+	public void transactionsAreSpreadByDefault() {
+		try (final Cluster cluster = buildCluster(false)) {
+			final Session session = cluster.connect();
+			final PreparedStatement insert = prepareInsert(session);
+			for (int i = 0; i < TRANSACTIONS; ++i) {
+				session.execute(insert.bind(0, i, 1));
+			}
+			for (FakeNode node : fakeCluster.getNodes()) {
+				assertTrue(node.getConditionalRequests() < TRANSACTIONS);
+			}
+		}
+	}
+
+	@Test
+	public void failedTransactionsGoToNextReplica() {
+		try (final Cluster cluster = buildCluster(true)) {
+			final Session session = cluster.connect();
+			final PreparedStatement insert = prepareInsert(session);
+			final List<FakeNode> replicas = replicas(cluster, insert.bind(0, 0, 1));
+			for (int i = 0; i < TRANSACTIONS; ++i) {
+				replicas.get(0).failNextRequests(1, FakeNode.Failure.UNAVAILABLE);
+				session.execute(insert.bind(0, i, 1));
+			}
+			assertEquals(TRANSACTIONS, replicas.get(1).getConditionalRequests());
+			assertEquals(0, replicas.get(2).getConditionalRequests());
+			assertEquals(TRANSACTIONS, ClusterOptimizer.getMetrics(cluster).getLwtRetries().getCount());
+		}
+	}
+
+	@Test
+	public void contentionIsCounted() throws InterruptedException {
+		try (final Cluster cluster = buildCluster(true)) {
+			final Session session = cluster.connect();
+			final PreparedStatement insert = prepareInsert(session);
+			replicas(cluster, insert.bind(0, 0, 1)).get(0).failNextRequests(1, FakeNode.Failure.CAS_WRITE_TIMEOUT);
+			try {
+				session.execute(insert.bind(0, 0, 1));
+				fail("Transaction should time out");
+			} catch (WriteTimeoutException e) {
+				// expected
+			}
+			// The driver reports a request to latency trackers after its result is delivered.
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			final long deadline = System.currentTimeMillis() + 1000;
+			while (metrics.getLwtContentions().getCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, metrics.getLwtContentions().getCount());
+		}
+	}
+
+	@Test
+	public void concurrentTransactionsDontContend() {
+		try (final Cluster cluster = buildCluster(true)) {
+			final Session session = cluster.connect();
+			final PreparedStatement insert = prepareInsert(session);
+			for (FakeNode node : fakeCluster.getNodes()) {
+				node.setLatency(20, TimeUnit.MILLISECONDS);
+			}
+			final List<ResultSetFuture> results = new ArrayList<>();
+			for (int i = 0; i < TRANSACTIONS; ++i) {
+				results.add(session.executeAsync(insert.bind(0, i, 1)));
+			}
+			for (ResultSetFuture result : results) {
+				result.getUninterruptibly();
+			}
+			// Prepare, propose and commit.
+			assertEquals(3 * TRANSACTIONS, fakeCluster.getPaxosRoundTrips());
+		}
+	}
+
+	@Test
+	public void onlyIfClausesMakeStatementsConditional() {
+		try (final Cluster cluster = buildCluster(true)) {
+			final ConditionalStatements statements = new ConditionalStatements(cluster);
+			assertTrue(statements.isConditional(new SimpleStatement("update ks.t set v = 1 where pk = 0 and ck = 0 if v = 0")));
+			assertTrue(statements.isConditional(QueryBuilder.insertInto("ks", "t").value("pk", 0).ifNotExists()));
+			assertTrue(statements.isConditional(
+					new SimpleStatement("BEGIN BATCH DELETE FROM ks.t WHERE pk = 0 IF EXISTS APPLY BATCH")));
+			assertFalse(statements.isConditional(new SimpleStatement("INSERT INTO ks.t (pk, v) VALUES (0, ' if ')")));
+			assertFalse(statements.isConditional(new SimpleStatement("UPDATE ks.t SET \"if\" = 1 WHERE pk = 0")));
+			assertFalse(statements.isConditional(new SimpleStatement("CREATE TABLE IF NOT EXISTS ks.u (pk int PRIMARY KEY)")));
+			assertFalse(statements.isConditional(new SimpleStatement("DROP KEYSPACE IF EXISTS ks")));
+			assertFalse(statements.isConditional(QueryBuilder.select().from("ks", "t").where(QueryBuilder.eq("pk", 0))));
+		}
+	}
+
+}
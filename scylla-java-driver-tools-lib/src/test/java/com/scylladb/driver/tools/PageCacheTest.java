@@ -0,0 +1,118 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+public class PageCacheTest {
+
+	private static final int FETCH_SIZE = 5;
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(1).withPartitions(20).start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private void read(Session session, PreparedStatement select, int pk) {
+		int rows = 0;
+		for (Row row : session.execute(select.bind(pk).setFetchSize(FETCH_SIZE))) {
+			assertEquals(pk, row.getInt(0));
+			assertEquals(rows++, row.getInt(1));
+		}
+		assertEquals(fakeCluster.getRowsPerPartition(), rows);
+	}
+
+	@Test
+	public void repeatedReadsAreServedFromCache() {
+		final PagingOptimizingOptions options = new PagingOptimizingOptions().setPageCacheEnabled(true);
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(), options)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final int pages = fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+			fakeCluster.resetCounters();
+			read(session, select, 0);
+			assertEquals(pages, fakeCluster.getRequests());
+			read(session, select, 0);
+			read(session, select, 0);
+			assertEquals(pages, fakeCluster.getRequests());
+			read(session, select, 1);
+			assertEquals(2 * pages, fakeCluster.getRequests());
+
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			assertEquals(2 * pages, metrics.getPageCacheHits().getCount());
+			assertEquals(0, metrics.getPageCacheEvictions().getCount());
+		}
+	}
+
+	@Test
+	public void expiredPagesAreFetchedAgain() throws Exception {
+		final PagingOptimizingOptions options = new PagingOptimizingOptions().setPageCacheEnabled(true)
+				.setPageCacheTtl(100, TimeUnit.MILLISECONDS);
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(), options)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final int pages = fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+			fakeCluster.resetCounters();
+			read(session, select, 0);
+			Thread.sleep(200);
+			read(session, select, 0);
+			assertEquals(2 * pages, fakeCluster.getRequests());
+			assertTrue(ClusterOptimizer.getMetrics(cluster).getPageCacheEvictions().getCount() > 0);
+		}
+	}
+
+	@Test
+	public void pagesReadOnceDontEvictFrequentlyReadOnes() {
+		final PagingOptimizingOptions options = new PagingOptimizingOptions().setPageCacheEnabled(true)
+				.setPageCacheMaxBytes(1024);
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(), options)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			read(session, select, 0);
+			read(session, select, 0);
+			for (int pk = 1; pk < fakeCluster.getPartitions(); ++pk) {
+				read(session, select, pk);
+			}
+			fakeCluster.resetCounters();
+			read(session, select, 0);
+			assertEquals(0, fakeCluster.getRequests());
+		}
+	}
+
+	@Test
+	public void pagesAreNotCachedByDefault() {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions())) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			fakeCluster.resetCounters();
+			read(session, select, 0);
+			read(session, select, 0);
+			assertEquals(2 * fakeCluster.getRowsPerPartition() / FETCH_SIZE, fakeCluster.getRequests());
+			assertEquals(0, ClusterOptimizer.getMetrics(cluster).getPageCacheHits().getCount());
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.Policies;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class PageRetryTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int PAGE_RETRY_LIMIT = 2;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).withRowsPerPartition(50).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setReplicaPinningEnabled(true).setPageRetryLimit(PAGE_RETRY_LIMIT));
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+	}
+
+	@After
+	public void stopFakeCluster() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private FakeNode node(Host host) {
+		return fakeCluster.getNode(host.getAddress());
+	}
+
+	/**
+	 * Read a partition, injecting a failure into the host serving the query
+	 * before each of the first {@code failedPages} pages following the first one.
+	 */
+	private ResultSet read(int failedPages, FakeNode.Failure failure) {
+		final ResultSet resultSet = session.execute(select.bind(0).setFetchSize(FETCH_SIZE));
+		int rows = 0;
+		int failed = 0;
+		for (Row row : resultSet) {
+			assertEquals(rows++, row.getInt(1));
+			if (failed < failedPages && resultSet.getAvailableWithoutFetching() == 0 && !resultSet.isFullyFetched()) {
+				node(resultSet.getExecutionInfo().getQueriedHost()).failNextRequests(1, failure);
+				++failed;
+			}
+		}
+		assertEquals(fakeCluster.getRowsPerPartition(), rows);
+		return resultSet;
+	}
+
+	@Test
+	public void failedPageIsResumedOnAnotherReplica() {
+		final List<ExecutionInfo> pages = read(1, FakeNode.Failure.READ_TIMEOUT).getAllExecutionInfo();
+		assertEquals(fakeCluster.getRowsPerPartition() / FETCH_SIZE, pages.size());
+		final Host failed = pages.get(0).getQueriedHost();
+		final Host replacement = pages.get(1).getQueriedHost();
+		assertNotEquals(failed, replacement);
+		for (ExecutionInfo page : pages.subList(1, pages.size())) {
+			assertEquals(replacement, page.getQueriedHost());
+		}
+		assertEquals(1, node(failed).getFailedRequests());
+		assertEquals(1, ClusterOptimizer.getMetrics(cluster).getPageRetries().getCount());
+	}
+
+	@Test
+	public void unavailableAndOverloadedPagesAreRetried() {
+		read(1, FakeNode.Failure.UNAVAILABLE);
+		read(1, FakeNode.Failure.OVERLOADED);
+		assertEquals(2, ClusterOptimizer.getMetrics(cluster).getPageRetries().getCount());
+	}
+
+	@Test
+	public void timedOutPageIsRetried() {
+		final ResultSet resultSet = session.execute(select.bind(0).setFetchSize(FETCH_SIZE).setReadTimeoutMillis(500));
+		final FakeNode slow = node(resultSet.getExecutionInfo().getQueriedHost());
+		slow.setLatency(2, TimeUnit.SECONDS);
+		try {
+			int rows = 0;
+			for (Row row : resultSet) {
+				assertEquals(rows++, row.getInt(1));
+			}
+			assertEquals(fakeCluster.getRowsPerPartition(), rows);
+		} finally {
+			slow.setLatency(0, TimeUnit.SECONDS);
+		}
+		assertEquals(1, ClusterOptimizer.getMetrics(cluster).getPageRetries().getCount());
+	}
+
+	@Test
+	public void retriesAreLimitedPerQuery() {
+		try {
+			read(PAGE_RETRY_LIMIT + 1, FakeNode.Failure.READ_TIMEOUT);
+			fail("Query should fail once its retries are used up");
+		} catch (ReadTimeoutException e) {
+			// expected
+		}
+		assertEquals(PAGE_RETRY_LIMIT, ClusterOptimizer.getMetrics(cluster).getPageRetries().getCount());
+	}
+
+	@Test
+	public void firstPagesAreLeftToRetryPolicy() {
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.failNextRequests(1, FakeNode.Failure.READ_TIMEOUT);
+		}
+		try {
+			session.execute(select.bind(0).setFetchSize(FETCH_SIZE));
+			fail("First page should fail");
+		} catch (ReadTimeoutException e) {
+			// expected
+		}
+		assertEquals(0, ClusterOptimizer.getMetrics(cluster).getPageRetries().getCount());
+	}
+
+	@Test
+	public void retryablePagesAreNotSpeculated() {
+		try (final Cluster speculating = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withSpeculativeExecutionPolicy(new ConstantSpeculativeExecutionPolicy(1, 2)),
+				new PagingOptimizingOptions().setReplicaPinningEnabled(true).setPageRetryLimit(PAGE_RETRY_LIMIT))) {
+			final Session speculatingSession = speculating.connect();
+			final PreparedStatement statement = speculatingSession.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			for (FakeNode node : fakeCluster.getNodes()) {
+				node.setLatency(20, TimeUnit.MILLISECONDS);
+			}
+			final ResultSet resultSet = speculatingSession.execute(statement.bind(0).setFetchSize(FETCH_SIZE));
+			int rows = 0;
+			for (Row row : resultSet) {
+				assertEquals(rows++, row.getInt(1));
+			}
+			assertEquals(fakeCluster.getRowsPerPartition(), rows);
+			// The statement isn't idempotent, so the user's policy mustn't speculate its pages either.
+			for (ExecutionInfo page : resultSet.getAllExecutionInfo()) {
+				assertEquals(0, page.getSpeculativeExecutions());
+			}
+		}
+	}
+
+	@Test
+	public void coalescedPagesAreRetried() {
+		try (final Cluster coalescing = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setReplicaPinningEnabled(true).setPageRetryLimit(PAGE_RETRY_LIMIT)
+						.setCoalescingEnabled(true))) {
+			final Session coalescingSession = coalescing.connect();
+			final PreparedStatement statement = coalescingSession.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			final ResultSet resultSet = coalescingSession.execute(statement.bind(0).setFetchSize(FETCH_SIZE));
+			int rows = 0;
+			boolean failed = false;
+			for (Row row : resultSet) {
+				assertEquals(rows++, row.getInt(1));
+				if (!failed && resultSet.getAvailableWithoutFetching() == 0 && !resultSet.isFullyFetched()) {
+					node(resultSet.getExecutionInfo().getQueriedHost()).failNextRequests(1, FakeNode.Failure.READ_TIMEOUT);
+					failed = true;
+				}
+			}
+			assertEquals(fakeCluster.getRowsPerPartition(), rows);
+			assertEquals(1, ClusterOptimizer.getMetrics(coalescing).getPageRetries().getCount());
+			assertEquals(fakeCluster.getRowsPerPartition() / FETCH_SIZE,
+					ClusterOptimizer.getMetrics(coalescing).getPagesPerQuery().getSnapshot().getMax());
+		}
+	}
+
+	@Test
+	public void policiesAreWrappedOnlyWhenNeededAndBuilderIsKept() {
+		final Cluster.Builder builder = fakeCluster.clusterBuilder();
+		final Policies original = builder.getConfiguration().getPolicies();
+		try (final Cluster plain = ClusterOptimizer.buildWithPagingOptimized(builder)) {
+			final Policies policies = plain.getConfiguration().getPolicies();
+			assertSame(original.getRetryPolicy(), policies.getRetryPolicy());
+			assertSame(original.getSpeculativeExecutionPolicy(), policies.getSpeculativeExecutionPolicy());
+		}
+		for (int i = 0; i < 2; ++i) {
+			try (final Cluster retrying = ClusterOptimizer.buildWithPagingOptimized(builder,
+					new PagingOptimizingOptions().setPageRetryLimit(PAGE_RETRY_LIMIT))) {
+				final Policies policies = retrying.getConfiguration().getPolicies();
+				assertTrue(policies.getRetryPolicy() instanceof PagingRetryPolicy);
+				assertTrue(policies.getSpeculativeExecutionPolicy() instanceof PagingSpeculativeExecutionPolicy);
+			}
+			assertSame(original.getRetryPolicy(), builder.getConfiguration().getPolicies().getRetryPolicy());
+			assertSame(original.getSpeculativeExecutionPolicy(),
+					builder.getConfiguration().getPolicies().getSpeculativeExecutionPolicy());
+		}
+	}
+
+}
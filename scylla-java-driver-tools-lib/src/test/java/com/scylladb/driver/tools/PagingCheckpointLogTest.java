@@ -0,0 +1,177 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.PagingStateException;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class PagingCheckpointLogTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int ROWS = 30;
+	private static final String SCAN_ID = "scan";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FakeCluster fakeCluster;
+	private Path file;
+
+	@Before
+	public void startFakeCluster() throws IOException {
+		fakeCluster = FakeCluster.builder().withNodes(3).withRowsPerPartition(ROWS).start();
+		file = folder.getRoot().toPath().resolve("checkpoints");
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private Cluster buildCluster() {
+		return ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()));
+	}
+
+	private static Statement select() {
+		return new SimpleStatement("SELECT * FROM ks.t WHERE pk = 0").setFetchSize(FETCH_SIZE);
+	}
+
+	@Test
+	public void resumesFromLastCheckpointOnSameHost() throws IOException {
+		// The first log is never closed, as if the process crashed.
+		final PagingCheckpointLog crashedLog = PagingCheckpointLog.open(file).setCheckpointInterval(2);
+		try (final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			final ResultSet resultSet = crashedLog.execute(session, SCAN_ID, select());
+			for (int i = 0; i < 3 * FETCH_SIZE + 2; ++i) {
+				assertEquals(i, resultSet.one().getInt(1));
+			}
+		}
+
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file);
+				final Cluster cluster = buildCluster()) {
+			final PagingCheckpointLog.Checkpoint checkpoint = log.getCheckpoint(SCAN_ID);
+			assertNotNull(checkpoint);
+			assertEquals(2 * FETCH_SIZE, checkpoint.getRows());
+
+			final Session session = cluster.connect();
+			fakeCluster.resetCounters();
+			int expected = (int) checkpoint.getRows();
+			for (Row row : log.execute(session, SCAN_ID, select())) {
+				assertEquals(expected++, row.getInt(1));
+			}
+			assertEquals(ROWS, expected);
+			for (FakeNode node : fakeCluster.getNodes()) {
+				assertEquals(node.getHostId().equals(checkpoint.getHostId()) ? ROWS / FETCH_SIZE - 2 : 0,
+						node.getRequests());
+			}
+			assertNull(log.getCheckpoint(SCAN_ID));
+		}
+
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file)) {
+			assertNull(log.getCheckpoint(SCAN_ID));
+		}
+	}
+
+	@Test
+	public void resumingLeavesStatementUnchanged() throws IOException {
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file).setCheckpointInterval(1);
+				final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			final ResultSet resultSet = log.execute(session, SCAN_ID, select());
+			for (int i = 0; i < FETCH_SIZE + 1; ++i) {
+				resultSet.one();
+			}
+			final Statement statement = select();
+			final Row first = log.execute(session, SCAN_ID, statement).one();
+			assertEquals(FETCH_SIZE, first.getInt(1));
+			assertEquals(0, session.execute(statement).one().getInt(1));
+		}
+	}
+
+	@Test(expected = PagingStateException.class)
+	public void rejectsCheckpointOfAnotherStatement() throws IOException {
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file).setCheckpointInterval(1);
+				final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			final ResultSet resultSet = log.execute(session, SCAN_ID, select());
+			for (int i = 0; i < FETCH_SIZE + 1; ++i) {
+				resultSet.one();
+			}
+			log.execute(session, SCAN_ID, new SimpleStatement("SELECT * FROM ks.t WHERE pk = 1"));
+		}
+	}
+
+	@Test
+	public void unknownHostIdsAreKept() throws IOException {
+		final byte[] pagingState = { 1, 2, 3 };
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file)) {
+			log.append(SCAN_ID, pagingState, null, 7);
+			assertNull(log.getCheckpoint(SCAN_ID).getHostId());
+		}
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file)) {
+			final PagingCheckpointLog.Checkpoint checkpoint = log.getCheckpoint(SCAN_ID);
+			assertNull(checkpoint.getHostId());
+			assertEquals(7, checkpoint.getRows());
+		}
+	}
+
+	@Test
+	public void compactsOnOpen() throws IOException {
+		final byte[] pagingState = new byte[1000];
+		final UUID hostId = UUID.randomUUID();
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file)) {
+			for (int i = 0; i < 10000; ++i) {
+				log.append(SCAN_ID, pagingState, hostId, i);
+				log.append("finished", pagingState, hostId, i);
+			}
+			log.append("finished", null, hostId, 10000);
+		}
+		final long size = Files.size(file);
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file)) {
+			assertEquals(9999, log.getCheckpoint(SCAN_ID).getRows());
+			assertEquals(hostId, log.getCheckpoint(SCAN_ID).getHostId());
+			assertNull(log.getCheckpoint("finished"));
+		}
+		assertTrue(Files.size(file) < size);
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file)) {
+			assertEquals(9999, log.getCheckpoint(SCAN_ID).getRows());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresOptimizedSession() throws IOException {
+		try (final PagingCheckpointLog log = PagingCheckpointLog.open(file);
+				final Cluster cluster = fakeCluster.clusterBuilder().build()) {
+			log.execute(cluster.connect(), SCAN_ID, select());
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Snapshot;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class PagingMetricsTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int PAGES = 3;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+	private PagingOptimizingMetrics metrics;
+
+	@Before
+	public void setUp() {
+		fakeCluster = FakeCluster.builder().withRowsPerPartition(PAGES * FETCH_SIZE).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder());
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		metrics = ClusterOptimizer.getMetrics(cluster);
+	}
+
+	@After
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private long recordedLatencies() {
+		long result = 0;
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			result += metrics.getPagedLatency(host).getCount() + metrics.getUnpagedLatency(host).getCount();
+		}
+		return result;
+	}
+
+	@Test
+	public void recordsStickyPages() throws InterruptedException {
+		for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+			assertEquals(PAGES * FETCH_SIZE, session.execute(select.bind(pk).setFetchSize(FETCH_SIZE)).all().size());
+		}
+		final long queries = fakeCluster.getPartitions();
+		assertEquals(queries * (PAGES - 1), metrics.getPinnedPages().getCount());
+		assertEquals(queries * (PAGES - 1), metrics.getStickyPages().getCount());
+		assertEquals(1.0, metrics.getStickinessHitRate().getValue(), 0.0);
+		assertEquals(0, metrics.getFallbacks().getCount());
+		assertEquals(queries, metrics.getPagesPerQuery().getCount());
+		assertEquals(PAGES, metrics.getPagesPerQuery().getSnapshot().getMax());
+
+		// The driver reports a request to latency trackers after its result is delivered.
+		final long deadline = System.currentTimeMillis() + 1000;
+		while (recordedLatencies() < queries * PAGES && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(queries * PAGES, recordedLatencies());
+		assertEquals(metrics.getPagesPerQuery(), cluster.getMetrics().getRegistry()
+				.getHistograms().get(PagingOptimizingMetrics.PREFIX + "pages-per-query"));
+	}
+
+	@Test
+	public void writesAreNotRecorded() {
+		final PreparedStatement insert = session.prepare("INSERT INTO ks.t (pk, ck) VALUES (?, ?)");
+		assertFalse(session.execute(insert.bind(0, 0)) instanceof PagingOptimizingResultSet);
+		assertFalse(session.executeAsync(insert.bind(1, 0)).getUninterruptibly() instanceof PagingOptimizingResultSet);
+		assertEquals(0, metrics.getPagesPerQuery().getCount());
+	}
+
+	@Test
+	public void histogramsKeepAMinuteOfValues() {
+		final HdrHistogramReservoir reservoir = new HdrHistogramReservoir();
+		final long start = TimeUnit.HOURS.toNanos(1);
+		reservoir.update(100);
+		assertEquals(100, reservoir.getSnapshot(start).getMax());
+		reservoir.update(10);
+		Snapshot snapshot = reservoir.getSnapshot(start + TimeUnit.SECONDS.toNanos(30));
+		assertEquals(2, snapshot.size());
+		assertEquals(100, snapshot.getMax());
+		snapshot = reservoir.getSnapshot(start + TimeUnit.SECONDS.toNanos(75));
+		assertEquals(1, snapshot.size());
+		assertEquals(10, snapshot.getMax());
+		assertEquals(0, reservoir.getSnapshot(start + TimeUnit.MINUTES.toNanos(10)).size());
+	}
+
+	@Test
+	public void recordsFallbackWhenPinnedHostFails() {
+		final ResultSet resultSet = session.executeAsync(
+				select.bind(0).setFetchSize(FETCH_SIZE).setIdempotent(true)).getUninterruptibly();
+		final Host pinnedHost = resultSet.getExecutionInfo().getQueriedHost();
+		final FakeNode pinnedNode = fakeCluster.getNode(pinnedHost.getAddress());
+		pinnedNode.failNextRequests(1, FakeNode.Failure.OVERLOADED);
+
+		assertEquals(PAGES * FETCH_SIZE, resultSet.all().size());
+		assertEquals(1, metrics.getFallbacks().getCount());
+		assertEquals(PAGES - 1, metrics.getPinnedPages().getCount());
+		assertEquals(PAGES - 2, metrics.getStickyPages().getCount());
+		assertEquals(1, metrics.getPagesPerQuery().getCount());
+	}
+
+}
@@ -0,0 +1,96 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class PoolWarmUpTest {
+
+	private static final int SHARDS = 4;
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withShards(SHARDS).start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private Cluster buildCluster(boolean poolWarmUp) {
+		return ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setPoolWarmUpEnabled(poolWarmUp)
+						.setPoolWarmUpTimeout(500, TimeUnit.MILLISECONDS));
+	}
+
+	private FakeNode node(Host host) {
+		return fakeCluster.getNode(host.getAddress());
+	}
+
+	@Test
+	public void poolsAreWarmedUpBeforeSessionIsReturned() {
+		try (final Cluster cluster = buildCluster(true)) {
+			cluster.init();
+			fakeCluster.resetCounters();
+			final Session session = cluster.connect();
+			for (Host host : cluster.getMetadata().getAllHosts()) {
+				assertEquals(SHARDS, session.getState().getOpenConnections(host));
+				// The driver checks the cluster name when it opens a connection.
+				assertTrue(node(host).getSystemRequests() >= 2 * SHARDS);
+			}
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			assertEquals(fakeCluster.getNodes().size(), metrics.getWarmedUpPools().getCount());
+			assertEquals(0, metrics.getPoolWarmUpTimeouts().getCount());
+		}
+	}
+
+	@Test
+	public void poolsAreNotWarmedUpByDefault() {
+		try (final Cluster cluster = buildCluster(false)) {
+			cluster.init();
+			fakeCluster.resetCounters();
+			cluster.connect();
+			// The driver checks the cluster name when it opens a connection.
+			for (FakeNode node : fakeCluster.getNodes()) {
+				assertEquals(SHARDS, node.getSystemRequests());
+			}
+			assertEquals(0, ClusterOptimizer.getMetrics(cluster).getWarmedUpPools().getCount());
+		}
+	}
+
+	@Test
+	public void sessionIsReturnedWhenTimeoutPasses() {
+		try (final Cluster cluster = buildCluster(true)) {
+			cluster.init();
+			// Not the contact point, so that the control connection isn't slowed down.
+			final FakeNode slow = fakeCluster.getNodes().get(1);
+			slow.setSystemLatency(2, TimeUnit.SECONDS);
+			final long start = System.nanoTime();
+			cluster.connect();
+			// Opening connections takes one round of system queries, checking them takes another.
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(3500));
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			assertEquals(fakeCluster.getNodes().size() - 1, metrics.getWarmedUpPools().getCount());
+			assertEquals(1, metrics.getPoolWarmUpTimeouts().getCount());
+		}
+	}
+
+}
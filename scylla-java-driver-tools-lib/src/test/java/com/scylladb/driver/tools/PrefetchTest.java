@@ -0,0 +1,119 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+public class PrefetchTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final int PAGES = 4;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private ResultSet resultSet;
+	private int consumed;
+
+	private void execute(PagingOptimizingOptions options) {
+		execute(options, FETCH_SIZE);
+	}
+
+	/**
+	 * @param fetchSize fetch size of the statement, or 0 to use the cluster's, which is also {@link #FETCH_SIZE}.
+	 */
+	private void execute(PagingOptimizingOptions options, int fetchSize) {
+		fakeCluster = FakeCluster.builder().withPartitions(1).withRowsPerPartition(PAGES * FETCH_SIZE).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withQueryOptions(new QueryOptions().setFetchSize(FETCH_SIZE)), options);
+		final Session session = cluster.connect();
+		fakeCluster.resetCounters();
+		resultSet = session.execute(new SimpleStatement("SELECT * FROM ks.t WHERE pk = 0").setFetchSize(fetchSize));
+	}
+
+	@After
+	public void tearDown() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private void consumeRow() {
+		assertNotNull(resultSet.one());
+		++consumed;
+	}
+
+	private void awaitAvailableRows(int rows) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 1000;
+		while (resultSet.getAvailableWithoutFetching() < rows && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private void assertConsumesAllRows() {
+		while (consumed < PAGES * FETCH_SIZE) {
+			consumeRow();
+		}
+		assertNull(resultSet.one());
+		assertEquals(PAGES, fakeCluster.getRequests());
+		assertEquals(PAGES - 1, ClusterOptimizer.getMetrics(cluster).getStickyPages().getCount());
+	}
+
+	@Test
+	public void fetchesPagesAheadOfConsumer() throws InterruptedException {
+		execute(new PagingOptimizingOptions().setPrefetchDepth(2));
+		awaitAvailableRows(2 * FETCH_SIZE);
+		consumeRow();
+		awaitAvailableRows(3 * FETCH_SIZE - consumed);
+		consumeRow();
+		assertEquals(3, fakeCluster.getRequests());
+		assertEquals(3 * FETCH_SIZE - consumed, resultSet.getAvailableWithoutFetching());
+		assertConsumesAllRows();
+	}
+
+	@Test
+	public void fetchesPagesAheadWithClusterFetchSize() throws InterruptedException {
+		execute(new PagingOptimizingOptions().setPrefetchDepth(2), 0);
+		awaitAvailableRows(2 * FETCH_SIZE);
+		consumeRow();
+		awaitAvailableRows(3 * FETCH_SIZE - consumed);
+		consumeRow();
+		assertEquals(3, fakeCluster.getRequests());
+		assertConsumesAllRows();
+	}
+
+	@Test
+	public void doesNotPrefetchByDefault() throws InterruptedException {
+		execute(new PagingOptimizingOptions());
+		consumeRow();
+		Thread.sleep(100);
+		consumeRow();
+		assertEquals(1, fakeCluster.getRequests());
+		assertConsumesAllRows();
+	}
+
+	@Test
+	public void stopsPrefetchingAtMemoryBudget() throws InterruptedException {
+		// Each row has 3 int values, so the budget is enough for 2 pages.
+		execute(new PagingOptimizingOptions().setPrefetchDepth(PAGES).setPrefetchMemoryBudget(2 * FETCH_SIZE * 3 * 4));
+		for (int i = 0; i < PAGES; ++i) {
+			Thread.sleep(50);
+			consumeRow();
+		}
+		assertEquals(2, fakeCluster.getRequests());
+		assertConsumesAllRows();
+	}
+
+}
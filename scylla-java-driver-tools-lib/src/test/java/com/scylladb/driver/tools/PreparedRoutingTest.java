@@ -0,0 +1,105 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TypeCodec;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+public class PreparedRoutingTest {
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private ProtocolVersion protocolVersion;
+	private CodecRegistry codecRegistry;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withPartitions(30).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setReplicaPinningEnabled(true));
+		session = cluster.connect();
+		protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+		codecRegistry = cluster.getConfiguration().getCodecRegistry();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	private PagingOptimizingStatement wrap(BoundStatement bound) {
+		return new PagingOptimizingStatement(bound);
+	}
+
+	@Test
+	public void routingKeysMatchDriver() {
+		final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+			final BoundStatement bound = select.bind(pk);
+			final PagingOptimizingStatement statement = wrap(bound);
+			assertEquals(bound.getRoutingKey(protocolVersion, codecRegistry),
+					statement.getRoutingKey(protocolVersion, codecRegistry));
+			assertEquals("ks", statement.getKeyspace());
+		}
+	}
+
+	@Test
+	public void explicitRoutingKeysAreUsed() {
+		final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		final ByteBuffer key = TypeCodec.cint().serialize(3, protocolVersion);
+		final PagingOptimizingStatement statement = wrap(select.bind(7).setRoutingKey(key));
+		assertEquals(key, statement.getRoutingKey(protocolVersion, codecRegistry));
+		assertEquals(key, statement.getRoutingKey(protocolVersion, codecRegistry));
+	}
+
+	@Test
+	public void statementsWithoutPartitionKeyHaveNoRoutingKey() {
+		final PagingOptimizingStatement statement = wrap(session.prepare("SELECT * FROM ks.t").bind());
+		assertNull(statement.getRoutingKey(protocolVersion, codecRegistry));
+		assertNull(statement.getRoutingKey(protocolVersion, codecRegistry));
+	}
+
+	@Test
+	public void pagesGoToReplicas() {
+		final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		fakeCluster.resetCounters();
+		for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+			int rows = 0;
+			for (Row row : session.execute(select.bind(pk).setFetchSize(5))) {
+				assertEquals(rows++, row.getInt(1));
+			}
+			assertEquals(fakeCluster.getRowsPerPartition(), rows);
+		}
+		assertEquals(0, fakeCluster.getNonReplicaRequests());
+	}
+
+	@Test
+	public void keysAreIndependentOfReturnedBuffers() {
+		final PagingOptimizingStatement statement = wrap(session.prepare("SELECT * FROM ks.t WHERE pk = ?").bind(7));
+		final ByteBuffer first = statement.getRoutingKey(protocolVersion, codecRegistry);
+		first.position(first.limit());
+		assertEquals(TypeCodec.cint().serialize(7, protocolVersion),
+				statement.getRoutingKey(protocolVersion, codecRegistry));
+	}
+
+}
@@ -0,0 +1,179 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class PreparedStatementWarmUpTest {
+
+	private static final String SELECT = "SELECT * FROM ks.t WHERE pk = ?";
+	private static final String SELECT_LIMIT = "SELECT * FROM ks.t WHERE pk = ? LIMIT 10";
+
+	private FakeCluster fakeCluster;
+	private Path file;
+
+	@Before
+	public void startFakeCluster() throws Exception {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).start();
+		file = Files.createTempFile("prepared", ".txt");
+		Files.delete(file);
+	}
+
+	@After
+	public void stopFakeCluster() throws Exception {
+		fakeCluster.close();
+		Files.deleteIfExists(file);
+	}
+
+	private Cluster buildCluster() {
+		return buildCluster(false);
+	}
+
+	private Cluster buildCluster(boolean reuse) {
+		return ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setPreparedStatementWarmUpEnabled(true).setPreparedStatementsFile(file)
+						.setWarmUpConcurrency(1).setReplicaPinningEnabled(true).setPreparedStatementReuseEnabled(reuse));
+	}
+
+	private long prepareRequests() {
+		long requests = 0;
+		for (FakeNode node : fakeCluster.getNodes()) {
+			requests += node.getPrepareRequests();
+		}
+		return requests;
+	}
+
+	private Host host(Cluster cluster, FakeNode node) {
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			if (host.getAddress().equals(node.getAddress())) {
+				return host;
+			}
+		}
+		throw new IllegalArgumentException("Unknown node " + node);
+	}
+
+	@Test
+	public void preparedStatementsAreSaved() throws Exception {
+		try (final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			session.prepare(SELECT);
+			session.prepare(SELECT);
+			session.prepareAsync("SELECT *\n\tFROM ks.t WHERE pk = ?").get();
+		}
+		final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(Arrays.asList("\t" + SELECT, "\tSELECT *\\n\\tFROM ks.t WHERE pk = ?"), lines);
+	}
+
+	@Test
+	public void preparingAgainDoesntReachHostsWithReuse() {
+		try (final Cluster cluster = buildCluster(true)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare(SELECT);
+			final long requests = prepareRequests();
+			assertSame(select, session.prepare(SELECT));
+			assertEquals(requests, prepareRequests());
+		}
+	}
+
+	@Test
+	public void preparingAgainReachesHostsByDefault() {
+		try (final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			session.prepare(SELECT);
+			final long requests = prepareRequests();
+			session.prepare(SELECT);
+			assertTrue(prepareRequests() > requests);
+		}
+	}
+
+	@Test
+	public void savedStatementsArePreparedOnConnect() throws Exception {
+		try (final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			session.prepare(SELECT);
+			session.prepare(SELECT_LIMIT);
+		}
+		fakeCluster.resetCounters();
+		try (final Cluster cluster = buildCluster(true)) {
+			final Session session = cluster.connect();
+			assertEquals(2, ClusterOptimizer.getMetrics(cluster).getWarmedUpStatements().getCount());
+			for (FakeNode node : fakeCluster.getNodes()) {
+				assertEquals(2, node.getPrepareRequests());
+			}
+			final PreparedStatement select = session.prepare(SELECT);
+			assertEquals(2 * fakeCluster.getNodes().size(), prepareRequests());
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				session.execute(select.bind(pk));
+			}
+			for (FakeNode node : fakeCluster.getNodes()) {
+				assertEquals(0, node.getUnpreparedResponses());
+			}
+		}
+		assertEquals(2, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+	}
+
+	@Test
+	public void statementsOfOtherKeyspacesAreNotPreparedOnConnect() throws Exception {
+		Files.write(file, Arrays.asList("other\t" + SELECT), StandardCharsets.UTF_8);
+		try (final Cluster cluster = buildCluster()) {
+			cluster.connect();
+			assertEquals(0, ClusterOptimizer.getMetrics(cluster).getWarmedUpStatements().getCount());
+			assertEquals(0, prepareRequests());
+		}
+	}
+
+	@Test
+	public void restartedHostIsUsedOncePrepared() throws Exception {
+		try (final Cluster cluster = buildCluster()) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare(SELECT);
+			final FakeNode node = fakeCluster.getNodes().get(0);
+			final Host host = host(cluster, node);
+			final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+			// Hosts found when the cluster is initialized are added the same way.
+			final long warmedUpHosts = metrics.getWarmedUpHosts().getCount();
+			node.stop();
+			while (host.isUp()) {
+				Thread.sleep(10);
+			}
+			fakeCluster.resetCounters();
+			node.start();
+			final long deadline = System.currentTimeMillis() + 5000;
+			while (metrics.getWarmedUpHosts().getCount() == warmedUpHosts && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(warmedUpHosts + 1, metrics.getWarmedUpHosts().getCount());
+			assertTrue(host.isUp());
+			assertTrue(node.getPrepareRequests() > 0);
+			fakeCluster.resetCounters();
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				session.execute(select.bind(pk).setFetchSize(5)).all();
+			}
+			assertFalse(node.getRequests() == 0);
+			assertEquals(0, node.getUnpreparedResponses());
+		}
+	}
+
+}
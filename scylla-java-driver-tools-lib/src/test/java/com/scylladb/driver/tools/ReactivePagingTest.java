@@ -0,0 +1,170 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.ReactivePaging.Subscriber;
+import com.scylladb.driver.tools.ReactivePaging.Subscription;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+public class ReactivePagingTest {
+
+	private static final int FETCH_SIZE = 5;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+	private PreparedStatement select;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder());
+		session = cluster.connect();
+		select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		fakeCluster.resetCounters();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		cluster.close();
+		fakeCluster.close();
+	}
+
+	/**
+	 * Subscriber that requests a given number of items at a time, once it has received the previous ones.
+	 */
+	private static class TestSubscriber<T> implements Subscriber<T> {
+
+		private final long batch;
+		private final List<T> items = new CopyOnWriteArrayList<>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Subscription subscription;
+		private volatile Throwable error;
+		private long pending;
+
+		TestSubscriber(long batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		void start() {
+			pending = batch;
+			subscription.request(batch);
+		}
+
+		@Override
+		public void onNext(T item) {
+			items.add(item);
+			if (--pending == 0) {
+				pending = batch;
+				subscription.request(batch);
+			}
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertNull(error);
+		}
+	}
+
+	@Test
+	public void publishesAllRowsOnDemand() throws Exception {
+		final TestSubscriber<Row> subscriber = new TestSubscriber<>(1);
+		ReactivePaging.rows(session, select.bind(0).setFetchSize(FETCH_SIZE)).subscribe(subscriber);
+		Thread.sleep(100);
+		assertEquals(0, fakeCluster.getRequests());
+
+		subscriber.start();
+		subscriber.await();
+		assertEquals(fakeCluster.getRowsPerPartition(), subscriber.items.size());
+		for (int i = 0; i < subscriber.items.size(); ++i) {
+			assertEquals(i, subscriber.items.get(i).getInt(1));
+		}
+
+		final int pages = fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+		final PagingOptimizingMetrics metrics = ClusterOptimizer.getMetrics(cluster);
+		assertEquals(pages, fakeCluster.getRequests());
+		assertEquals(pages - 1, metrics.getStickyPages().getCount());
+	}
+
+	@Test
+	public void demandDrivesPageFetches() throws Exception {
+		final TestSubscriber<Row> subscriber = new TestSubscriber<Row>(FETCH_SIZE) {
+			@Override
+			public void onNext(Row item) {
+				super.items.add(item);
+			}
+		};
+		ReactivePaging.rows(session, select.bind(0).setFetchSize(FETCH_SIZE)).subscribe(subscriber);
+		subscriber.start();
+		Thread.sleep(200);
+		assertEquals(FETCH_SIZE, subscriber.items.size());
+		assertEquals(1, fakeCluster.getRequests());
+
+		subscriber.subscription.request(1);
+		Thread.sleep(200);
+		assertEquals(FETCH_SIZE + 1, subscriber.items.size());
+		assertEquals(2, fakeCluster.getRequests());
+		subscriber.subscription.cancel();
+	}
+
+	@Test
+	public void publishesOnePagePerItem() throws Exception {
+		final TestSubscriber<List<Row>> subscriber = new TestSubscriber<>(1);
+		ReactivePaging.pages(session, select.bind(1).setFetchSize(FETCH_SIZE)).subscribe(subscriber);
+		subscriber.start();
+		subscriber.await();
+		assertEquals(fakeCluster.getRowsPerPartition() / FETCH_SIZE, subscriber.items.size());
+		int row = 0;
+		for (List<Row> page : subscriber.items) {
+			assertEquals(FETCH_SIZE, page.size());
+			for (Row r : page) {
+				assertEquals(row++, r.getInt(1));
+			}
+		}
+	}
+
+	@Test
+	public void nonPositiveRequestFailsSubscription() throws Exception {
+		final TestSubscriber<Row> subscriber = new TestSubscriber<>(0);
+		ReactivePaging.rows(session, select.bind(0)).subscribe(subscriber);
+		subscriber.start();
+		assertTrue(subscriber.done.await(1, TimeUnit.SECONDS));
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+
+}
@@ -0,0 +1,118 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class ReplicaPinningTest {
+
+	private static final int FETCH_SIZE = 5;
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withPartitions(10).start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private long readAllPartitions(PagingOptimizingOptions options) {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()), options)) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			fakeCluster.resetCounters();
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				int rows = 0;
+				for (Row row : session.execute(select.bind(pk).setFetchSize(FETCH_SIZE))) {
+					assertEquals(row.getInt(1) + 5, row.getInt(2));
+					++rows;
+				}
+				assertEquals(fakeCluster.getRowsPerPartition(), rows);
+			}
+			final long nonReplicaPinnedPages = ClusterOptimizer.getMetrics(cluster).getNonReplicaPinnedPages().getCount();
+			assertTrue(nonReplicaPinnedPages <= fakeCluster.getNonReplicaRequests());
+			return nonReplicaPinnedPages;
+		}
+	}
+
+	@Test
+	public void allPagesAreServedByReplicaWhenPinningEnabled() {
+		assertEquals(0, readAllPartitions(new PagingOptimizingOptions().setReplicaPinningEnabled(true)));
+		assertEquals(0, fakeCluster.getNonReplicaRequests());
+	}
+
+	@Test
+	public void pagesStickToNonReplicaWhenPinningDisabled() {
+		assertTrue(readAllPartitions(new PagingOptimizingOptions()) > 0);
+		assertTrue(fakeCluster.getNonReplicaRequests() > 0);
+	}
+
+	private Cluster buildPinningCluster() {
+		return ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()),
+				new PagingOptimizingOptions().setReplicaPinningEnabled(true));
+	}
+
+	private int nodesServingRequests() {
+		int nodes = 0;
+		for (FakeNode node : fakeCluster.getNodes()) {
+			if (node.getRequests() > 0) {
+				++nodes;
+			}
+		}
+		return nodes;
+	}
+
+	@Test
+	public void pointReadsWithoutRoutingKeyAreLeftToWrappedPolicy() {
+		try (final Cluster cluster = buildPinningCluster()) {
+			final Session session = cluster.connect();
+			fakeCluster.resetCounters();
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				session.execute("SELECT * FROM ks.t WHERE pk = " + pk).all();
+			}
+			assertEquals(fakeCluster.getNodes().size(), nodesServingRequests());
+		}
+	}
+
+	@Test
+	public void rangeScansStartAtReplicaOfRingStart() {
+		try (final Cluster cluster = buildPinningCluster()) {
+			final Session session = cluster.connect();
+			fakeCluster.resetCounters();
+			for (int i = 0; i < fakeCluster.getNodes().size(); ++i) {
+				session.execute(new SimpleStatement("SELECT * FROM ks.t").setFetchSize(FETCH_SIZE)).one();
+			}
+			assertEquals(1, nodesServingRequests());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void metricsAreNotAvailableForUnoptimizedCluster() {
+		try (final Cluster cluster = fakeCluster.clusterBuilder().build()) {
+			ClusterOptimizer.getMetrics(cluster);
+		}
+	}
+
+}
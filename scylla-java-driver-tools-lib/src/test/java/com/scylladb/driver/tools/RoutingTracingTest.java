@@ -0,0 +1,159 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class RoutingTracingTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final String EVENT_NAME = "com.scylladb.driver.tools.RoutingDecision";
+
+	private FakeCluster fakeCluster;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).start();
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private void readPartitions(Cluster cluster, int partitions) {
+		final Session session = cluster.connect();
+		final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+		for (int pk = 0; pk < partitions; ++pk) {
+			int rows = 0;
+			for (Row row : session.execute(select.bind(pk).setFetchSize(FETCH_SIZE))) {
+				assertEquals(rows++, row.getInt(1));
+			}
+			assertEquals(fakeCluster.getRowsPerPartition(), rows);
+		}
+	}
+
+	/**
+	 * The driver reports a request to latency trackers after its result is delivered.
+	 */
+	private static List<RoutingTrace> awaitTraces(Cluster cluster, long sequence) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 1000;
+		List<RoutingTrace> traces = ClusterOptimizer.getRoutingTraces(cluster);
+		while ((traces.isEmpty() || traces.get(traces.size() - 1).getSequence() < sequence)
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			traces = ClusterOptimizer.getRoutingTraces(cluster);
+		}
+		return traces;
+	}
+
+	@Test
+	public void pagesAreTracedInRingBuffer() throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setRoutingTraceBufferSize(64))) {
+			readPartitions(cluster, 1);
+			final int pages = fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+			final List<RoutingTrace> traces = awaitTraces(cluster, pages);
+			assertEquals(pages, traces.size());
+			final RoutingTrace first = traces.get(0);
+			assertEquals(1, first.getPage());
+			assertEquals(RoutingReason.WRAPPED_POLICY, first.getReason());
+			assertNull(first.getPinnedHost());
+			for (int i = 1; i < traces.size(); ++i) {
+				final RoutingTrace trace = traces.get(i);
+				assertEquals(first.getStatementId(), trace.getStatementId());
+				assertEquals(i + 1, trace.getPage());
+				assertEquals(RoutingReason.STICKY, trace.getReason());
+				assertEquals(first.getHost(), trace.getPinnedHost());
+				assertEquals(first.getHost(), trace.getChosenHost());
+				assertEquals(first.getHost(), trace.getHost());
+				assertTrue(trace.getLatencyNanos() > 0);
+				assertNull(trace.getError());
+			}
+		}
+	}
+
+	@Test
+	public void firstPagesPinnedToReplicasAreTraced() throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setRoutingTraceBufferSize(64).setReplicaPinningEnabled(true))) {
+			readPartitions(cluster, 1);
+			final RoutingTrace first = awaitTraces(cluster, 1).get(0);
+			assertEquals(RoutingReason.REPLICA, first.getReason());
+			assertEquals(first.getChosenHost(), first.getHost());
+		}
+	}
+
+	@Test
+	public void ringBufferKeepsMostRecentTraces() throws Exception {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setRoutingTraceBufferSize(4))) {
+			readPartitions(cluster, fakeCluster.getPartitions());
+			final long pages = fakeCluster.getPartitions() * fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+			final List<RoutingTrace> traces = awaitTraces(cluster, pages);
+			assertEquals(4, traces.size());
+			for (int i = 0; i < traces.size(); ++i) {
+				assertEquals(pages - traces.size() + 1 + i, traces.get(i).getSequence());
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void ringBufferIsDisabledByDefault() {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder())) {
+			ClusterOptimizer.getRoutingTraces(cluster);
+		}
+	}
+
+	@Test
+	public void pagesAreRecordedAsFlightRecorderEvents() throws Exception {
+		final Path file = Files.createTempFile("routing", ".jfr");
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder(),
+				new PagingOptimizingOptions().setRoutingTraceBufferSize(16));
+				final Recording recording = new Recording()) {
+			recording.enable(EVENT_NAME);
+			recording.start();
+			readPartitions(cluster, 1);
+			final int pages = fakeCluster.getRowsPerPartition() / FETCH_SIZE;
+			awaitTraces(cluster, pages);
+			recording.stop();
+			recording.dump(file);
+			final List<RecordedEvent> events = new ArrayList<>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				if (event.getEventType().getName().equals(EVENT_NAME)) {
+					events.add(event);
+				}
+			}
+			assertEquals(pages, events.size());
+			assertEquals(RoutingReason.WRAPPED_POLICY.name(), events.get(0).getString("reason"));
+			assertEquals(RoutingReason.STICKY.name(), events.get(1).getString("reason"));
+			assertEquals(events.get(0).getString("host"), events.get(1).getString("pinnedHost"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
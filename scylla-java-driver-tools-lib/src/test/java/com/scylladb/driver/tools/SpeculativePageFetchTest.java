@@ -0,0 +1,100 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class SpeculativePageFetchTest {
+
+	private static final int FETCH_SIZE = 5;
+	private static final long INTERVAL_MILLIS = 500;
+	private static final int CONCURRENT_WARM_UP_QUERIES = 32;
+
+	private FakeCluster fakeCluster;
+	private FakeNode slowNode;
+
+	@Before
+	public void startFakeCluster() {
+		fakeCluster = FakeCluster.builder().withNodes(3).withReplicationFactor(3).withPartitions(9).start();
+		slowNode = fakeCluster.getNodes().get(0);
+	}
+
+	@After
+	public void stopFakeCluster() {
+		fakeCluster.close();
+	}
+
+	private PagingOptimizingMetrics readAllPartitions(PagingOptimizingOptions options) {
+		try (final Cluster cluster = ClusterOptimizer.buildWithPagingOptimized(
+				fakeCluster.clusterBuilder().withLoadBalancingPolicy(new RoundRobinPolicy()),
+				options.setSpeculativePageFetchInterval(INTERVAL_MILLIS, TimeUnit.MILLISECONDS))) {
+			final Session session = cluster.connect();
+			final PreparedStatement select = session.prepare("SELECT * FROM ks.t WHERE pk = ?");
+			select.setIdempotent(true);
+			warmUp(session, select);
+			slowNode.setLatency(50, TimeUnit.MILLISECONDS);
+			for (int pk = 0; pk < fakeCluster.getPartitions(); ++pk) {
+				int rows = 0;
+				for (Row row : session.execute(select.bind(pk).setFetchSize(FETCH_SIZE))) {
+					assertEquals(row.getInt(1) + 5, row.getInt(2));
+					++rows;
+				}
+				assertEquals(fakeCluster.getRowsPerPartition(), rows);
+			}
+			return ClusterOptimizer.getMetrics(cluster);
+		}
+	}
+
+	/**
+	 * Record enough latencies of every host for two intervals, so that
+	 * percentiles of a whole interval are available.
+	 */
+	private void warmUp(Session session, PreparedStatement select) {
+		final long deadline = System.currentTimeMillis() + 2 * INTERVAL_MILLIS + 100;
+		final int singlePage = fakeCluster.getRowsPerPartition() + 1;
+		while (System.currentTimeMillis() < deadline) {
+			final List<ResultSetFuture> futures = new ArrayList<>();
+			for (int i = 0; i < CONCURRENT_WARM_UP_QUERIES; ++i) {
+				futures.add(session.executeAsync(select.bind(i % fakeCluster.getPartitions()).setFetchSize(singlePage)));
+			}
+			futures.forEach(ResultSetFuture::getUninterruptibly);
+		}
+	}
+
+	@Test
+	public void slowPinnedPagesAreRacedAgainstAnotherReplica() {
+		final PagingOptimizingMetrics metrics = readAllPartitions(
+				new PagingOptimizingOptions().setSpeculativePageFetchEnabled(true));
+		final long sent = metrics.getSpeculativePageFetches().getCount();
+		final long won = metrics.getSpeculativePageFetchWins().getCount();
+		assertTrue(won > 0);
+		assertEquals(sent, won + metrics.getWastedSpeculativePageFetches().getCount());
+	}
+
+	@Test
+	public void pinnedPagesAreNotSpeculatedByDefault() {
+		final PagingOptimizingMetrics metrics = readAllPartitions(new PagingOptimizingOptions());
+		assertEquals(0, metrics.getSpeculativePageFetches().getCount());
+	}
+
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.scylladb.driver.tools.testing.FakeCluster;
+import com.scylladb.driver.tools.testing.FakeNode;
+
+public class TableScannerTest {
+
+	private static final int PARTITIONS = 20;
+	private static final int ROWS_PER_PARTITION = 7;
+
+	private FakeCluster fakeCluster;
+	private Cluster cluster;
+	private Session session;
+
+	private TableScanner scanner(FakeCluster.Builder builder) {
+		fakeCluster = builder.withPartitions(PARTITIONS).withRowsPerPartition(ROWS_PER_PARTITION).start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder());
+		session = cluster.connect();
+		return new TableScanner(session, FakeCluster.KEYSPACE, FakeCluster.TABLE).setFetchSize(5);
+	}
+
+	@After
+	public void tearDown() {
+		if (cluster != null) {
+			cluster.close();
+		}
+		if (fakeCluster != null) {
+			fakeCluster.close();
+		}
+	}
+
+	private void assertScansAllRows(TableScanner scanner) {
+		final Set<Long> rows = new HashSet<>();
+		try (final TableScanner.Scan scan = scanner.scan()) {
+			while (scan.hasNext()) {
+				final Row row = scan.next();
+				assertEquals(row.getInt("ck") + 5, row.getInt("v"));
+				assertTrue(rows.add((long) row.getInt("pk") * ROWS_PER_PARTITION + row.getInt("ck")));
+			}
+		}
+		assertEquals(PARTITIONS * ROWS_PER_PARTITION, rows.size());
+		assertEquals(0, fakeCluster.getNonReplicaRequests());
+	}
+
+	@Test
+	public void scansAllRowsFromReplicas() {
+		assertScansAllRows(scanner(FakeCluster.builder().withNodes(3)).setConcurrency(2));
+	}
+
+	@Test
+	public void scansAllRowsOfSplitRanges() {
+		assertScansAllRows(scanner(FakeCluster.builder().withNodes(3).withReplicationFactor(2))
+				.setSplitting(4, 2).setConcurrency(3));
+	}
+
+	@Test
+	public void scansSingleNode() {
+		assertScansAllRows(scanner(FakeCluster.builder().withNodes(1)));
+	}
+
+	@Test
+	public void scanKeepsItsSettings() {
+		final TableScanner scanner = scanner(FakeCluster.builder().withNodes(3)).setConcurrency(1);
+		try (final TableScanner.Scan scan = scanner.scan()) {
+			scanner.setFetchSize(1000).setConcurrency(16);
+			fakeCluster.resetCounters();
+			int rows = 0;
+			while (scan.hasNext()) {
+				scan.next();
+				++rows;
+			}
+			assertEquals(PARTITIONS * ROWS_PER_PARTITION, rows);
+		}
+		assertTrue(fakeCluster.getRequests() >= PARTITIONS * ROWS_PER_PARTITION / 5);
+	}
+
+	@Test
+	public void closeCancelsRequestsInFlight() {
+		final TableScanner scanner = scanner(FakeCluster.builder().withNodes(3)).setConcurrency(3);
+		for (FakeNode node : fakeCluster.getNodes()) {
+			node.setLatency(1, TimeUnit.SECONDS);
+		}
+		scanner.scan().close();
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			assertEquals(0, session.getState().getInFlightQueries(host));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresOptimizedSession() {
+		fakeCluster = FakeCluster.builder().start();
+		cluster = fakeCluster.clusterBuilder().build();
+		new TableScanner(cluster.connect(), FakeCluster.KEYSPACE, FakeCluster.TABLE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownKeyspace() {
+		fakeCluster = FakeCluster.builder().start();
+		cluster = ClusterOptimizer.buildWithPagingOptimized(fakeCluster.clusterBuilder());
+		new TableScanner(cluster.connect(), "unknown", FakeCluster.TABLE).scan();
+	}
+
+}
@@ -0,0 +1,458 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.policies.ConstantReconnectionPolicy;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * In-process fake of a multi-node Scylla cluster speaking native protocol V4.
+ *
+ * Every node listens on its own loopback address (127.0.0.1, 127.0.0.2, ...) and
+ * serves the same table {@code ks.t (pk int, ck int, v int, PRIMARY KEY ((pk), ck))}
+ * which contains {@code partitions * rowsPerPartition} rows with {@code v = ck + 5}.
+ * Nodes own evenly spaced tokens, so the driver sees a real token ring and
+ * nodes can tell whether they were a replica of the data they were asked for.
+ *
+ * This is not a database: it understands just enough CQL to serve the driver's
+ * metadata queries, paged reads by partition key or token range, writes and batches.
+ */
+public class FakeCluster implements Closeable {
+
+	public static final String KEYSPACE = "ks";
+	public static final String TABLE = "t";
+
+	private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(64);
+	private static final int PAXOS_ROUND_TRIPS = 3;
+	private static final int CONTENDED_PAXOS_ROUND_TRIPS = 2;
+
+	private final int partitions;
+	private final int rowsPerPartition;
+	private final int replicationFactor;
+	private final int datacenters;
+	private final int shards;
+	private final int ignoreMsb;
+	private final int port;
+	private final EventLoopGroup eventLoopGroup;
+	private final List<FakeNode> nodes;
+	private final List<FakeRow> rows;
+	private final ConcurrentMap<Integer, Map<FakeNode, Integer>> paxosCoordinators = new ConcurrentHashMap<>();
+
+	private FakeCluster(Builder builder) {
+		partitions = builder.partitions;
+		rowsPerPartition = builder.rowsPerPartition;
+		replicationFactor = builder.replicationFactor;
+		datacenters = builder.datacenters;
+		shards = builder.shards;
+		ignoreMsb = builder.ignoreMsb;
+		port = freePort();
+		eventLoopGroup = new NioEventLoopGroup(2);
+
+		final List<FakeNode> nodes = new ArrayList<>();
+		final long step = Long.divideUnsigned(-1L, builder.nodes);
+		for (int i = 0; i < builder.nodes; ++i) {
+			nodes.add(new FakeNode(this, i, address(i),
+					"dc" + (i % builder.datacenters + 1),
+					"rack" + (i / builder.datacenters % builder.racks + 1),
+					Long.MIN_VALUE + step * i + step / 2));
+		}
+		this.nodes = Collections.unmodifiableList(nodes);
+
+		final List<FakeRow> rows = new ArrayList<>();
+		for (int pk = 0; pk < partitions; ++pk) {
+			final long token = token(pk);
+			for (int ck = 0; ck < rowsPerPartition; ++ck) {
+				rows.add(new FakeRow(pk, ck, ck + 5, token));
+			}
+		}
+		rows.sort(null);
+		this.rows = Collections.unmodifiableList(rows);
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+
+		private int nodes = 3;
+		private int datacenters = 1;
+		private int racks = 1;
+		private int shards = 1;
+		private int ignoreMsb = 12;
+		private int replicationFactor = 1;
+		private int partitions = 3;
+		private int rowsPerPartition = 15;
+
+		public Builder withNodes(int nodes) {
+			this.nodes = nodes;
+			return this;
+		}
+
+		/**
+		 * Nodes are assigned to datacenters and then to racks in round robin fashion.
+		 */
+		public Builder withDatacenters(int datacenters) {
+			this.datacenters = datacenters;
+			return this;
+		}
+
+		public Builder withRacks(int racks) {
+			this.racks = racks;
+			return this;
+		}
+
+		public Builder withShards(int shards) {
+			this.shards = shards;
+			return this;
+		}
+
+		public Builder withReplicationFactor(int replicationFactor) {
+			this.replicationFactor = replicationFactor;
+			return this;
+		}
+
+		public Builder withPartitions(int partitions) {
+			this.partitions = partitions;
+			return this;
+		}
+
+		public Builder withRowsPerPartition(int rowsPerPartition) {
+			this.rowsPerPartition = rowsPerPartition;
+			return this;
+		}
+
+		public FakeCluster start() {
+			final FakeCluster cluster = new FakeCluster(this);
+			try {
+				for (FakeNode node : cluster.nodes) {
+					node.start();
+				}
+			} catch (RuntimeException e) {
+				cluster.close();
+				throw e;
+			}
+			return cluster;
+		}
+	}
+
+	/**
+	 * A {@link Cluster.Builder} pointing at this fake cluster. Shard connections are
+	 * modelled the way Scylla does it: every connection to a node is bound to one shard,
+	 * so pools are sized to have a connection per shard.
+	 */
+	public Cluster.Builder clusterBuilder() {
+		final int connections = shards;
+		return Cluster.builder()
+				.addContactPoints(nodes.get(0).getAddress())
+				.withPort(port)
+				.withReconnectionPolicy(new ConstantReconnectionPolicy(100))
+				.withPoolingOptions(new PoolingOptions()
+						.setConnectionsPerHost(HostDistance.LOCAL, connections, connections)
+						.setConnectionsPerHost(HostDistance.REMOTE, connections, connections));
+	}
+
+	public List<FakeNode> getNodes() {
+		return nodes;
+	}
+
+	public FakeNode getNode(InetAddress address) {
+		for (FakeNode node : nodes) {
+			if (node.getAddress().equals(address)) {
+				return node;
+			}
+		}
+		throw new IllegalArgumentException("No node with address " + address);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public int getRowsPerPartition() {
+		return rowsPerPartition;
+	}
+
+	public int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public int getIgnoreMsb() {
+		return ignoreMsb;
+	}
+
+	/**
+	 * Shard owning a token, computed the way Scylla does it (biased-token-round-robin).
+	 */
+	int shardOf(long token) {
+		final BigInteger biased = BigInteger.valueOf(token)
+				.subtract(BigInteger.valueOf(Long.MIN_VALUE))
+				.shiftLeft(ignoreMsb)
+				.mod(RING_SIZE);
+		return biased.multiply(BigInteger.valueOf(shards)).shiftRight(64).intValue();
+	}
+
+	EventLoopGroup getEventLoopGroup() {
+		return eventLoopGroup;
+	}
+
+	List<FakeRow> getRows() {
+		return rows;
+	}
+
+	public long getRequests() {
+		long result = 0;
+		for (FakeNode node : nodes) {
+			result += node.getRequests();
+		}
+		return result;
+	}
+
+	public long getWrongShardRequests() {
+		long result = 0;
+		for (FakeNode node : nodes) {
+			result += node.getWrongShardRequests();
+		}
+		return result;
+	}
+
+	public long getNonReplicaRequests() {
+		long result = 0;
+		for (FakeNode node : nodes) {
+			result += node.getNonReplicaRequests();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of round trips between coordinators and replicas made by
+	 * lightweight transactions.
+	 *
+	 * A transaction takes three round trips (prepare, propose and commit). Scylla
+	 * serializes the transactions of a partition coordinated by the same node, but
+	 * the ballots of different coordinators working on the same partition at the
+	 * same time conflict, and each conflicting transaction has to prepare and propose
+	 * again. Transactions last until their response is written, including any
+	 * {@link FakeNode#setLatency latency}.
+	 */
+	public long getPaxosRoundTrips() {
+		long result = 0;
+		for (FakeNode node : nodes) {
+			result += node.getPaxosRoundTrips();
+		}
+		return result;
+	}
+
+	/**
+	 * Start a lightweight transaction on a partition and return the number of round trips it takes.
+	 */
+	int beginPaxos(FakeNode coordinator, int pk) {
+		final Map<FakeNode, Integer> coordinators = paxosCoordinators.computeIfAbsent(pk, p -> new HashMap<>());
+		synchronized (coordinators) {
+			int roundTrips = PAXOS_ROUND_TRIPS;
+			for (FakeNode other : coordinators.keySet()) {
+				if (other != coordinator) {
+					roundTrips += CONTENDED_PAXOS_ROUND_TRIPS;
+				}
+			}
+			coordinators.merge(coordinator, 1, Integer::sum);
+			return roundTrips;
+		}
+	}
+
+	void endPaxos(FakeNode coordinator, int pk) {
+		final Map<FakeNode, Integer> coordinators = paxosCoordinators.get(pk);
+		synchronized (coordinators) {
+			coordinators.computeIfPresent(coordinator, (node, transactions) -> transactions > 1 ? transactions - 1 : null);
+		}
+	}
+
+	public void resetCounters() {
+		for (FakeNode node : nodes) {
+			node.resetCounters();
+		}
+	}
+
+	/**
+	 * Whether a node is one of replicationFactor nodes following the token on the ring
+	 * (SimpleStrategy), counting only nodes of the same datacenter (NetworkTopologyStrategy).
+	 */
+	boolean isReplica(FakeNode node, long token) {
+		int primary = 0;
+		while (primary < nodes.size() && nodes.get(primary).getToken() < token) {
+			++primary;
+		}
+		int found = 0;
+		for (int i = 0; i < nodes.size() && found < replicationFactor; ++i) {
+			final FakeNode candidate = nodes.get((primary + i) % nodes.size());
+			if (!candidate.getDatacenter().equals(node.getDatacenter())) {
+				continue;
+			}
+			if (candidate == node) {
+				return true;
+			}
+			++found;
+		}
+		return false;
+	}
+
+	int getDatacenters() {
+		return datacenters;
+	}
+
+	@Override
+	public void close() {
+		for (FakeNode node : nodes) {
+			node.stop();
+		}
+		eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+	}
+
+	static final class FakeRow implements Comparable<FakeRow> {
+
+		final int pk;
+		final int ck;
+		final int v;
+		final long token;
+
+		FakeRow(int pk, int ck, int v, long token) {
+			this.pk = pk;
+			this.ck = ck;
+			this.v = v;
+			this.token = token;
+		}
+
+		@Override
+		public int compareTo(FakeRow other) {
+			final int result = Long.compare(token, other.token);
+			if (result != 0) {
+				return result;
+			}
+			return pk != other.pk ? Integer.compare(pk, other.pk) : Integer.compare(ck, other.ck);
+		}
+	}
+
+	private static InetAddress address(int i) {
+		try {
+			return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (i + 1) });
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int freePort() {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Murmur3Partitioner token of an int partition key.
+	 */
+	static long token(int pk) {
+		return token(ByteBuffer.allocate(4).putInt(0, pk));
+	}
+
+	static long token(ByteBuffer partitionKey) {
+		final long value = murmur3(partitionKey);
+		return value == Long.MIN_VALUE ? Long.MAX_VALUE : value;
+	}
+
+	// First 64 bits of Cassandra's MurmurHash.hash3_x64_128 with seed 0.
+	@SuppressWarnings("fallthrough")
+	private static long murmur3(ByteBuffer data) {
+		final int offset = data.position();
+		final int length = data.remaining();
+		final int blocks = length >> 4;
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		long h1 = 0;
+		long h2 = 0;
+
+		for (int i = 0; i < blocks; i++) {
+			long k1 = data.getLong(offset + i * 16);
+			long k2 = data.getLong(offset + i * 16 + 8);
+			k1 = Long.reverseBytes(k1);
+			k2 = Long.reverseBytes(k2);
+			k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+			k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		final int tail = offset + blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+			case 15: k2 ^= ((long) data.get(tail + 14)) << 48;
+			case 14: k2 ^= ((long) data.get(tail + 13)) << 40;
+			case 13: k2 ^= ((long) data.get(tail + 12)) << 32;
+			case 12: k2 ^= ((long) data.get(tail + 11)) << 24;
+			case 11: k2 ^= ((long) data.get(tail + 10)) << 16;
+			case 10: k2 ^= ((long) data.get(tail + 9)) << 8;
+			case 9:  k2 ^= ((long) data.get(tail + 8));
+				k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+			case 8:  k1 ^= ((long) data.get(tail + 7)) << 56;
+			case 7:  k1 ^= ((long) data.get(tail + 6)) << 48;
+			case 6:  k1 ^= ((long) data.get(tail + 5)) << 40;
+			case 5:  k1 ^= ((long) data.get(tail + 4)) << 32;
+			case 4:  k1 ^= ((long) data.get(tail + 3)) << 24;
+			case 3:  k1 ^= ((long) data.get(tail + 2)) << 16;
+			case 2:  k1 ^= ((long) data.get(tail + 1)) << 8;
+			case 1:  k1 ^= ((long) data.get(tail));
+				k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+}
@@ -0,0 +1,1040 @@
+// Copyright (C) 2018 ScyllaDB
+// Use of this source code is governed by a ALv2-style
+// license that can be found in the LICENSE file.
+
+package com.scylladb.driver.tools.testing;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.scylladb.driver.tools.testing.FakeCluster.FakeRow;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * A single node of {@link FakeCluster}.
+ *
+ * Nodes count the data requests they serve and support injecting latency and failures.
+ * Every connection is bound to a shard, round robin, like connections to Scylla are.
+ */
+public class FakeNode {
+
+	/**
+	 * Errors that can be injected into data requests.
+	 */
+	public enum Failure {
+		SERVER_ERROR, OVERLOADED, READ_TIMEOUT, UNAVAILABLE, CAS_WRITE_TIMEOUT
+	}
+
+	private static final UUID SCHEMA_VERSION = UUID.fromString("a8e3ecaa-6a53-3ab1-a3a0-3ac5d6b8b0e6");
+	private static final String RELEASE_VERSION = "3.0.8";
+
+	private static final Pattern SYSTEM_QUERY = Pattern.compile(
+			"(?is)\\s*SELECT\\s.*?\\sFROM\\s+(system(?:_schema)?)\\.(\\w+).*");
+	private static final Pattern SELECT = Pattern.compile("(?is)\\s*SELECT\\s.*?\\sFROM\\s+(?:\\w+\\.)?(\\w+)(.*)");
+	private static final Pattern PK_RESTRICTION = Pattern.compile("(?is).*\\bpk\\s*=\\s*(\\?|-?\\d+).*");
+	private static final Pattern TOKEN_RESTRICTION = Pattern.compile(
+			"(?is).*token\\s*\\(\\s*pk\\s*\\)\\s*>\\s*(\\?|-?\\d+)"
+			+ "(?:\\s+AND\\s+token\\s*\\(\\s*pk\\s*\\)\\s*<=\\s*(\\?|-?\\d+))?.*");
+	private static final Pattern INSERT = Pattern.compile(
+			"(?is)\\s*INSERT\\s+INTO\\s+(?:\\w+\\.)?\\w+\\s*\\(([^)]*)\\)\\s*VALUES\\s*\\(([^)]*)\\).*");
+	private static final Pattern CONDITIONAL = Pattern.compile("(?is).*\\sIF\\s.*");
+	private static final Pattern USE = Pattern.compile("(?is)\\s*USE\\s+\"?(\\w+)\"?\\s*;?\\s*");
+
+	private static final int OPCODE_ERROR = 0x00;
+	private static final int OPCODE_STARTUP = 0x01;
+	private static final int OPCODE_READY = 0x02;
+	private static final int OPCODE_OPTIONS = 0x05;
+	private static final int OPCODE_SUPPORTED = 0x06;
+	private static final int OPCODE_QUERY = 0x07;
+	private static final int OPCODE_RESULT = 0x08;
+	private static final int OPCODE_PREPARE = 0x09;
+	private static final int OPCODE_EXECUTE = 0x0A;
+	private static final int OPCODE_REGISTER = 0x0B;
+	private static final int OPCODE_BATCH = 0x0D;
+
+	private static final int RESULT_VOID = 0x0001;
+	private static final int RESULT_ROWS = 0x0002;
+	private static final int RESULT_SET_KEYSPACE = 0x0003;
+	private static final int RESULT_PREPARED = 0x0004;
+
+	private static final int ERROR_SERVER_ERROR = 0x0000;
+	private static final int ERROR_PROTOCOL_ERROR = 0x000A;
+	private static final int ERROR_UNAVAILABLE = 0x1000;
+	private static final int ERROR_OVERLOADED = 0x1001;
+	private static final int ERROR_WRITE_TIMEOUT = 0x1100;
+	private static final int ERROR_READ_TIMEOUT = 0x1200;
+	private static final int ERROR_INVALID = 0x2200;
+	private static final int ERROR_UNPREPARED = 0x2500;
+
+	private static final int CONSISTENCY_ONE = 0x0001;
+
+	private final FakeCluster cluster;
+	private final InetAddress address;
+	private final String datacenter;
+	private final String rack;
+	private final long token;
+	private final UUID hostId;
+
+	private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+	private final AtomicInteger nextShard = new AtomicInteger();
+	private final Map<String, String> prepared = new ConcurrentHashMap<>();
+
+	private volatile long latencyMillis;
+	private volatile long systemLatencyMillis;
+	private volatile Failure failure = Failure.SERVER_ERROR;
+	private final AtomicInteger remainingFailures = new AtomicInteger();
+
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder pagedRequests = new LongAdder();
+	private final LongAdder wrongShardRequests = new LongAdder();
+	private final LongAdder nonReplicaRequests = new LongAdder();
+	private final LongAdder prepareRequests = new LongAdder();
+	private final LongAdder unpreparedResponses = new LongAdder();
+	private final LongAdder conditionalRequests = new LongAdder();
+	private final LongAdder batchRequests = new LongAdder();
+	private final LongAdder failedRequests = new LongAdder();
+	private final LongAdder paxosRoundTrips = new LongAdder();
+	private final LongAdder systemRequests = new LongAdder();
+
+	FakeNode(FakeCluster cluster, int index, InetAddress address, String datacenter, String rack, long token) {
+		this.cluster = cluster;
+		this.address = address;
+		this.datacenter = datacenter;
+		this.rack = rack;
+		this.token = token;
+		this.hostId = UUID.nameUUIDFromBytes(("fake-node-" + index).getBytes(StandardCharsets.UTF_8));
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public String getDatacenter() {
+		return datacenter;
+	}
+
+	public String getRack() {
+		return rack;
+	}
+
+	public UUID getHostId() {
+		return hostId;
+	}
+
+	long getToken() {
+		return token;
+	}
+
+	/**
+	 * Delay all responses to data requests by given amount of time.
+	 */
+	public void setLatency(long latency, TimeUnit unit) {
+		latencyMillis = unit.toMillis(latency);
+	}
+
+	/**
+	 * Delay responses to queries of system tables, which {@link #setLatency} doesn't
+	 * delay, by given amount of time. The driver queries them when it connects,
+	 * refreshes metadata and validates connections.
+	 */
+	public void setSystemLatency(long latency, TimeUnit unit) {
+		systemLatencyMillis = unit.toMillis(latency);
+	}
+
+	/**
+	 * Fail given number of next data requests with given error.
+	 */
+	public void failNextRequests(int count, Failure failure) {
+		this.failure = failure;
+		remainingFailures.set(count);
+	}
+
+	/**
+	 * Start accepting connections. Prepared statements are forgotten
+	 * between restarts, the same way a real node forgets them.
+	 */
+	public synchronized void start() {
+		if (!channels.isEmpty()) {
+			return;
+		}
+		prepared.clear();
+		final Channel serverChannel = new ServerBootstrap()
+				.group(cluster.getEventLoopGroup())
+				.channel(NioServerSocketChannel.class)
+				.childOption(ChannelOption.TCP_NODELAY, true)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel channel) {
+						channels.add(channel);
+						channel.pipeline()
+								.addLast(new LengthFieldBasedFrameDecoder(256 * 1024 * 1024, 5, 4, 0, 0))
+								.addLast(new Handler(nextShard.getAndIncrement()
+										% cluster.getShards()));
+					}
+				})
+				.bind(new InetSocketAddress(address, cluster.getPort()))
+				.syncUninterruptibly()
+				.channel();
+		channels.add(serverChannel);
+	}
+
+	/**
+	 * Stop accepting connections and close existing ones, as if the node went down.
+	 */
+	public synchronized void stop() {
+		channels.close().awaitUninterruptibly();
+		channels.clear();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getPagedRequests() {
+		return pagedRequests.sum();
+	}
+
+	public long getWrongShardRequests() {
+		return wrongShardRequests.sum();
+	}
+
+	public long getNonReplicaRequests() {
+		return nonReplicaRequests.sum();
+	}
+
+	public long getPrepareRequests() {
+		return prepareRequests.sum();
+	}
+
+	public long getUnpreparedResponses() {
+		return unpreparedResponses.sum();
+	}
+
+	public long getConditionalRequests() {
+		return conditionalRequests.sum();
+	}
+
+	public long getBatchRequests() {
+		return batchRequests.sum();
+	}
+
+	public long getFailedRequests() {
+		return failedRequests.sum();
+	}
+
+	/**
+	 * Returns the number of queries of system tables this node served.
+	 */
+	public long getSystemRequests() {
+		return systemRequests.sum();
+	}
+
+	/**
+	 * Returns the number of round trips to replicas made by lightweight transactions
+	 * this node coordinated, see {@link FakeCluster#getPaxosRoundTrips()}.
+	 */
+	public long getPaxosRoundTrips() {
+		return paxosRoundTrips.sum();
+	}
+
+	public void resetCounters() {
+		requests.reset();
+		pagedRequests.reset();
+		wrongShardRequests.reset();
+		nonReplicaRequests.reset();
+		prepareRequests.reset();
+		unpreparedResponses.reset();
+		conditionalRequests.reset();
+		batchRequests.reset();
+		failedRequests.reset();
+		paxosRoundTrips.reset();
+		systemRequests.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "FakeNode(" + address.getHostAddress() + ", " + datacenter + ", " + rack + ")";
+	}
+
+	private class Handler extends SimpleChannelInboundHandler<ByteBuf> {
+
+		private final int shard;
+
+		Handler(int shard) {
+			this.shard = shard;
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) {
+			final int version = frame.readByte() & 0x7f;
+			frame.readByte(); // flags
+			final short stream = frame.readShort();
+			final int opcode = frame.readByte();
+			frame.readInt(); // length
+			if (version != 4) {
+				final ByteBuf body = Unpooled.buffer();
+				body.writeInt(ERROR_PROTOCOL_ERROR);
+				writeString(body, "Invalid or unsupported protocol version (" + version + "); supported versions are (4/v4)");
+				ctx.writeAndFlush(frame(version, stream, OPCODE_ERROR, body));
+				return;
+			}
+			final Response response = handle(opcode, frame);
+			final ByteBuf message = frame(4, stream, response.opcode, response.body);
+			final Runnable write = () -> {
+				ctx.writeAndFlush(message);
+				if (response.onWritten != null) {
+					response.onWritten.run();
+				}
+			};
+			final long delayMillis = response.delayed ? latencyMillis : response.system ? systemLatencyMillis : 0;
+			if (delayMillis > 0) {
+				ctx.executor().schedule(write, delayMillis, TimeUnit.MILLISECONDS);
+			} else {
+				write.run();
+			}
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+			ctx.close();
+		}
+
+		private Response handle(int opcode, ByteBuf body) {
+			switch (opcode) {
+				case OPCODE_STARTUP:
+				case OPCODE_REGISTER:
+					return new Response(OPCODE_READY, Unpooled.EMPTY_BUFFER, false);
+				case OPCODE_OPTIONS:
+					return supported();
+				case OPCODE_PREPARE:
+					return prepare(readLongString(body));
+				case OPCODE_QUERY: {
+					final String query = readLongString(body);
+					return query(query, QueryParameters.read(body));
+				}
+				case OPCODE_EXECUTE: {
+					final String id = hex(readShortBytes(body));
+					final String query = prepared.get(id);
+					if (query == null) {
+						unpreparedResponses.increment();
+						final ByteBuf error = Unpooled.buffer();
+						error.writeInt(ERROR_UNPREPARED);
+						writeString(error, "Prepared query with ID " + id + " not found");
+						writeShortBytes(error, unhex(id));
+						return new Response(OPCODE_ERROR, error, true);
+					}
+					return query(query, QueryParameters.read(body));
+				}
+				case OPCODE_BATCH:
+					batchRequests.increment();
+					if (!ownsBatch(body)) {
+						nonReplicaRequests.increment();
+					}
+					return data(() -> voidResult());
+				default:
+					return error(ERROR_PROTOCOL_ERROR, "Unsupported opcode " + opcode);
+			}
+		}
+
+		private Response supported() {
+			final Map<String, List<String>> options = new LinkedHashMap<>();
+			options.put("CQL_VERSION", Collections.singletonList("3.3.1"));
+			options.put("COMPRESSION", Collections.emptyList());
+			options.put("SCYLLA_SHARD", Collections.singletonList(Integer.toString(shard)));
+			options.put("SCYLLA_NR_SHARDS",
+					Collections.singletonList(Integer.toString(cluster.getShards())));
+			options.put("SCYLLA_PARTITIONER", Collections.singletonList("org.apache.cassandra.dht.Murmur3Partitioner"));
+			options.put("SCYLLA_SHARDING_ALGORITHM", Collections.singletonList("biased-token-round-robin"));
+			options.put("SCYLLA_SHARDING_IGNORE_MSB",
+					Collections.singletonList(Integer.toString(cluster.getIgnoreMsb())));
+			final ByteBuf body = Unpooled.buffer();
+			body.writeShort(options.size());
+			for (Map.Entry<String, List<String>> option : options.entrySet()) {
+				writeString(body, option.getKey());
+				body.writeShort(option.getValue().size());
+				for (String value : option.getValue()) {
+					writeString(body, value);
+				}
+			}
+			return new Response(OPCODE_SUPPORTED, body, false);
+		}
+
+		private Response prepare(String query) {
+			prepareRequests.increment();
+			final byte[] id = md5(query);
+			prepared.put(hex(id), query);
+
+			final List<Column> variables = new ArrayList<>();
+			final List<Integer> pkIndices = new ArrayList<>();
+			final Matcher insert = INSERT.matcher(query);
+			if (insert.matches()) {
+				final String[] names = insert.group(1).split(",");
+				final String[] values = insert.group(2).split(",");
+				for (int i = 0; i < names.length; ++i) {
+					if (values[i].trim().equals("?")) {
+						final String name = names[i].trim();
+						if (name.equals("pk")) {
+							pkIndices.add(variables.size());
+						}
+						variables.add(Column.integer(name));
+					}
+				}
+			} else {
+				final Matcher token = TOKEN_RESTRICTION.matcher(query);
+				if (token.matches()) {
+					if (token.group(1).equals("?")) {
+						variables.add(Column.bigint("partition key token"));
+					}
+					if ("?".equals(token.group(2))) {
+						variables.add(Column.bigint("partition key token"));
+					}
+				}
+				final Matcher pk = PK_RESTRICTION.matcher(query);
+				if (pk.matches() && pk.group(1).equals("?")) {
+					pkIndices.add(variables.size());
+					variables.add(Column.integer("pk"));
+				}
+				for (int i = countMarkers(query) - variables.size(); i > 0; --i) {
+					variables.add(Column.integer("v"));
+				}
+			}
+
+			final ByteBuf body = Unpooled.buffer();
+			body.writeInt(RESULT_PREPARED);
+			writeShortBytes(body, id);
+			// Variables metadata
+			body.writeInt(0x0001);
+			body.writeInt(variables.size());
+			body.writeInt(pkIndices.size());
+			for (int pkIndex : pkIndices) {
+				body.writeShort(pkIndex);
+			}
+			writeString(body, FakeCluster.KEYSPACE);
+			writeString(body, FakeCluster.TABLE);
+			for (Column variable : variables) {
+				variable.writeSpec(body);
+			}
+			// Result metadata
+			final List<Column> resultColumns = SELECT.matcher(query).matches() ? tableColumns()
+					: CONDITIONAL.matcher(query).matches() ? Collections.singletonList(Column.bool("[applied]"))
+					: Collections.<Column>emptyList();
+			body.writeInt(0x0001);
+			body.writeInt(resultColumns.size());
+			writeString(body, FakeCluster.KEYSPACE);
+			writeString(body, FakeCluster.TABLE);
+			for (Column column : resultColumns) {
+				column.writeSpec(body);
+			}
+			return new Response(OPCODE_RESULT, body, true);
+		}
+
+		/**
+		 * Whether the node is a replica of the partitions of all INSERTs of a batch whose
+		 * partition key is known.
+		 */
+		private boolean ownsBatch(ByteBuf body) {
+			body.readByte(); // type
+			final int count = body.readUnsignedShort();
+			boolean owns = true;
+			for (int i = 0; i < count; ++i) {
+				final String query = body.readByte() == 0 ? readLongString(body) : prepared.get(hex(readShortBytes(body)));
+				final List<ByteBuffer> values = new ArrayList<>();
+				for (int j = body.readUnsignedShort(); j > 0; --j) {
+					final byte[] value = readBytes(body);
+					values.add(value != null ? ByteBuffer.wrap(value) : null);
+				}
+				final Integer pk = query != null ? insertedPartition(query, values) : null;
+				if (pk != null && !cluster.isReplica(FakeNode.this, FakeCluster.token(pk))) {
+					owns = false;
+				}
+			}
+			return owns;
+		}
+
+		private Integer insertedPartition(String query, List<ByteBuffer> values) {
+			final Matcher insert = INSERT.matcher(query);
+			if (!insert.matches()) {
+				return null;
+			}
+			final String[] names = insert.group(1).split(",");
+			final String[] literals = insert.group(2).split(",");
+			int variable = 0;
+			for (int i = 0; i < names.length; ++i) {
+				final boolean bound = literals[i].trim().equals("?");
+				if (names[i].trim().equals("pk")) {
+					return bound ? values.get(variable).getInt(values.get(variable).position())
+							: Integer.valueOf(literals[i].trim());
+				}
+				if (bound) {
+					++variable;
+				}
+			}
+			return null;
+		}
+
+		private Response query(String query, QueryParameters parameters) {
+			final Matcher system = SYSTEM_QUERY.matcher(query);
+			if (system.matches()) {
+				systemRequests.increment();
+				return new Response(OPCODE_RESULT, systemRows(system.group(1), system.group(2)), false).fromSystemTable();
+			}
+			final Matcher use = USE.matcher(query);
+			if (use.matches()) {
+				final ByteBuf body = Unpooled.buffer();
+				body.writeInt(RESULT_SET_KEYSPACE);
+				writeString(body, use.group(1));
+				return new Response(OPCODE_RESULT, body, false);
+			}
+			if (CONDITIONAL.matcher(query).matches()) {
+				conditionalRequests.increment();
+				final Response response = data(() -> rows(Collections.singletonList(Column.bool("[applied]")),
+						Collections.singletonList(Collections.singletonList(new byte[] { 1 })), null));
+				final Integer pk = insertedPartition(query, parameters.values);
+				if (pk == null || response.opcode != OPCODE_RESULT) {
+					return response;
+				}
+				paxosRoundTrips.add(cluster.beginPaxos(FakeNode.this, pk));
+				return response.onWritten(() -> cluster.endPaxos(FakeNode.this, pk));
+			}
+			final Matcher select = SELECT.matcher(query);
+			if (select.matches()) {
+				if (!select.group(1).equalsIgnoreCase(FakeCluster.TABLE)) {
+					return error(ERROR_INVALID, "unconfigured table " + select.group(1));
+				}
+				return data(() -> select(query, parameters));
+			}
+			return data(() -> voidResult());
+		}
+
+		/**
+		 * Serve a request touching user data: count it, honour injected failures and delay the response.
+		 */
+		private Response data(Supplier<ByteBuf> result) {
+			requests.increment();
+			if (remainingFailures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+				failedRequests.increment();
+				return failure();
+			}
+			return new Response(OPCODE_RESULT, result.get(), true);
+		}
+
+		private Response failure() {
+			final ByteBuf body = Unpooled.buffer();
+			switch (failure) {
+				case OVERLOADED:
+					body.writeInt(ERROR_OVERLOADED);
+					writeString(body, "Injected overload");
+					break;
+				case READ_TIMEOUT:
+					body.writeInt(ERROR_READ_TIMEOUT);
+					writeString(body, "Injected read timeout");
+					body.writeShort(CONSISTENCY_ONE);
+					body.writeInt(0);
+					body.writeInt(1);
+					body.writeByte(0);
+					break;
+				case UNAVAILABLE:
+					body.writeInt(ERROR_UNAVAILABLE);
+					writeString(body, "Injected unavailable");
+					body.writeShort(CONSISTENCY_ONE);
+					body.writeInt(1);
+					body.writeInt(0);
+					break;
+				case CAS_WRITE_TIMEOUT:
+					body.writeInt(ERROR_WRITE_TIMEOUT);
+					writeString(body, "Injected Paxos contention timeout");
+					body.writeShort(CONSISTENCY_ONE);
+					body.writeInt(0);
+					body.writeInt(1);
+					writeString(body, "CAS");
+					break;
+				default:
+					body.writeInt(ERROR_SERVER_ERROR);
+					writeString(body, "Injected server error");
+			}
+			return new Response(OPCODE_ERROR, body, true);
+		}
+
+		private ByteBuf select(String query, QueryParameters parameters) {
+			int nextValue = 0;
+			long fromToken = Long.MIN_VALUE;
+			long toToken = Long.MAX_VALUE;
+			boolean fromInclusive = true;
+			final Matcher token = TOKEN_RESTRICTION.matcher(query);
+			if (token.matches()) {
+				fromInclusive = false;
+				if (token.group(1).equals("?")) {
+					fromToken = parameters.values.get(nextValue++).getLong();
+				} else {
+					fromToken = Long.parseLong(token.group(1));
+				}
+				if ("?".equals(token.group(2))) {
+					toToken = parameters.values.get(nextValue++).getLong();
+				} else if (token.group(2) != null) {
+					toToken = Long.parseLong(token.group(2));
+				}
+			}
+			Integer pk = null;
+			final Matcher pkMatcher = PK_RESTRICTION.matcher(query);
+			if (pkMatcher.matches()) {
+				pk = pkMatcher.group(1).equals("?")
+						? parameters.values.get(nextValue++).getInt()
+						: Integer.parseInt(pkMatcher.group(1));
+			}
+
+			final List<FakeRow> matching = new ArrayList<>();
+			for (FakeRow row : cluster.getRows()) {
+				if ((pk == null || row.pk == pk)
+						&& (fromInclusive ? row.token >= fromToken : row.token > fromToken)
+						&& row.token <= toToken) {
+					matching.add(row);
+				}
+			}
+
+			final int offset = parameters.pagingState == null ? 0 : parameters.pagingState.getInt();
+			if (parameters.pagingState != null) {
+				pagedRequests.increment();
+			}
+			final int pageSize = parameters.pageSize > 0 ? parameters.pageSize : Integer.MAX_VALUE;
+			final int end = (int) Math.min(matching.size(), (long) offset + pageSize);
+			if (offset < end) {
+				final long firstToken = matching.get(offset).token;
+				if (!cluster.isReplica(FakeNode.this, firstToken)) {
+					nonReplicaRequests.increment();
+				}
+				if (cluster.shardOf(firstToken) != shard) {
+					wrongShardRequests.increment();
+				}
+			}
+
+			final List<List<byte[]>> rows = new ArrayList<>();
+			for (FakeRow row : matching.subList(offset, end)) {
+				final List<byte[]> values = new ArrayList<>();
+				values.add(intBytes(row.pk));
+				values.add(intBytes(row.ck));
+				values.add(intBytes(row.v));
+				rows.add(values);
+			}
+			final byte[] pagingState = end < matching.size() ? intBytes(end) : null;
+			return rows(tableColumns(), rows, pagingState);
+		}
+
+		private ByteBuf systemRows(String keyspace, String table) {
+			if (keyspace.equals("system") && table.equals("local")) {
+				return rows(Arrays.asList(
+						Column.text("key"), Column.text("bootstrapped"), Column.inet("broadcast_address"),
+						Column.text("cluster_name"), Column.text("cql_version"), Column.text("data_center"),
+						Column.text("rack"), Column.inet("listen_address"), Column.text("partitioner"),
+						Column.text("release_version"), Column.inet("rpc_address"), Column.uuid("schema_version"),
+						Column.textSet("tokens"), Column.uuid("host_id")),
+						Collections.singletonList(Arrays.asList(
+								text("local"), text("COMPLETED"), address.getAddress(),
+								text("fake"), text("3.3.1"), text(datacenter),
+								text(rack), address.getAddress(), text("org.apache.cassandra.dht.Murmur3Partitioner"),
+								text(RELEASE_VERSION), address.getAddress(), uuid(SCHEMA_VERSION),
+								textSet(Collections.singletonList(Long.toString(token))), uuid(hostId))),
+						null);
+			}
+			if (keyspace.equals("system") && table.equals("peers")) {
+				final List<List<byte[]>> peers = new ArrayList<>();
+				for (FakeNode node : cluster.getNodes()) {
+					if (node != FakeNode.this) {
+						peers.add(Arrays.asList(
+								node.address.getAddress(), text(node.datacenter), text(node.rack),
+								text(RELEASE_VERSION), node.address.getAddress(), uuid(SCHEMA_VERSION),
+								textSet(Collections.singletonList(Long.toString(node.token))), uuid(node.hostId)));
+					}
+				}
+				return rows(Arrays.asList(
+						Column.inet("peer"), Column.text("data_center"), Column.text("rack"),
+						Column.text("release_version"), Column.inet("rpc_address"), Column.uuid("schema_version"),
+						Column.textSet("tokens"), Column.uuid("host_id")),
+						peers, null);
+			}
+			if (keyspace.equals("system_schema") && table.equals("keyspaces")) {
+				final Map<String, String> replication = new LinkedHashMap<>();
+				if (cluster.getDatacenters() > 1) {
+					replication.put("class", "org.apache.cassandra.locator.NetworkTopologyStrategy");
+					for (int dc = 1; dc <= cluster.getDatacenters(); ++dc) {
+						replication.put("dc" + dc, Integer.toString(cluster.getReplicationFactor()));
+					}
+				} else {
+					replication.put("class", "org.apache.cassandra.locator.SimpleStrategy");
+					replication.put("replication_factor", Integer.toString(cluster.getReplicationFactor()));
+				}
+				return rows(Arrays.asList(
+						Column.text("keyspace_name"), Column.bool("durable_writes"), Column.textMap("replication")),
+						Collections.singletonList(Arrays.asList(
+								text(FakeCluster.KEYSPACE), new byte[] { 1 }, textMap(replication))),
+						null);
+			}
+			if (keyspace.equals("system_schema") && table.equals("tables")) {
+				return rows(Arrays.asList(
+						Column.text("keyspace_name"), Column.text("table_name"), Column.doubleColumn("bloom_filter_fp_chance"),
+						Column.textMap("caching"), Column.text("comment"), Column.textMap("compaction"),
+						Column.textMap("compression"), Column.doubleColumn("crc_check_chance"),
+						Column.doubleColumn("dclocal_read_repair_chance"), Column.integer("default_time_to_live"),
+						Column.blobMap("extensions"), Column.textSet("flags"), Column.integer("gc_grace_seconds"), Column.uuid("id"),
+						Column.integer("max_index_interval"), Column.integer("memtable_flush_period_in_ms"),
+						Column.integer("min_index_interval"), Column.doubleColumn("read_repair_chance"),
+						Column.text("speculative_retry")),
+						Collections.singletonList(Arrays.asList(
+								text(FakeCluster.KEYSPACE), text(FakeCluster.TABLE), null,
+								null, null, null,
+								null, null,
+								null, null,
+								null, textSet(Collections.singletonList("compound")), null,
+								uuid(UUID.nameUUIDFromBytes(FakeCluster.TABLE.getBytes(StandardCharsets.UTF_8))),
+								null, null,
+								null, null,
+								null)),
+						null);
+			}
+			if (keyspace.equals("system_schema") && table.equals("columns")) {
+				final List<Column> columns = Arrays.asList(
+						Column.text("keyspace_name"), Column.text("table_name"), Column.text("column_name"),
+						Column.text("clustering_order"), Column.text("kind"), Column.integer("position"),
+						Column.text("type"));
+				return rows(columns, Arrays.asList(
+						columnRow("pk", "none", "partition_key", 0),
+						columnRow("ck", "asc", "clustering", 0),
+						columnRow("v", "none", "regular", -1)),
+						null);
+			}
+			return rows(Collections.<Column>emptyList(), Collections.<List<byte[]>>emptyList(), null);
+		}
+
+		private List<byte[]> columnRow(String name, String clusteringOrder, String kind, int position) {
+			return Arrays.asList(text(FakeCluster.KEYSPACE), text(FakeCluster.TABLE), text(name),
+					text(clusteringOrder), text(kind), intBytes(position), text("int"));
+		}
+
+		private Response error(int code, String message) {
+			final ByteBuf body = Unpooled.buffer();
+			body.writeInt(code);
+			writeString(body, message);
+			return new Response(OPCODE_ERROR, body, false);
+		}
+
+	}
+
+	private static List<Column> tableColumns() {
+		return Arrays.asList(Column.integer("pk"), Column.integer("ck"), Column.integer("v"));
+	}
+
+	private static ByteBuf voidResult() {
+		final ByteBuf body = Unpooled.buffer(4);
+		body.writeInt(RESULT_VOID);
+		return body;
+	}
+
+	private static ByteBuf rows(List<Column> columns, List<List<byte[]>> rows, byte[] pagingState) {
+		final ByteBuf body = Unpooled.buffer();
+		body.writeInt(RESULT_ROWS);
+		body.writeInt(0x0001 | (pagingState != null ? 0x0002 : 0));
+		body.writeInt(columns.size());
+		if (pagingState != null) {
+			writeBytes(body, pagingState);
+		}
+		writeString(body, FakeCluster.KEYSPACE);
+		writeString(body, FakeCluster.TABLE);
+		for (Column column : columns) {
+			column.writeSpec(body);
+		}
+		body.writeInt(rows.size());
+		for (List<byte[]> row : rows) {
+			for (byte[] value : row) {
+				writeBytes(body, value);
+			}
+		}
+		return body;
+	}
+
+	private static ByteBuf frame(int version, short stream, int opcode, ByteBuf body) {
+		final ByteBuf header = Unpooled.buffer(9);
+		header.writeByte(0x80 | version);
+		header.writeByte(0);
+		header.writeShort(stream);
+		header.writeByte(opcode);
+		header.writeInt(body.readableBytes());
+		return Unpooled.wrappedBuffer(header, body);
+	}
+
+	private static final class Response {
+
+		final int opcode;
+		final ByteBuf body;
+		final boolean delayed;
+		Runnable onWritten;
+		boolean system;
+
+		Response(int opcode, ByteBuf body, boolean delayed) {
+			this.opcode = opcode;
+			this.body = body;
+			this.delayed = delayed;
+		}
+
+		/**
+		 * Run a given action once the response is written.
+		 */
+		Response onWritten(Runnable action) {
+			onWritten = action;
+			return this;
+		}
+
+		/**
+		 * Mark the response as one to a query of a system table.
+		 */
+		Response fromSystemTable() {
+			system = true;
+			return this;
+		}
+	}
+
+	private static final class QueryParameters {
+
+		final List<ByteBuffer> values = new ArrayList<>();
+		int pageSize = -1;
+		ByteBuffer pagingState;
+
+		static QueryParameters read(ByteBuf body) {
+			final QueryParameters result = new QueryParameters();
+			body.readShort(); // consistency
+			final int flags = body.readByte();
+			if ((flags & 0x01) != 0) {
+				final int count = body.readShort();
+				for (int i = 0; i < count; ++i) {
+					if ((flags & 0x40) != 0) {
+						readString(body);
+					}
+					final byte[] value = readBytes(body);
+					result.values.add(value == null ? null : ByteBuffer.wrap(value));
+				}
+			}
+			if ((flags & 0x04) != 0) {
+				result.pageSize = body.readInt();
+			}
+			if ((flags & 0x08) != 0) {
+				final byte[] pagingState = readBytes(body);
+				result.pagingState = pagingState == null ? null : ByteBuffer.wrap(pagingState);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Column specification together with its type encoded as a protocol [option].
+	 */
+	private static final class Column {
+
+		final String name;
+		final int[] type;
+
+		private Column(String name, int... type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		static Column integer(String name) {
+			return new Column(name, 0x0009);
+		}
+
+		static Column bigint(String name) {
+			return new Column(name, 0x0002);
+		}
+
+		static Column bool(String name) {
+			return new Column(name, 0x0004);
+		}
+
+		static Column doubleColumn(String name) {
+			return new Column(name, 0x0007);
+		}
+
+		static Column text(String name) {
+			return new Column(name, 0x000D);
+		}
+
+		static Column uuid(String name) {
+			return new Column(name, 0x000C);
+		}
+
+		static Column inet(String name) {
+			return new Column(name, 0x0010);
+		}
+
+		static Column textSet(String name) {
+			return new Column(name, 0x0022, 0x000D);
+		}
+
+		static Column textMap(String name) {
+			return new Column(name, 0x0021, 0x000D, 0x000D);
+		}
+
+		static Column blobMap(String name) {
+			return new Column(name, 0x0021, 0x000D, 0x0003);
+		}
+
+		void writeSpec(ByteBuf body) {
+			writeString(body, name);
+			for (int option : type) {
+				body.writeShort(option);
+			}
+		}
+	}
+
+	private static int countMarkers(String query) {
+		int result = 0;
+		for (int i = 0; i < query.length(); ++i) {
+			if (query.charAt(i) == '?') {
+				++result;
+			}
+		}
+		return result;
+	}
+
+	private static byte[] intBytes(int value) {
+		return ByteBuffer.allocate(4).putInt(value).array();
+	}
+
+	private static byte[] text(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] uuid(UUID value) {
+		return ByteBuffer.allocate(16)
+				.putLong(value.getMostSignificantBits())
+				.putLong(value.getLeastSignificantBits())
+				.array();
+	}
+
+	private static byte[] textSet(List<String> values) {
+		final ByteBuf result = Unpooled.buffer();
+		result.writeInt(values.size());
+		for (String value : values) {
+			writeBytes(result, text(value));
+		}
+		return toArray(result);
+	}
+
+	private static byte[] textMap(Map<String, String> values) {
+		final ByteBuf result = Unpooled.buffer();
+		result.writeInt(values.size());
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			writeBytes(result, text(entry.getKey()));
+			writeBytes(result, text(entry.getValue()));
+		}
+		return toArray(result);
+	}
+
+	private static byte[] toArray(ByteBuf buffer) {
+		final byte[] result = new byte[buffer.readableBytes()];
+		buffer.readBytes(result);
+		return result;
+	}
+
+	private static void writeString(ByteBuf body, String value) {
+		final byte[] bytes = text(value);
+		body.writeShort(bytes.length);
+		body.writeBytes(bytes);
+	}
+
+	private static void writeBytes(ByteBuf body, byte[] value) {
+		if (value == null) {
+			body.writeInt(-1);
+		} else {
+			body.writeInt(value.length);
+			body.writeBytes(value);
+		}
+	}
+
+	private static void writeShortBytes(ByteBuf body, byte[] value) {
+		body.writeShort(value.length);
+		body.writeBytes(value);
+	}
+
+	private static String readString(ByteBuf body) {
+		final byte[] bytes = new byte[body.readUnsignedShort()];
+		body.readBytes(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readLongString(ByteBuf body) {
+		final byte[] bytes = new byte[body.readInt()];
+		body.readBytes(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(ByteBuf body) {
+		final int length = body.readInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		body.readBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] readShortBytes(ByteBuf body) {
+		final byte[] bytes = new byte[body.readUnsignedShort()];
+		body.readBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] md5(String query) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(text(query));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		final StringBuilder result = new StringBuilder();
+		for (byte b : bytes) {
+			result.append(String.format("%02x", b));
+		}
+		return result.toString();
+	}
+
+	private static byte[] unhex(String hex) {
+		final byte[] result = new byte[hex.length() / 2];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return result;
+	}
+
+}